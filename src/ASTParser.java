@@ -152,7 +152,17 @@ public class ASTParser {
   }
 
   protected void expr(Expr expr) throws MyPLException {
-    // <expr> ::= ( <rvalue> | NOT <expr> | LPAREN <expr> RPAREN ) ( <operator> <expr> | <empty> )
+    // <expr> ::= <operand> ( <operator> <operand> )*
+    // <operand> ::= <rvalue> | NOT <expr> | LPAREN <expr> RPAREN
+    // where the operators bind (loosest first) or, and, == !=, < <= > >=,
+    // + -, and * / %, all left associative, and NOT applies to an
+    // equality (so "not a == b and c" is "(not (a == b)) and c")
+    operand(expr);
+    operators(expr);
+  }
+
+  // parse the first operand of an expr
+  protected void operand(Expr expr) throws MyPLException {
     if (match(TokenType.LPAREN)) {
       eat(TokenType.LPAREN, "expecting LPAREN");
       ComplexTerm cTerm = new ComplexTerm();
@@ -163,26 +173,84 @@ public class ASTParser {
     } else if (match(TokenType.NOT)) {
       eat(TokenType.NOT, "expecting NOT");
       expr.logicallyNegated = true;
+      Expr operand = new Expr();
+      operand(operand);
       ComplexTerm cTerm = new ComplexTerm();
-      cTerm.expr = new Expr();
-      expr(cTerm.expr);
+      cTerm.expr = binary(operand, precedence(TokenType.EQUAL));
       expr.first = cTerm;
     } else {
       SimpleTerm sTerm = new SimpleTerm();
       rvalue(sTerm);
       expr.first = sTerm;
     }
-    if (isOperator()) {
-      expr.op = currToken;
+  }
+
+  // parse the operators (if any) after an expr's first operand, making
+  // the expr the root of the resulting tree
+  protected void operators(Expr expr) throws MyPLException {
+    if (!isOperator())
+      return;
+    Expr first = new Expr();
+    first.first = expr.first;
+    first.logicallyNegated = expr.logicallyNegated;
+    Expr root = binary(first, 1);
+    expr.logicallyNegated = root.logicallyNegated;
+    expr.first = root.first;
+    expr.op = root.op;
+    expr.rest = root.rest;
+  }
+
+  // precedence climbing: extend the left operand with each following
+  // operator that binds at least as tightly as minPrecedence (the
+  // right operand takes the tighter ones, so equal ones group left)
+  private Expr binary(Expr left, int minPrecedence) throws MyPLException {
+    while (isOperator() && precedence(currToken.type()) >= minPrecedence) {
+      Token op = currToken;
       advance();
-      Expr rest = new Expr();
-      expr(rest);
-      expr.rest = rest;
+      Expr right = new Expr();
+      operand(right);
+      right = binary(right, precedence(op.type()) + 1);
+      Expr node = new Expr();
+      if (left.op == null && !left.logicallyNegated) {
+        node.first = left.first;
+      } else {
+        ComplexTerm cTerm = new ComplexTerm();
+        cTerm.expr = left;
+        node.first = cTerm;
+      }
+      node.op = op;
+      node.rest = right;
+      left = node;
+    }
+    return left;
+  }
+
+  // the binding strength of a (binary) operator
+  protected static int precedence(TokenType op) {
+    switch (op) {
+      case OR:
+        return 1;
+      case AND:
+        return 2;
+      case EQUAL:
+      case NOT_EQUAL:
+        return 3;
+      case LESS_THAN:
+      case LESS_THAN_EQUAL:
+      case GREATER_THAN:
+      case GREATER_THAN_EQUAL:
+        return 4;
+      case PLUS:
+      case MINUS:
+        return 5;
+      default:
+        // MULTIPLY, DIVIDE, MODULO
+        return 6;
     }
   }
 
   protected void rvalue(SimpleTerm sTerm) throws MyPLException {
-    // <rvalue> ::= <pval> | NIL | NEW ID | <idrval> | <call_expr> | NEG <expr>
+    // <rvalue> ::= <pval> | NIL | NEW ID | <idrval> | <call_expr> | NEG <operand>
     if (match(TokenType.NIL)) {
       SimpleRValue sRValue = new SimpleRValue();
       sRValue.value = currToken;
@@ -197,8 +265,9 @@ public class ASTParser {
     } else if (match(TokenType.NEG)) {
       advance();
       NegatedRValue nRValue = new NegatedRValue();
+      // (neg binds tighter than any operator)
       Expr expr = new Expr();
-      expr(expr);
+      operand(expr);
       nRValue.expr = expr;
       sTerm.rvalue = nRValue;
     } else if (isPrimitiveValue()) {
@@ -0,0 +1,502 @@
+/*
+ * File: AlgebraicSimplifier.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Algebraic simplification and strength reduction of int and
+ *       double arithmetic (using the types recorded by the static
+ *       checker). Operators with an identity operand (x + 0, x * 1,
+ *       x / 1, ...) are removed, constants in chains of int + and * are
+ *       combined (1 + (x + 2) becomes 3 + x), and products that are
+ *       always zero are replaced by 0.
+ *
+ *       In a for loop, products of the loop variable and a loop
+ *       invariant (i * c, optionally plus an invariant d + i * c) are
+ *       replaced by an induction variable that is declared before the
+ *       loop and updated by adding c at the end of each iteration.
+ *
+ *       An operator is only removed if doing so cannot hide a runtime
+ *       error, so the operand must be provably non-nil (and, when its
+ *       value is discarded, must be safe to not evaluate).
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class AlgebraicSimplifier extends OptimizerPass {
+
+  // prefix of the induction variables (not a valid MyPL identifier)
+  private static final String TEMP_PREFIX = "$iv";
+
+  // weight of an expression nested in an inner loop (a guess at the
+  // number of times it runs per iteration of the outer loop)
+  private static final int INNER_LOOP_WEIGHT = 10;
+
+  // instructions added to each iteration by an induction variable
+  // update (load, push, add, store)
+  private static final int UPDATE_COST = 4;
+
+  // the checked expression types
+  private TypeInfo typeInfo;
+
+  // the non-nil variables of the current function
+  private NilAnalysis nils;
+
+  // number of induction variables created so far
+  private int temps = 0;
+
+  // number of operators simplified and products strength reduced
+  private int simplifyCount = 0;
+  private int reduceCount = 0;
+
+
+  /**
+   * Create a simplifier for a program checked with the given type
+   * information.
+   */
+  public AlgebraicSimplifier(TypeInfo typeInfo) {
+    this.typeInfo = typeInfo;
+  }
+
+  /**
+   * Returns the number of operators removed or combined.
+   */
+  public int simplifyCount() {
+    return simplifyCount;
+  }
+
+  /**
+   * Returns the number of products replaced by induction variables.
+   */
+  public int reduceCount() {
+    return reduceCount;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(FunDecl node) throws MyPLException {
+    nils = NilAnalysis.of(node);
+    super.visit(node);
+  }
+
+  protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      // inner loops first
+      stmt.accept(this);
+      if (stmt instanceof ForStmt)
+        result.addAll(reduce((ForStmt) stmt));
+      result.add(stmt);
+    }
+    stmts.clear();
+    stmts.addAll(result);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    super.visit(node);
+    while (simplify(node))
+      ++simplifyCount;
+  }
+
+  //----------------------------------------------------------------------
+  // SIMPLIFICATION
+  //----------------------------------------------------------------------
+
+  // apply one rewrite to the expression, returning false if none apply
+  private boolean simplify(Expr node) {
+    if (node.op == null || node.logicallyNegated)
+      return false;
+    String type = typeInfo.typeOf(node);
+    boolean isInt = "int".equals(type);
+    if (!isInt && !"double".equals(type))
+      return false;
+    Token x = literal(node.first);
+    Token y = literal(node.rest);
+    switch (node.op.lexeme()) {
+      case "+":
+        // (x + 0.0 is not x for x = -0.0)
+        if (isInt && isZero(y) && nils.isNonNil(node.first))
+          return replace(node, node.first);
+        if (isInt && isZero(x) && nils.isNonNil(node.rest))
+          return replace(node, node.rest);
+        return isInt && reassociate(node, x);
+      case "-":
+        if (isZero(y) && nils.isNonNil(node.first))
+          return replace(node, node.first);
+        // (0.0 - x is not -x for x = 0.0)
+        if (isInt && isZero(x) && nils.isNonNil(node.rest))
+          return replace(node, negate(node.rest));
+        return false;
+      case "*":
+        if (isOne(y) && nils.isNonNil(node.first))
+          return replace(node, node.first);
+        if (isOne(x) && nils.isNonNil(node.rest))
+          return replace(node, node.rest);
+        if (isInt && isMinusOne(y) && nils.isNonNil(node.first))
+          return replace(node, negate(operand(node.first)));
+        // (x * 0.0 is not 0.0 for infinite or NaN x)
+        if (isInt && isZero(y) && isDiscardable(node.first))
+          return replace(node, literalTerm(y));
+        if (isInt && isZero(x) && isDiscardable(node.rest))
+          return replace(node, literalTerm(x));
+        return isInt && reassociate(node, x);
+      case "/":
+        if (isOne(y) && nils.isNonNil(node.first))
+          return replace(node, node.first);
+        if (isInt && isMinusOne(y) && nils.isNonNil(node.first))
+          return replace(node, negate(operand(node.first)));
+        return false;
+      case "%":
+        if (isInt && (isOne(y) || isMinusOne(y)) && isDiscardable(node.first))
+          return replace(node, literalTerm(intToken(y, 0)));
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  // combine the constants of c1 op (c2 op e) or c1 op (e op c2) for an
+  // associative and commutative int operator
+  private boolean reassociate(Expr node, Token c1) {
+    Expr rest = node.rest;
+    if (intValue(c1) == null || rest.op == null || rest.logicallyNegated ||
+        !rest.op.lexeme().equals(node.op.lexeme()))
+      return false;
+    Token c2 = literal(rest.first);
+    if (intValue(c2) != null) {
+      node.first = literalTerm(combine(node.op.lexeme(), c1, c2));
+      node.rest = rest.rest;
+      return true;
+    }
+    c2 = literal(rest.rest);
+    if (intValue(c2) != null) {
+      node.first = literalTerm(combine(node.op.lexeme(), c1, c2));
+      node.rest = intExpr(rest.first);
+      return true;
+    }
+    return false;
+  }
+
+  // true if the term can be left unevaluated (it has no effects, cannot
+  // fail, and is not nil)
+  private boolean isDiscardable(ExprTerm term) {
+    return nils.isNonNil(term) && !nils.canFail(term);
+  }
+
+  private boolean isDiscardable(Expr expr) {
+    return nils.isNonNil(expr) && !nils.canFail(expr);
+  }
+
+  private static boolean replace(Expr node, ExprTerm term) {
+    node.first = term;
+    node.op = null;
+    node.rest = null;
+    return true;
+  }
+
+  private static boolean replace(Expr node, Expr expr) {
+    node.first = expr.first;
+    node.op = expr.op;
+    node.rest = expr.rest;
+    node.logicallyNegated = expr.logicallyNegated;
+    return true;
+  }
+
+  // the term as an expression
+  private Expr operand(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return ((ComplexTerm) term).expr;
+    return intExpr(term);
+  }
+
+  // a term negating the expression
+  private static SimpleTerm negate(Expr expr) {
+    NegatedRValue rvalue = new NegatedRValue();
+    rvalue.expr = expr;
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    return term;
+  }
+
+  //----------------------------------------------------------------------
+  // INDUCTION VARIABLES
+  //----------------------------------------------------------------------
+
+  // replace the loop variable products in a for loop's body with
+  // induction variables, returning their declarations (to place before
+  // the loop)
+  private List<Stmt> reduce(ForStmt node) throws MyPLException {
+    List<Stmt> decls = new ArrayList<>();
+    String var = node.varName.lexeme();
+    Set<String> modified = modified(node.stmts);
+    ExprTerm start = node.start.first;
+    // the start is used again to initialize the induction variables
+    // (just before the loop evaluates it), so it has to be a literal or
+    // a variable that cannot be nil
+    if (modified.contains(var) || !isInvariant(node.start, Set.of()))
+      return decls;
+    Map<String,Product> products = products(var, node.stmts, modified);
+    for (Product product : products.values()) {
+      int saved = product.offset == null ? 2 : 4;
+      if (saved * product.weight <= UPDATE_COST)
+        continue;
+      Token at = node.varName;
+      Token name = new Token(TokenType.ID, TEMP_PREFIX + temps++, at.line(), at.column());
+      // var $ivN = [d +] start * c
+      Expr init = new Expr();
+      init.first = copy(start);
+      init.op = new Token(TokenType.MULTIPLY, "*", at.line(), at.column());
+      init.rest = intExpr(copy(product.factor));
+      typeInfo.setType(init, "int");
+      if (product.offset != null) {
+        Expr sum = new Expr();
+        sum.first = copy(product.offset);
+        sum.op = new Token(TokenType.PLUS, "+", at.line(), at.column());
+        sum.rest = init;
+        typeInfo.setType(sum, "int");
+        init = sum;
+      }
+      VarDeclStmt decl = new VarDeclStmt();
+      decl.varName = name;
+      decl.expr = init;
+      decls.add(decl);
+      // $ivN = $ivN +/- c (after the rest of the body)
+      Expr step = new Expr();
+      step.first = use(name);
+      step.op = node.upto ? new Token(TokenType.PLUS, "+", at.line(), at.column())
+        : new Token(TokenType.MINUS, "-", at.line(), at.column());
+      step.rest = intExpr(copy(product.factor));
+      typeInfo.setType(step, "int");
+      AssignStmt update = new AssignStmt();
+      update.lvalue.add(name);
+      update.expr = step;
+      node.stmts.add(update);
+      for (Expr site : product.sites) {
+        site.first = use(name);
+        site.op = null;
+        site.rest = null;
+        ++reduceCount;
+      }
+    }
+    return decls;
+  }
+
+  // A product of the loop variable and a loop invariant factor, plus an
+  // optional invariant offset, and where it is used in the loop.
+  private static class Product {
+    ExprTerm factor;
+    ExprTerm offset;
+    List<Expr> sites = new ArrayList<>();
+    // estimated evaluations per iteration
+    int weight = 0;
+  }
+
+  // find the products of the loop variable in a loop body (by factor
+  // and offset)
+  private Map<String,Product> products(String var, List<Stmt> body, Set<String> modified)
+    throws MyPLException
+  {
+    Map<String,Product> products = new LinkedHashMap<>();
+    OptimizerPass scan = new OptimizerPass() {
+        int depth = 0;
+        public void visit(WhileStmt node) throws MyPLException {
+          ++depth;
+          super.visit(node);
+          --depth;
+        }
+        public void visit(ForStmt node) throws MyPLException {
+          // (the start and end are evaluated once)
+          node.start.accept(this);
+          node.end.accept(this);
+          ++depth;
+          visitBlock(node.stmts);
+          --depth;
+        }
+        public void visit(Expr node) throws MyPLException {
+          ExprTerm offset = null;
+          Expr product = null;
+          if (isSum(node)) {
+            // d + i * c or (i * c) + d
+            if (isInvariant(node.first, modified) && factor(var, node.rest, modified) != null) {
+              offset = node.first;
+              product = node.rest;
+            } else if (node.first instanceof ComplexTerm &&
+                       factor(var, ((ComplexTerm) node.first).expr, modified) != null &&
+                       node.rest.op == null && isInvariant(node.rest, modified)) {
+              offset = node.rest.first;
+              product = ((ComplexTerm) node.first).expr;
+            }
+          }
+          if (product == null && factor(var, node, modified) != null)
+            product = node;
+          if (product == null) {
+            super.visit(node);
+            return;
+          }
+          ExprTerm factor = factor(var, product, modified);
+          String key = key(factor) + (offset == null ? "" : " + " + key(offset));
+          Product p = products.computeIfAbsent(key, k -> new Product());
+          p.factor = factor;
+          p.offset = offset;
+          p.sites.add(node);
+          p.weight += depth == 0 ? 1 : INNER_LOOP_WEIGHT;
+        }
+      };
+    for (Stmt stmt : body)
+      stmt.accept(scan);
+    return products;
+  }
+
+  // true if the expression is an int addition
+  private boolean isSum(Expr expr) {
+    return expr.op != null && expr.op.lexeme().equals("+") && !expr.logicallyNegated &&
+      "int".equals(typeInfo.typeOf(expr));
+  }
+
+  // the invariant factor c of an int expression i * c or c * i (where
+  // i is the loop variable), otherwise null
+  private ExprTerm factor(String var, Expr expr, Set<String> modified) {
+    if (expr.op == null || !expr.op.lexeme().equals("*") || expr.logicallyNegated ||
+        !"int".equals(typeInfo.typeOf(expr)) || expr.rest.op != null ||
+        expr.rest.logicallyNegated)
+      return null;
+    if (isVariable(expr.first, var) && isInvariant(expr.rest.first, modified))
+      return expr.rest.first;
+    if (isVariable(expr.rest.first, var) && isInvariant(expr.first, modified))
+      return expr.first;
+    return null;
+  }
+
+  // true if the term is an int literal or a (non-nil) local variable
+  // that the loop does not change
+  private boolean isInvariant(ExprTerm term, Set<String> modified) {
+    if (intValue(literal(term)) != null)
+      return true;
+    String name = variable(term);
+    return name != null && !modified.contains(name) && nils.isNonNil(name);
+  }
+
+  private boolean isInvariant(Expr expr, Set<String> modified) {
+    return expr.op == null && !expr.logicallyNegated && isInvariant(expr.first, modified);
+  }
+
+  private static boolean isVariable(ExprTerm term, String var) {
+    return var.equals(variable(term));
+  }
+
+  // the name of a local variable term, otherwise null
+  private static String variable(ExprTerm term) {
+    if (!(term instanceof SimpleTerm) || !(((SimpleTerm) term).rvalue instanceof IDRValue))
+      return null;
+    List<Token> path = ((IDRValue) ((SimpleTerm) term).rvalue).path;
+    return path.size() == 1 ? path.get(0).lexeme() : null;
+  }
+
+  // the variables declared or assigned in the statements
+  private static Set<String> modified(List<Stmt> stmts) throws MyPLException {
+    Set<String> modified = new HashSet<>();
+    OptimizerPass scan = new OptimizerPass() {
+        public void visit(VarDeclStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.varName.lexeme());
+        }
+        public void visit(AssignStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.lvalue.get(0).lexeme());
+        }
+        public void visit(ForStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.varName.lexeme());
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(scan);
+    return modified;
+  }
+
+  // a description of an (invariant) term, for grouping products
+  private static String key(ExprTerm term) {
+    Token value = literal(term);
+    return value != null ? value.lexeme() : variable(term);
+  }
+
+  // a new term with the same (invariant) value
+  private static SimpleTerm copy(ExprTerm term) {
+    Token value = literal(term);
+    if (value != null)
+      return literalTerm(value);
+    return use(((IDRValue) ((SimpleTerm) term).rvalue).path.get(0));
+  }
+
+  // a term reading the given variable
+  private static SimpleTerm use(Token name) {
+    IDRValue rvalue = new IDRValue();
+    rvalue.path.add(name);
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    return term;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // an int expression consisting of the term
+  private Expr intExpr(ExprTerm term) {
+    Expr expr = new Expr();
+    expr.first = term;
+    typeInfo.setType(expr, "int");
+    return expr;
+  }
+
+  // the value of an int literal, otherwise null
+  private static Integer intValue(Token value) {
+    if (value == null || value.type() != TokenType.INT_VAL)
+      return null;
+    try {
+      return Integer.parseInt(value.lexeme());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static boolean isInt(Token value, int i) {
+    Integer v = intValue(value);
+    return v != null && v == i;
+  }
+
+  // (only positive zero is an identity for doubles)
+  private static boolean isZero(Token value) {
+    if (value != null && value.type() == TokenType.DOUBLE_VAL)
+      return Double.doubleToRawLongBits(Double.parseDouble(value.lexeme())) == 0;
+    return isInt(value, 0);
+  }
+
+  private static boolean isOne(Token value) {
+    if (value != null && value.type() == TokenType.DOUBLE_VAL)
+      return Double.parseDouble(value.lexeme()) == 1;
+    return isInt(value, 1);
+  }
+
+  private static boolean isMinusOne(Token value) {
+    return isInt(value, -1);
+  }
+
+  private static Token intToken(Token at, int value) {
+    return new Token(TokenType.INT_VAL, String.valueOf(value), at.line(), at.column());
+  }
+
+  // c1 op c2 for an int + or *
+  private static Token combine(String op, Token c1, Token c2) {
+    int a = intValue(c1);
+    int b = intValue(c2);
+    return intToken(c1, op.equals("+") ? a + b : a * b);
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * File: AllocationProfiler.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Keeps per-allocation-site counts of allocated, freed, and
+ *       live objects for the VM. An allocation site is an ALLOC
+ *       "new" expression: the ALLOC instructions tagged with the same
+ *       source location and type (e.g., copies made by unrolling) are
+ *       counted as one site.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class AllocationProfiler {
+
+  // the counts for a single allocation site
+  private static class Site {
+    String function;
+    String type;
+    String source;
+    long allocated = 0;
+    long freed = 0;
+
+    long live() {
+      return allocated - freed;
+    }
+
+    @Override
+    public String toString() {
+      String where = source == null ? "" : " at line " + source;
+      return "new " + type + " in " + function + where;
+    }
+  }
+
+  // the sites (by ALLOC instruction, and by source location and type)
+  private Map<VMInstr,Integer> siteIds = new IdentityHashMap<>();
+  private Map<String,Integer> sourceSiteIds = new HashMap<>();
+  private List<Site> sites = new ArrayList<>();
+
+  // the site of each live object (indexed by oid - baseId)
+  private int[] objectSites = new int[256];
+
+  // the smallest object id the VM hands out
+  private int baseId;
+
+
+  public AllocationProfiler(int baseId) {
+    this.baseId = baseId;
+  }
+
+  /**
+   * Record an allocation.
+   * @param instr the ALLOC instruction
+   * @param function the function executing the instruction
+   * @param oid the id of the new object
+   */
+  public void allocated(VMInstr instr, String function, int oid) {
+    Integer id = siteIds.get(instr);
+    if (id == null) {
+      Object operand = instr.operand();
+      String type = operand instanceof Shape && ((Shape) operand).typeName() != null ?
+        ((Shape) operand).typeName() : "object";
+      String key = instr.source() == null ? null : instr.source() + " " + type;
+      id = key == null ? null : sourceSiteIds.get(key);
+      if (id == null) {
+        Site site = new Site();
+        site.function = function;
+        site.type = type;
+        site.source = instr.source();
+        id = sites.size();
+        sites.add(site);
+        if (key != null)
+          sourceSiteIds.put(key, id);
+      }
+      siteIds.put(instr, id);
+    }
+    ++sites.get(id).allocated;
+    int slot = oid - baseId;
+    while (slot >= objectSites.length) {
+      int[] grown = new int[objectSites.length * 2];
+      System.arraycopy(objectSites, 0, grown, 0, objectSites.length);
+      objectSites = grown;
+    }
+    objectSites[slot] = id;
+  }
+
+  /**
+   * Record that the (live) object with the given id was freed.
+   */
+  public void freed(int oid) {
+    ++sites.get(objectSites[oid - baseId]).freed;
+  }
+
+  /**
+   * Returns the top leaking sites (most objects still live) and the
+   * top allocating sites.
+   * @param top the number of sites to list in each category
+   */
+  public String report(int top) {
+    String s = "Allocation profile (" + sites.size() + " sites)\n";
+    List<Site> leaking = new ArrayList<>();
+    for (Site site : sites)
+      if (site.live() > 0)
+        leaking.add(site);
+    leaking.sort(Comparator.comparingLong(Site::live).reversed());
+    s += "  top leaking sites (live at exit):\n";
+    if (leaking.isEmpty())
+      s += "    none\n";
+    for (int i = 0; i < leaking.size() && i < top; ++i)
+      s += format(leaking.get(i));
+    List<Site> allocating = new ArrayList<>(sites);
+    allocating.sort(Comparator.comparingLong((Site site) -> site.allocated).reversed());
+    s += "  top allocating sites:\n";
+    for (int i = 0; i < allocating.size() && i < top; ++i)
+      s += format(allocating.get(i));
+    return s;
+  }
+
+  // a report line for a site
+  private String format(Site site) {
+    return String.format("    %10d allocated %10d freed %10d live  %s%n",
+                         site.allocated, site.freed, site.live(), site);
+  }
+
+}
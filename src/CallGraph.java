@@ -0,0 +1,114 @@
+/*
+ * File: CallGraph.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The static call graph of a program: for each function, the
+ *       (user-defined) functions it calls and how many call sites
+ *       there are. Built-in functions are not part of the graph.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+public class CallGraph {
+
+  // function name to (callee name to number of call sites)
+  private Map<String,Map<String,Integer>> calls = new LinkedHashMap<>();
+
+
+  /**
+   * Build the call graph of the given program.
+   */
+  public static CallGraph of(Program program) throws MyPLException {
+    CallGraph graph = new CallGraph();
+    for (FunDecl fdecl : program.fdecls)
+      graph.add(fdecl);
+    return graph;
+  }
+
+  /**
+   * Add (or replace) the calls made by a function.
+   */
+  public void add(FunDecl fdecl) throws MyPLException {
+    String caller = fdecl.funName.lexeme();
+    Map<String,Integer> callees = new LinkedHashMap<>();
+    calls.put(caller, callees);
+    fdecl.accept(new OptimizerPass() {
+        public void visit(CallExpr node) throws MyPLException {
+          super.visit(node);
+          callees.merge(node.funName.lexeme(), 1, Integer::sum);
+        }
+      });
+  }
+
+  /**
+   * Returns the functions in the graph.
+   */
+  public Set<String> functions() {
+    return Collections.unmodifiableSet(calls.keySet());
+  }
+
+  /**
+   * Returns the functions called (directly) by the given function.
+   */
+  public Set<String> callees(String function) {
+    if (!calls.containsKey(function))
+      return Collections.emptySet();
+    Set<String> callees = new LinkedHashSet<>(calls.get(function).keySet());
+    callees.retainAll(calls.keySet());
+    return callees;
+  }
+
+  /**
+   * Returns the number of call sites of the given function (in all
+   * functions of the graph).
+   */
+  public int callSites(String function) {
+    int count = 0;
+    for (Map<String,Integer> callees : calls.values())
+      count += callees.getOrDefault(function, 0);
+    return count;
+  }
+
+  /**
+   * Returns the functions reachable (through calls) from the given
+   * function, including the function itself.
+   */
+  public Set<String> reachableFrom(String function) {
+    Set<String> reached = new HashSet<>();
+    Deque<String> pending = new ArrayDeque<>();
+    pending.push(function);
+    while (!pending.isEmpty()) {
+      String f = pending.pop();
+      if (calls.containsKey(f) && reached.add(f))
+        pending.addAll(callees(f));
+    }
+    return reached;
+  }
+
+  /**
+   * True if the function can (directly or indirectly) call itself.
+   */
+  public boolean isRecursive(String function) {
+    for (String callee : callees(function))
+      if (reachableFrom(callee).contains(function))
+        return true;
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    Map<String,Set<String>> edges = new LinkedHashMap<>();
+    for (String f : calls.keySet())
+      edges.put(f, callees(f));
+    return edges.toString();
+  }
+
+}
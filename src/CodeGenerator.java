@@ -6,13 +6,22 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 
 public class CodeGenerator implements Visitor {
 
+  // the fewest functions a program needs for them to be generated in
+  // parallel (below this, starting the tasks costs more than it saves)
+  public static final int PARALLEL_MIN_FUNCTIONS = 32;
+
   // the user-defined type and function type information
   protected TypeInfo typeInfo = null;
 
@@ -31,6 +40,35 @@ public class CodeGenerator implements Visitor {
   // to keep track of the typedecl objects for initialization
   protected Map<String,TypeDecl> typeDecls = new HashMap<>();
 
+  // the VM object layout of each user-defined type (built on first
+  // use, and shared by the generators of all functions)
+  protected Map<String,Shape> shapes = new ConcurrentHashMap<>();
+
+  // decides which calls are inlined (null if inlining is off)
+  protected Inliner inliner = null;
+
+  // packs the variable slots of each function (null to leave one slot
+  // per variable)
+  protected SlotAllocator slotAllocator = null;
+
+  // the get calls whose index is known to be in range (null if
+  // every index is checked)
+  protected RangeAnalysis ranges = null;
+
+  // the nil and field checks known to pass (null if every check is
+  // made)
+  protected NilCheckAnalysis nils = null;
+
+  // the function being generated
+  protected String currFunName = null;
+
+  // while generating an inlined body, the jumps of its return
+  // statements (to the end of the body), otherwise null
+  private List<Integer> returnJumps = null;
+
+  // the number of inlined bodies being generated (nesting)
+  private int inlineDepth = 0;
+
 
   //----------------------------------------------------------------------
   // HELPER FUNCTIONS
@@ -68,6 +106,51 @@ public class CodeGenerator implements Visitor {
     this.vm = vm;
   }
 
+  // a generator for one function of the program, sharing the types,
+  // shapes, inliner, and slot allocator of the given one (its frame is
+  // not added to a VM)
+  private CodeGenerator(CodeGenerator parent) {
+    this.typeInfo = parent.typeInfo;
+    this.typeDecls = parent.typeDecls;
+    this.shapes = parent.shapes;
+    this.inliner = parent.inliner;
+    this.slotAllocator = parent.slotAllocator;
+    this.ranges = parent.ranges;
+    this.nils = parent.nils;
+  }
+
+  /**
+   * Inline the calls the given inliner selects (instead of generating
+   * CALL instructions).
+   */
+  public void setInliner(Inliner inliner) {
+    this.inliner = inliner;
+  }
+
+  /**
+   * Share the variable slots of each function between variables with
+   * disjoint lifetimes (see SlotAllocator).
+   */
+  public void setSlotAllocator(SlotAllocator slotAllocator) {
+    this.slotAllocator = slotAllocator;
+  }
+
+  /**
+   * Skip the index check of the get calls the given analysis proves
+   * in range.
+   */
+  public void setRangeAnalysis(RangeAnalysis ranges) {
+    this.ranges = ranges;
+  }
+
+  /**
+   * Skip the nil and field checks the given analysis proves
+   * unneeded.
+   */
+  public void setNilCheckAnalysis(NilCheckAnalysis nils) {
+    this.nils = nils;
+  }
+
   //----------------------------------------------------------------------
   // VISITOR FUNCTIONS
   //----------------------------------------------------------------------
@@ -80,8 +163,36 @@ public class CodeGenerator implements Visitor {
       typeDecls.put(tdecl.typeName.lexeme(), tdecl);
     }
     // only need to translate the function declarations
-    for (FunDecl fdecl : node.fdecls)
-      fdecl.accept(this);
+    if (node.fdecls.size() < PARALLEL_MIN_FUNCTIONS) {
+      for (FunDecl fdecl : node.fdecls)
+        fdecl.accept(this);
+    } else {
+      for (VMFrame frame : generateParallel(node.fdecls))
+        vm.add(frame);
+    }
+  }
+
+  // generate each function with its own generator over the common
+  // fork/join pool, returning the frames in declaration order (the
+  // functions only share read-only state, the shapes, and the
+  // inliner and slot allocator, which are thread safe)
+  private List<VMFrame> generateParallel(List<FunDecl> fdecls) throws MyPLException {
+    VMFrame[] frames = new VMFrame[fdecls.size()];
+    MyPLException[] errors = new MyPLException[fdecls.size()];
+    IntStream.range(0, fdecls.size()).parallel().forEach(i -> {
+        CodeGenerator generator = new CodeGenerator(this);
+        try {
+          fdecls.get(i).accept(generator);
+          frames[i] = generator.currFrame;
+        } catch (MyPLException e) {
+          errors[i] = e;
+        }
+      });
+    // (the first error in declaration order is reported)
+    for (MyPLException error : errors)
+      if (error != null)
+        throw error;
+    return Arrays.asList(frames);
   }
 
   public void visit(TypeDecl node) throws MyPLException {
@@ -90,9 +201,11 @@ public class CodeGenerator implements Visitor {
   
   public void visit(FunDecl node) throws MyPLException {
     currVarIndex = 0;
+    currFunName = node.funName.lexeme();
     // 1. create a new frame for the function
     currFrame = new VMFrame(node.funName.lexeme(), node.params.size());
-    vm.add(currFrame);
+    if (vm != null)
+      vm.add(currFrame);
     // 2. create a variable mapping for the frame
     varMap = new HashMap<String,Integer>();
     // 3. store args
@@ -114,6 +227,9 @@ public class CodeGenerator implements Visitor {
       currFrame.instructions.add(VMInstr.PUSH(VM.NIL_OBJ));
       currFrame.instructions.add(VMInstr.VRET());
     }
+    // 6. pack the variable slots
+    if (slotAllocator != null)
+      slotAllocator.allocate(currFrame);
     currVarIndex = 0;
   }
   
@@ -144,10 +260,11 @@ public class CodeGenerator implements Visitor {
   public void visit(CondStmt node) throws MyPLException {
     node.ifPart.cond.accept(this);
     // if (!node.cond) jump to else or end
-    currFrame.instructions.add(VMInstr.JMPF(-1)); // jump to next elif/else
+    addBranch(VMInstr.JMPF(-1), OptimizerPass.firstToken(node.ifPart.cond)); // jump to next elif/else
     int jump = currFrame.instructions.size() - 1;
     for (Stmt stmt: node.ifPart.stmts) {
       stmt.accept(this);
+      fixCallStmt(stmt);
     }
     currFrame.instructions.add(VMInstr.JMP(-1));
 
@@ -162,10 +279,11 @@ public class CodeGenerator implements Visitor {
         currFrame.instructions.get(jump).updateOperand(currFrame.instructions.size());
         currFrame.instructions.add(VMInstr.NOP()); // nop in case elif is empty
         bIf.cond.accept(this);
-        currFrame.instructions.add(VMInstr.JMPF(-1)); // jump to next elif/else
+        addBranch(VMInstr.JMPF(-1), OptimizerPass.firstToken(bIf.cond)); // jump to next elif/else
         jump = currFrame.instructions.size() - 1;
         for (Stmt stmt: bIf.stmts) {
           stmt.accept(this);
+          fixCallStmt(stmt);
         }
         currFrame.instructions.add(VMInstr.JMP(-1));
         // add the end jump line # to a list
@@ -178,6 +296,7 @@ public class CodeGenerator implements Visitor {
     if (node.elseStmts != null) {
       for (Stmt stmt: node.elseStmts) {
         stmt.accept(this);
+        fixCallStmt(stmt);
       }
     }
     // set all of the endJumps to next instruction
@@ -192,7 +311,7 @@ public class CodeGenerator implements Visitor {
   public void visit(WhileStmt node) throws MyPLException {
     int startInstr = currFrame.instructions.size();
     node.cond.accept(this);
-    currFrame.instructions.add(VMInstr.JMPF(-1));
+    addBranch(VMInstr.JMPF(-1), OptimizerPass.firstToken(node.cond));
     int jumpF = currFrame.instructions.size() - 1;
     for (Stmt stmt: node.stmts) {
       stmt.accept(this);
@@ -204,6 +323,42 @@ public class CodeGenerator implements Visitor {
   }
 
   public void visit(ForStmt node) throws MyPLException {
+    // a counted loop (FORPREP/FORLOOP) evaluates the end once, so it is
+    // only used if the body cannot change the loop variable or the end
+    Set<String> modified = modified(node.stmts);
+    if (modified.contains(node.varName.lexeme()) || !isInvariant(node.end, modified)) {
+      genericFor(node);
+      return;
+    }
+    int counter = currVarIndex++;
+    varMap.put(node.varName.lexeme(), counter);
+    node.start.accept(this);
+    currFrame.instructions.add(VMInstr.STORE(counter));
+    node.end.accept(this);
+    int limit = currVarIndex++;
+    currFrame.instructions.add(VMInstr.STORE(limit));
+    ForLoop prep = new ForLoop(counter, limit, node.upto, -1);
+    addBranch(VMInstr.FORPREP(prep), node.varName);
+    int bodyStart = currFrame.instructions.size();
+    for (Stmt stmt : node.stmts) {
+      stmt.accept(this);
+      fixCallStmt(stmt);
+    }
+    addBranch(VMInstr.FORLOOP(new ForLoop(counter, limit, node.upto, bodyStart)), node.varName);
+    currFrame.instructions.add(VMInstr.NOP());
+    prep.target = currFrame.instructions.size() - 1;
+  }
+
+  // add a branch instruction, tagged with the source location that
+  // identifies the branch in profiles (see ExecutionProfile)
+  private void addBranch(VMInstr branch, Token at) {
+    branch.setSource(at);
+    currFrame.instructions.add(branch);
+  }
+
+  // a for loop that compares and steps the loop variable with
+  // separate instructions (re-evaluating the end each time)
+  private void genericFor(ForStmt node) throws MyPLException {
     // init for var
     varMap.put(node.varName.lexeme(), currVarIndex);
     ++currVarIndex;
@@ -219,7 +374,7 @@ public class CodeGenerator implements Visitor {
     } else {
       currFrame.instructions.add(VMInstr.CMPGE());
     }
-    currFrame.instructions.add(VMInstr.JMPF(-1));
+    addBranch(VMInstr.JMPF(-1), node.varName);
     int jumpF = currFrame.instructions.size() - 1;
     for (Stmt stmt : node.stmts) {
       stmt.accept(this);
@@ -238,13 +393,69 @@ public class CodeGenerator implements Visitor {
     currFrame.instructions.get(jumpF).updateOperand(currFrame.instructions.size() - 1);
   }
   
+  // the variables declared or assigned in the statements
+  private static Set<String> modified(List<Stmt> stmts) throws MyPLException {
+    Set<String> modified = new HashSet<>();
+    OptimizerPass scan = new OptimizerPass() {
+        public void visit(VarDeclStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.varName.lexeme());
+        }
+        public void visit(AssignStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.lvalue.get(0).lexeme());
+        }
+        public void visit(ForStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.varName.lexeme());
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(scan);
+    return modified;
+  }
+
+  // true if the expression always has the same value while none of
+  // the given variables change (literals, other variables, operators,
+  // and string lengths)
+  private static boolean isInvariant(Expr expr, Set<String> modified) {
+    if (!isInvariant(expr.first, modified))
+      return false;
+    return expr.rest == null || isInvariant(expr.rest, modified);
+  }
+
+  private static boolean isInvariant(ExprTerm term, Set<String> modified) {
+    if (term instanceof ComplexTerm)
+      return isInvariant(((ComplexTerm) term).expr, modified);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return true;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue) rvalue).path;
+      return path.size() == 1 && !modified.contains(path.get(0).lexeme());
+    }
+    if (rvalue instanceof NegatedRValue)
+      return isInvariant(((NegatedRValue) rvalue).expr, modified);
+    if (rvalue instanceof CallExpr) {
+      CallExpr call = (CallExpr) rvalue;
+      return call.funName.lexeme().equals("length") && isInvariant(call.args.get(0), modified);
+    }
+    return false;
+  }
+
   public void visit(ReturnStmt node) throws MyPLException {
     if (node.expr == null) {
       currFrame.instructions.add(VMInstr.PUSH(VM.NIL_OBJ));
     } else {
       node.expr.accept(this);
     }
-    currFrame.instructions.add(VMInstr.VRET());
+    if (returnJumps != null) {
+      // return from an inlined body: jump to its end
+      currFrame.instructions.add(VMInstr.JMP(-1));
+      returnJumps.add(currFrame.instructions.size() - 1);
+    } else {
+      currFrame.instructions.add(VMInstr.VRET());
+    }
   }
   
   
@@ -266,17 +477,77 @@ public class CodeGenerator implements Visitor {
       currFrame.instructions.add(VMInstr.READ());
     else if (node.funName.lexeme().equals("length"))
       currFrame.instructions.add(VMInstr.LEN());
-    else if (node.funName.lexeme().equals("get"))
-      currFrame.instructions.add(VMInstr.GETCHR());
+    else if (node.funName.lexeme().equals("get")) {
+      VMInstr getchr = VMInstr.GETCHR();
+      if (ranges != null && ranges.inRange(node))
+        getchr.setUnchecked();
+      currFrame.instructions.add(getchr);
+    }
     else if (node.funName.lexeme().equals("stoi") || node.funName.lexeme().equals("dtoi"))
       currFrame.instructions.add(VMInstr.TOINT());
     else if (node.funName.lexeme().equals("stod") || node.funName.lexeme().equals("itod"))
       currFrame.instructions.add(VMInstr.TODBL());
     else if (node.funName.lexeme().equals("dtos") || node.funName.lexeme().equals("itos"))
       currFrame.instructions.add(VMInstr.TOSTR());
+    else if (node.funName.lexeme().equals("setroot")) {
+      currFrame.instructions.add(VMInstr.SETROOT());
+      currFrame.instructions.add(VMInstr.PUSH(VM.NIL_OBJ));
+    }
+    else if (node.funName.lexeme().equals("getroot"))
+      currFrame.instructions.add(VMInstr.GETROOT());
     // user-defined functions
-    else
-      currFrame.instructions.add(VMInstr.CALL(node.funName.lexeme()));
+    else if (inliner != null &&
+             inliner.shouldInline(currFunName, node, inlineDepth))
+      inline(node);
+    else {
+      VMInstr call = VMInstr.CALL(node.funName.lexeme());
+      // (the call site, for profiles)
+      call.setSource(node.funName);
+      currFrame.instructions.add(call);
+    }
+  }
+
+  // generate the body of the called function in place of the call,
+  // with its own variable mapping (the arguments are already on the
+  // operand stack, and its return value is left on the stack)
+  private void inline(CallExpr node) throws MyPLException {
+    FunDecl fun = inliner.function(node.funName.lexeme());
+    Map<String,Integer> callerVarMap = varMap;
+    List<Integer> callerReturnJumps = returnJumps;
+    varMap = new HashMap<>();
+    returnJumps = new ArrayList<>();
+    ++inlineDepth;
+    int start = currFrame.instructions.size();
+    // store the args (the last one is on top)
+    int params = fun.params.size();
+    for (int i = 0; i < params; i++)
+      varMap.put(fun.params.get(i).paramName.lexeme(), currVarIndex + i);
+    for (int i = params - 1; i >= 0; i--)
+      currFrame.instructions.add(VMInstr.STORE(currVarIndex + i));
+    currVarIndex += params;
+    boolean retStmtFlag = false;
+    for (Stmt stmt : fun.stmts) {
+      stmt.accept(this);
+      retStmtFlag = stmt instanceof ReturnStmt;
+      fixCallStmt(stmt);
+    }
+    if (retStmtFlag) {
+      // the final return falls through to the end
+      currFrame.instructions.remove(currFrame.instructions.size() - 1);
+      returnJumps.remove(returnJumps.size() - 1);
+    } else {
+      currFrame.instructions.add(VMInstr.PUSH(VM.NIL_OBJ));
+    }
+    if (!returnJumps.isEmpty()) {
+      for (int jump : returnJumps)
+        currFrame.instructions.get(jump).updateOperand(currFrame.instructions.size());
+      currFrame.instructions.add(VMInstr.NOP());
+    }
+    currFrame.instructions.get(start).addComment("inlined " + fun.funName.lexeme());
+    --inlineDepth;
+    varMap = callerVarMap;
+    returnJumps = callerReturnJumps;
+    inliner.inlined(currFunName, node);
   }
   
   public void visit(SimpleRValue node) throws MyPLException {
@@ -316,8 +587,11 @@ public class CodeGenerator implements Visitor {
   }
   
   public void visit(NewRValue node) throws MyPLException {
-    List<String> memberVars = new ArrayList<>(typeInfo.components(node.typeName.lexeme()));
-    currFrame.instructions.add(VMInstr.ALLOC(memberVars));
+    String typeName = node.typeName.lexeme();
+    Shape shape = shapes.computeIfAbsent(typeName, t -> Shape.of(typeInfo, t));
+    VMInstr alloc = VMInstr.ALLOC(shape);
+    alloc.setSource(node.typeName);
+    currFrame.instructions.add(alloc);
     for (VarDeclStmt var: typeDecls.get(node.typeName.lexeme()).vdecls) {
       currFrame.instructions.add(VMInstr.DUP());
       var.expr.accept(this);
@@ -329,7 +603,11 @@ public class CodeGenerator implements Visitor {
     currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
     if (node.path.size() > 1) {
       for (int i = 1; i < node.path.size(); i++) {
-        currFrame.instructions.add(VMInstr.GETFLD(node.path.get(i).lexeme()));
+        VMInstr getfld = VMInstr.GETFLD(node.path.get(i).lexeme());
+        // (only the object of the first access is known)
+        if (i == 1 && nils != null && nils.isUnchecked(node))
+          getfld.setUnchecked();
+        currFrame.instructions.add(getfld);
       }
     }
   }
@@ -345,19 +623,19 @@ public class CodeGenerator implements Visitor {
       node.rest.accept(this);
       switch (node.op.lexeme()) {
         case "+":
-          currFrame.instructions.add(VMInstr.ADD());
+          addArithmetic(VMInstr.ADD(), node);
           break;
         case "-":
-          currFrame.instructions.add(VMInstr.SUB());
+          addArithmetic(VMInstr.SUB(), node);
           break;
         case "/":
-          currFrame.instructions.add(VMInstr.DIV());
+          addArithmetic(VMInstr.DIV(), node);
           break;
         case "*":
-          currFrame.instructions.add(VMInstr.MUL());
+          addArithmetic(VMInstr.MUL(), node);
           break;
         case "%":
-          currFrame.instructions.add(VMInstr.MOD());
+          addArithmetic(VMInstr.MOD(), node);
           break;
         case "and":
           currFrame.instructions.add(VMInstr.AND());
@@ -387,11 +665,22 @@ public class CodeGenerator implements Visitor {
       }
     }
     if (node.logicallyNegated) {
-      currFrame.instructions.add(VMInstr.NOT());
+      VMInstr not = VMInstr.NOT();
+      if (nils != null && nils.isUncheckedNot(node))
+        not.setUnchecked();
+      currFrame.instructions.add(not);
     }
 
   }
 
+  // add an arithmetic instruction for the expression's operator,
+  // without the nil check if its operands are known not to be nil
+  private void addArithmetic(VMInstr instr, Expr node) {
+    if (nils != null && nils.isUnchecked(node))
+      instr.setUnchecked();
+    currFrame.instructions.add(instr);
+  }
+
   public void visit(SimpleTerm node) throws MyPLException {
     // defer to contained rvalue
     node.rvalue.accept(this);
@@ -0,0 +1,185 @@
+/*
+ * File: ColumnStore.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Off-heap, column-wise storage for all instances of a
+ *       primitive-only record type. Each field is stored in its own
+ *       direct buffer (8 bytes per object) indexed by row, so
+ *       instances need no Java objects of their own. Rows are numbered
+ *       densely per store and rows released by free are reused, so the
+ *       columns only grow to the peak number of live objects of the
+ *       type. The VM's object table records the store and row of each
+ *       columnar object.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+
+public class ColumnStore {
+
+  // bytes used per field value
+  private static final int SLOT_SIZE = 8;
+
+  // initial number of rows per column
+  private static final int INITIAL_ROWS = 64;
+
+  // marks the end of the free list
+  private static final int NONE = -1;
+
+  // the (primitive-only) shape of the stored objects
+  private Shape shape;
+
+  // one direct buffer per field
+  private ByteBuffer[] columns;
+
+  // the rows holding nil, per field
+  private BitSet[] nils;
+
+  // for free rows, the next free row (the free list)
+  private int[] nextFree = new int[INITIAL_ROWS];
+
+  // the first free row (or NONE)
+  private int freeHead = NONE;
+
+  // the number of rows handed out so far (free or not)
+  private int top = 0;
+
+  // number of live objects
+  private int count = 0;
+
+
+  /**
+   * Create a new store for the given shape.
+   * @param shape a primitive-only shape
+   */
+  public ColumnStore(Shape shape) {
+    this.shape = shape;
+    columns = new ByteBuffer[shape.size()];
+    nils = new BitSet[shape.size()];
+    for (int i = 0; i < shape.size(); ++i) {
+      columns[i] = ByteBuffer.allocateDirect(INITIAL_ROWS * SLOT_SIZE);
+      nils[i] = new BitSet();
+    }
+  }
+
+  public Shape shape() {
+    return shape;
+  }
+
+  /**
+   * Returns the number of live objects in the store.
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * Returns the number of bytes reserved by the store's columns.
+   */
+  public long reservedBytes() {
+    long bytes = 0;
+    for (ByteBuffer column : columns)
+      bytes += column.capacity();
+    return bytes;
+  }
+
+  /**
+   * Returns the bytes used per object (one slot per field).
+   */
+  public long bytesPerObject() {
+    return (long) SLOT_SIZE * columns.length;
+  }
+
+  /**
+   * Add a new object, reusing a freed row if there is one. All fields
+   * start out nil.
+   * @return the object's row
+   */
+  public int allocate() {
+    int row;
+    if (freeHead != NONE) {
+      row = freeHead;
+      freeHead = nextFree[row];
+    } else {
+      if (top == nextFree.length)
+        grow();
+      row = top++;
+    }
+    for (BitSet nil : nils)
+      nil.set(row);
+    ++count;
+    return row;
+  }
+
+  /**
+   * Remove the object in the given row, releasing the row for reuse.
+   */
+  public void free(int row) {
+    nextFree[row] = freeHead;
+    freeHead = row;
+    --count;
+  }
+
+  /**
+   * Returns the (boxed) value of a field of the given object.
+   * @param row the object's row
+   * @param field the position of the field in the store's shape
+   */
+  public Object get(int row, int field) {
+    if (nils[field].get(row))
+      return VM.NIL_OBJ;
+    int offset = row * SLOT_SIZE;
+    switch (shape.kind(field)) {
+      case INT:
+        return (int) columns[field].getLong(offset);
+      case DOUBLE:
+        return columns[field].getDouble(offset);
+      default:
+        return columns[field].getLong(offset) != 0;
+    }
+  }
+
+  /**
+   * Set a field of the given object.
+   * @param row the object's row
+   * @param field the position of the field in the store's shape
+   * @param value an Integer, Double, Boolean, or NIL_OBJ
+   */
+  public void set(int row, int field, Object value) {
+    if (value == VM.NIL_OBJ || value == null) {
+      nils[field].set(row);
+      return;
+    }
+    nils[field].clear(row);
+    int offset = row * SLOT_SIZE;
+    if (value instanceof Integer)
+      columns[field].putLong(offset, (int) value);
+    else if (value instanceof Double)
+      columns[field].putDouble(offset, (double) value);
+    else
+      columns[field].putLong(offset, (boolean) value ? 1 : 0);
+  }
+
+  @Override
+  public String toString() {
+    return shape.typeName() + "(columnar)";
+  }
+
+  // double the number of rows
+  private void grow() {
+    int rows = nextFree.length * 2;
+    int[] newNextFree = new int[rows];
+    System.arraycopy(nextFree, 0, newNextFree, 0, top);
+    nextFree = newNextFree;
+    for (int i = 0; i < columns.length; ++i) {
+      ByteBuffer column = ByteBuffer.allocateDirect(rows * SLOT_SIZE);
+      ByteBuffer old = columns[i].duplicate();
+      old.clear();
+      column.put(old);
+      column.clear();
+      columns[i] = column;
+    }
+  }
+
+}
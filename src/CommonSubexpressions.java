@@ -0,0 +1,470 @@
+/*
+ * File: CommonSubexpressions.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Local common subexpression elimination. Within a basic block
+ *       (a run of simple statements, ending with the condition of an
+ *       if statement), a field path prefix (like a.b in a.b.c) or an
+ *       operator expression over variables and field paths that is
+ *       computed more than once is computed once into a temporary
+ *       declared before the statement that first uses it.
+ *
+ *       An expression stops being available when a variable it reads
+ *       is assigned, when a field with the same name as one it reads
+ *       is set (on any object, since two paths can name the same
+ *       object), and when the heap can change in ways we cannot see (a
+ *       call to a user-defined function or a delete).
+ *
+ *       The first use is only moved to the temporary if nothing that
+ *       runs before it in its statement has an effect or can fail, so
+ *       output and runtime errors happen in the same order.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class CommonSubexpressions extends OptimizerPass {
+
+  // prefix of the temporaries (not a valid MyPL identifier)
+  private static final String TEMP_PREFIX = "$cse";
+
+  // built-in functions that cannot change the heap
+  private static final Set<String> HEAP_SAFE_BUILTINS =
+    Set.of("print", "read", "length", "get", "stoi", "stod", "itos", "itod",
+           "dtos", "dtoi", "setroot", "getroot");
+
+  // instructions added by a temporary (the store and the first load)
+  private static final int TEMP_COST = 2;
+
+  // number of temporaries created so far
+  private int temps = 0;
+
+  // number of repeated computations removed
+  private int reuseCount = 0;
+
+  // the non-nil variables of the current function
+  private NilAnalysis nils;
+
+
+  /**
+   * Returns the number of repeated computations replaced by a
+   * temporary.
+   */
+  public int reuseCount() {
+    return reuseCount;
+  }
+
+  /**
+   * Returns the number of temporaries created.
+   */
+  public int tempCount() {
+    return temps;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(FunDecl node) throws MyPLException {
+    nils = NilAnalysis.of(node);
+    super.visit(node);
+  }
+
+  protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+    // nested blocks first
+    super.visitStatements(stmts);
+    // each temporary can expose more (e.g., a.b.c after $cse0 = a.b),
+    // so pick the most profitable one until none are left
+    Group best = best(scan(stmts));
+    while (best != null) {
+      apply(stmts, best);
+      best = best(scan(stmts));
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // ELIMINATION
+  //----------------------------------------------------------------------
+
+  // the group whose temporary saves the most instructions (or null if
+  // no temporary saves any)
+  private static Group best(List<Group> groups) {
+    Group best = null;
+    for (Group group : groups) {
+      if (!group.sites.get(0).clean || group.savings() <= 0)
+        continue;
+      if (best == null || group.savings() > best.savings())
+        best = group;
+    }
+    return best;
+  }
+
+  // declare the group's temporary before its first use and replace
+  // each use with it
+  private void apply(List<Stmt> stmts, Group group) {
+    Site first = group.sites.get(0);
+    Token at = first.firstToken();
+    Token name = new Token(TokenType.ID, TEMP_PREFIX + temps++, at.line(), at.column());
+    VarDeclStmt decl = new VarDeclStmt();
+    decl.varName = name;
+    decl.expr = first.value();
+    for (Site site : group.sites)
+      site.replace(name);
+    stmts.add(first.stmt, decl);
+    reuseCount += group.sites.size() - 1;
+  }
+
+  //----------------------------------------------------------------------
+  // SCANNING
+  //----------------------------------------------------------------------
+
+  // find the repeated computations of each basic block in the list
+  private List<Group> scan(List<Stmt> stmts) {
+    Scanner scanner = new Scanner();
+    for (int i = 0; i < stmts.size(); i++) {
+      Stmt stmt = stmts.get(i);
+      scanner.stmt = i;
+      scanner.front = true;
+      if (stmt instanceof VarDeclStmt) {
+        VarDeclStmt decl = (VarDeclStmt) stmt;
+        scanner.scan(decl.expr);
+        scanner.assigned(decl.varName.lexeme());
+      } else if (stmt instanceof AssignStmt) {
+        AssignStmt assign = (AssignStmt) stmt;
+        scanner.scan(assign.expr);
+        if (assign.lvalue.size() > 1) {
+          // the object whose field is set is loaded after the value
+          scanner.path(assign.lvalue, assign.lvalue.size() - 1);
+          scanner.fieldSet(assign.lvalue.get(assign.lvalue.size() - 1).lexeme());
+        } else {
+          scanner.assigned(assign.lvalue.get(0).lexeme());
+        }
+      } else if (stmt instanceof CallExpr) {
+        scanner.call((CallExpr) stmt);
+      } else if (stmt instanceof ReturnStmt && ((ReturnStmt) stmt).expr != null) {
+        scanner.scan(((ReturnStmt) stmt).expr);
+      } else if (stmt instanceof DeleteStmt) {
+        scanner.heapChanged();
+      } else if (stmt instanceof CondStmt) {
+        // the condition ends the block
+        scanner.scan(((CondStmt) stmt).ifPart.cond);
+        scanner.available.clear();
+      } else {
+        scanner.available.clear();
+      }
+    }
+    return scanner.groups;
+  }
+
+  // Walks statements in evaluation order, grouping the computations of
+  // each expression that is still available.
+  private class Scanner {
+    // every group found
+    List<Group> groups = new ArrayList<>();
+    // the groups whose value is still available (by key)
+    Map<String,Group> available = new LinkedHashMap<>();
+    // the index of the statement being scanned
+    int stmt;
+    // true if nothing evaluated so far in the statement has an effect
+    // or can fail
+    boolean front;
+
+    void scan(Expr expr) {
+      String key = key(expr);
+      if (expr.op != null && key != null) {
+        Set<String> vars = new HashSet<>();
+        Set<String> fields = new HashSet<>();
+        reads(expr, vars, fields);
+        add(key, vars, fields, cost(expr), new ExprSite(stmt, front, expr));
+      }
+      scan(expr.first);
+      if (expr.rest != null)
+        scan(expr.rest);
+      front = front && !nils.canFail(expr);
+    }
+
+    void scan(ExprTerm term) {
+      if (term instanceof ComplexTerm) {
+        scan(((ComplexTerm) term).expr);
+        return;
+      }
+      RValue rvalue = ((SimpleTerm) term).rvalue;
+      if (rvalue instanceof IDRValue) {
+        List<Token> path = ((IDRValue) rvalue).path;
+        path(path, path.size());
+      } else if (rvalue instanceof CallExpr) {
+        call((CallExpr) rvalue);
+      } else if (rvalue instanceof NegatedRValue) {
+        scan(((NegatedRValue) rvalue).expr);
+        front = front && !nils.canFail(term);
+      }
+    }
+
+    // the first n names of a path are loaded
+    void path(List<Token> path, int n) {
+      Set<String> vars = Set.of(path.get(0).lexeme());
+      Set<String> fields = new HashSet<>();
+      for (int k = 2; k <= n; k++) {
+        fields.add(path.get(k - 1).lexeme());
+        add(pathKey(path, k), vars, new HashSet<>(fields), 2 * k - 1,
+            new PathSite(stmt, front, path, k));
+      }
+      if (n > 1)
+        front = false;
+    }
+
+    void call(CallExpr call) {
+      for (Expr arg : call.args)
+        scan(arg);
+      front = false;
+      if (!HEAP_SAFE_BUILTINS.contains(call.funName.lexeme()))
+        heapChanged();
+    }
+
+    // add a computation to its group (starting a new one if the value
+    // is not available)
+    void add(String key, Set<String> vars, Set<String> fields, int cost, Site site) {
+      Group group = available.get(key);
+      if (group == null) {
+        group = new Group(vars, fields, cost);
+        groups.add(group);
+        available.put(key, group);
+      }
+      group.sites.add(site);
+    }
+
+    void assigned(String var) {
+      available.values().removeIf(g -> g.vars.contains(var));
+    }
+
+    void fieldSet(String field) {
+      available.values().removeIf(g -> g.fields.contains(field));
+    }
+
+    void heapChanged() {
+      available.values().removeIf(g -> !g.fields.isEmpty());
+    }
+  }
+
+  // The computations of one value while it stays available.
+  private static class Group {
+    // the variables and fields the value depends on
+    Set<String> vars;
+    Set<String> fields;
+    // the instructions (roughly weighted) to compute the value once
+    int cost;
+    List<Site> sites = new ArrayList<>();
+
+    Group(Set<String> vars, Set<String> fields, int cost) {
+      this.vars = vars;
+      this.fields = fields;
+      this.cost = cost;
+    }
+
+    // each repeat becomes a single load
+    int savings() {
+      return (sites.size() - 1) * (cost - 1) - TEMP_COST;
+    }
+  }
+
+  // Where a value is computed.
+  private abstract static class Site {
+    // the index of the enclosing statement
+    int stmt;
+    // true if nothing before it in the statement has an effect or can
+    // fail
+    boolean clean;
+
+    Site(int stmt, boolean clean) {
+      this.stmt = stmt;
+      this.clean = clean;
+    }
+
+    // the computation (moved into the temporary's declaration)
+    abstract Expr value();
+
+    // read the temporary instead
+    abstract void replace(Token temp);
+
+    abstract Token firstToken();
+  }
+
+  // The first k names of a variable or lvalue path.
+  private static class PathSite extends Site {
+    List<Token> path;
+    int k;
+
+    PathSite(int stmt, boolean clean, List<Token> path, int k) {
+      super(stmt, clean);
+      this.path = path;
+      this.k = k;
+    }
+
+    Expr value() {
+      IDRValue rvalue = new IDRValue();
+      rvalue.path.addAll(path.subList(0, k));
+      SimpleTerm term = new SimpleTerm();
+      term.rvalue = rvalue;
+      Expr expr = new Expr();
+      expr.first = term;
+      return expr;
+    }
+
+    void replace(Token temp) {
+      path.subList(0, k).clear();
+      path.add(0, temp);
+    }
+
+    Token firstToken() {
+      return path.get(0);
+    }
+  }
+
+  // An operator expression.
+  private static class ExprSite extends Site {
+    Expr expr;
+
+    ExprSite(int stmt, boolean clean, Expr expr) {
+      super(stmt, clean);
+      this.expr = expr;
+    }
+
+    Expr value() {
+      Expr moved = new Expr();
+      moved.first = expr.first;
+      moved.op = expr.op;
+      moved.rest = expr.rest;
+      moved.logicallyNegated = expr.logicallyNegated;
+      return moved;
+    }
+
+    void replace(Token temp) {
+      IDRValue rvalue = new IDRValue();
+      rvalue.path.add(temp);
+      SimpleTerm term = new SimpleTerm();
+      term.rvalue = rvalue;
+      expr.first = term;
+      expr.op = null;
+      expr.rest = null;
+      expr.logicallyNegated = false;
+    }
+
+    Token firstToken() {
+      ExprTerm term = expr.first;
+      while (term instanceof ComplexTerm)
+        term = ((ComplexTerm) term).expr.first;
+      return token(((SimpleTerm) term).rvalue);
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // a description of an expression over literals, variables, and field
+  // paths (equal for equal values), or null if it has anything else
+  private static String key(Expr expr) {
+    String first = key(expr.first);
+    if (first == null)
+      return null;
+    String s = expr.logicallyNegated ? "not " + first : first;
+    if (expr.op == null)
+      return s;
+    String rest = key(expr.rest);
+    return rest == null ? null : s + " " + expr.op.lexeme() + " " + rest;
+  }
+
+  private static String key(ExprTerm term) {
+    if (term instanceof ComplexTerm) {
+      String inner = key(((ComplexTerm) term).expr);
+      return inner == null ? null : "(" + inner + ")";
+    }
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue) {
+      Token value = ((SimpleRValue) rvalue).value;
+      return value.type() + ":" + value.lexeme();
+    }
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue) rvalue).path;
+      return pathKey(path, path.size());
+    }
+    if (rvalue instanceof NegatedRValue) {
+      String inner = key(((NegatedRValue) rvalue).expr);
+      return inner == null ? null : "neg " + inner;
+    }
+    // calls and new
+    return null;
+  }
+
+  private static String pathKey(List<Token> path, int k) {
+    String s = path.get(0).lexeme();
+    for (int i = 1; i < k; i++)
+      s += "." + path.get(i).lexeme();
+    return s;
+  }
+
+  // the variables and fields an expression (with a key) reads
+  private static void reads(Expr expr, Set<String> vars, Set<String> fields) {
+    reads(expr.first, vars, fields);
+    if (expr.rest != null)
+      reads(expr.rest, vars, fields);
+  }
+
+  private static void reads(ExprTerm term, Set<String> vars, Set<String> fields) {
+    if (term instanceof ComplexTerm) {
+      reads(((ComplexTerm) term).expr, vars, fields);
+      return;
+    }
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue) rvalue).path;
+      vars.add(path.get(0).lexeme());
+      for (int i = 1; i < path.size(); i++)
+        fields.add(path.get(i).lexeme());
+    } else if (rvalue instanceof NegatedRValue) {
+      reads(((NegatedRValue) rvalue).expr, vars, fields);
+    }
+  }
+
+  // the (weighted) number of instructions to evaluate an expression
+  // with a key, where a field access counts double
+  private static int cost(Expr expr) {
+    int cost = cost(expr.first) + (expr.logicallyNegated ? 1 : 0);
+    if (expr.rest != null)
+      cost += cost(expr.rest) + 1;
+    return cost;
+  }
+
+  private static int cost(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return cost(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof IDRValue)
+      return 2 * ((IDRValue) rvalue).path.size() - 1;
+    if (rvalue instanceof NegatedRValue)
+      return cost(((NegatedRValue) rvalue).expr) + 1;
+    return 1;
+  }
+
+  private static Token token(RValue rvalue) {
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) rvalue).value;
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue) rvalue).path.get(0);
+    if (rvalue instanceof CallExpr)
+      return ((CallExpr) rvalue).funName;
+    if (rvalue instanceof NewRValue)
+      return ((NewRValue) rvalue).typeName;
+    ExprTerm term = ((NegatedRValue) rvalue).expr.first;
+    while (term instanceof ComplexTerm)
+      term = ((ComplexTerm) term).expr.first;
+    return token(((SimpleTerm) term).rvalue);
+  }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * File: ConstantFolder.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Constant folding and propagation over the (checked) AST.
+ *       Operators whose operands are literals are evaluated at compile
+ *       time with the VM's semantics, and uses of local variables that
+ *       are declared with a constant and never assigned are replaced by
+ *       the constant (which can in turn enable more folding). Anything
+ *       that would fail or behave differently at runtime (division by
+ *       zero, nil operands, non-finite doubles, etc.) is left alone.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+public class ConstantFolder extends OptimizerPass {
+
+  // the declaration each variable use resolves to (for the current
+  // function)
+  private Map<IDRValue,VarDeclStmt> uses = new IdentityHashMap<>();
+
+  // the variables that are assigned after their declaration
+  private Set<VarDeclStmt> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // the constant value of each propagatable variable
+  private Map<VarDeclStmt,Token> constants = new IdentityHashMap<>();
+
+  // number of operators folded and variable uses replaced
+  private int foldCount = 0;
+  private int propagateCount = 0;
+
+
+  /**
+   * Returns the number of operators (binary, not, and negation)
+   * evaluated at compile time.
+   */
+  public int foldCount() {
+    return foldCount;
+  }
+
+  /**
+   * Returns the number of variable uses replaced by a constant.
+   */
+  public int propagateCount() {
+    return propagateCount;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(FunDecl node) throws MyPLException {
+    uses.clear();
+    assigned.clear();
+    constants.clear();
+    node.accept(new Resolver(uses, assigned));
+    super.visit(node);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+    Token value = literal(node.expr);
+    if (value != null && value.type() != TokenType.NIL && !assigned.contains(node))
+      constants.put(node, value);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+    if (node.rvalue instanceof IDRValue) {
+      Token value = constants.get(uses.get((IDRValue) node.rvalue));
+      if (value != null) {
+        node.rvalue = literalTerm(value).rvalue;
+        ++propagateCount;
+      }
+    } else if (node.rvalue instanceof NegatedRValue) {
+      Token value = negate(literal(((NegatedRValue) node.rvalue).expr));
+      if (value != null) {
+        node.rvalue = literalTerm(value).rvalue;
+        ++foldCount;
+      }
+    }
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+    // drop parentheses around a literal
+    if (node.first instanceof ComplexTerm) {
+      Token value = literal(((ComplexTerm) node.first).expr);
+      if (value != null)
+        node.first = literalTerm(value);
+    }
+    Token x = literal(node.first);
+    if (x != null && node.op != null) {
+      Token value = fold(x, node.op.lexeme(), literal(node.rest));
+      if (value != null) {
+        node.first = literalTerm(value);
+        node.op = null;
+        node.rest = null;
+        x = value;
+        ++foldCount;
+      }
+    }
+    if (x != null && node.op == null && node.logicallyNegated && x.type() == TokenType.BOOL_VAL) {
+      node.first = literalTerm(token(x, TokenType.BOOL_VAL, !x.lexeme().equals("true")));
+      node.logicallyNegated = false;
+      ++foldCount;
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the value of (x op y), or null if it cannot (or should not) be
+  // computed at compile time
+  private Token fold(Token x, String op, Token y) {
+    if (y == null || x.type() != y.type())
+      return null;
+    switch (x.type()) {
+      case INT_VAL:
+        return foldInt(x, op, intValue(x), intValue(y));
+      case DOUBLE_VAL:
+        return foldDouble(x, op, Double.parseDouble(x.lexeme()), Double.parseDouble(y.lexeme()));
+      case BOOL_VAL:
+        // (the VM's == and != do not compare bools)
+        boolean a = x.lexeme().equals("true");
+        boolean b = y.lexeme().equals("true");
+        if (op.equals("and"))
+          return token(x, TokenType.BOOL_VAL, a && b);
+        if (op.equals("or"))
+          return token(x, TokenType.BOOL_VAL, a || b);
+        return null;
+      case STRING_VAL:
+      case CHAR_VAL:
+        return foldString(x, op, y);
+      default:
+        return null;
+    }
+  }
+
+  private Token foldInt(Token x, String op, long a, long b) {
+    if (a != (int) a || b != (int) b)
+      return null;
+    int i = (int) a;
+    int j = (int) b;
+    switch (op) {
+      case "+": return token(x, TokenType.INT_VAL, i + j);
+      case "-": return token(x, TokenType.INT_VAL, i - j);
+      case "*": return token(x, TokenType.INT_VAL, i * j);
+      case "/": return j == 0 ? null : token(x, TokenType.INT_VAL, i / j);
+      case "%": return j == 0 ? null : token(x, TokenType.INT_VAL, i % j);
+      case "<": return token(x, TokenType.BOOL_VAL, i < j);
+      case "<=": return token(x, TokenType.BOOL_VAL, i <= j);
+      case ">": return token(x, TokenType.BOOL_VAL, i > j);
+      case ">=": return token(x, TokenType.BOOL_VAL, i >= j);
+      case "==": return token(x, TokenType.BOOL_VAL, i == j);
+      case "!=": return token(x, TokenType.BOOL_VAL, i != j);
+      default: return null;
+    }
+  }
+
+  private Token foldDouble(Token x, String op, double a, double b) {
+    double d;
+    switch (op) {
+      case "+": d = a + b; break;
+      case "-": d = a - b; break;
+      case "*": d = a * b; break;
+      case "/": d = a / b; break;
+      case "<": return token(x, TokenType.BOOL_VAL, a < b);
+      case "<=": return token(x, TokenType.BOOL_VAL, a <= b);
+      case ">": return token(x, TokenType.BOOL_VAL, a > b);
+      case ">=": return token(x, TokenType.BOOL_VAL, a >= b);
+      case "==": return token(x, TokenType.BOOL_VAL, a == b);
+      case "!=": return token(x, TokenType.BOOL_VAL, a != b);
+      default: return null;
+    }
+    // infinities and NaN have no literal form
+    if (Double.isInfinite(d) || Double.isNaN(d))
+      return null;
+    return token(x, TokenType.DOUBLE_VAL, d);
+  }
+
+  // strings and chars (both strings in the VM), only folded if neither
+  // has escape sequences (which the code generator expands)
+  private Token foldString(Token x, String op, Token y) {
+    String a = x.lexeme();
+    String b = y.lexeme();
+    if (a.indexOf('\\') >= 0 || b.indexOf('\\') >= 0)
+      return null;
+    switch (op) {
+      case "+":
+        return x.type() == TokenType.STRING_VAL ? token(x, TokenType.STRING_VAL, a + b) : null;
+      case "<": return token(x, TokenType.BOOL_VAL, a.compareTo(b) < 0);
+      case "<=": return token(x, TokenType.BOOL_VAL, a.compareTo(b) <= 0);
+      case ">": return token(x, TokenType.BOOL_VAL, a.compareTo(b) > 0);
+      case ">=": return token(x, TokenType.BOOL_VAL, a.compareTo(b) >= 0);
+      case "==": return token(x, TokenType.BOOL_VAL, a.equals(b));
+      case "!=": return token(x, TokenType.BOOL_VAL, !a.equals(b));
+      default: return null;
+    }
+  }
+
+  // the negation (neg) of a numeric literal, or null
+  private Token negate(Token x) {
+    if (x == null)
+      return null;
+    if (x.type() == TokenType.INT_VAL && intValue(x) == (int) intValue(x))
+      return token(x, TokenType.INT_VAL, -(int) intValue(x));
+    if (x.type() == TokenType.DOUBLE_VAL)
+      return token(x, TokenType.DOUBLE_VAL, -Double.parseDouble(x.lexeme()));
+    return null;
+  }
+
+  // the value of an int literal (as a long so out-of-range lexemes can
+  // be detected)
+  private static long intValue(Token x) {
+    try {
+      return Long.parseLong(x.lexeme());
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  // a new literal token (at the position of the given token)
+  private static Token token(Token at, TokenType type, Object value) {
+    return new Token(type, String.valueOf(value), at.line(), at.column());
+  }
+
+  //----------------------------------------------------------------------
+  // VARIABLE RESOLUTION
+  //----------------------------------------------------------------------
+
+  // Resolves each variable use in a function to its declaration and
+  // finds the variables that are assigned after being declared.
+  // Parameters and for loop variables resolve to null.
+  private static class Resolver extends OptimizerPass {
+
+    private Map<IDRValue,VarDeclStmt> uses;
+    private Set<VarDeclStmt> assigned;
+    private Deque<Map<String,VarDeclStmt>> scopes = new ArrayDeque<>();
+
+    Resolver(Map<IDRValue,VarDeclStmt> uses, Set<VarDeclStmt> assigned) {
+      this.uses = uses;
+      this.assigned = assigned;
+    }
+
+    protected void enterScope() {
+      scopes.push(new HashMap<>());
+    }
+
+    protected void exitScope() {
+      scopes.pop();
+    }
+
+    // the declaration the name currently resolves to
+    private VarDeclStmt resolve(String name) {
+      for (Map<String,VarDeclStmt> scope : scopes)
+        if (scope.containsKey(name))
+          return scope.get(name);
+      return null;
+    }
+
+    public void visit(FunDecl node) throws MyPLException {
+      enterScope();
+      for (FunParam param : node.params)
+        scopes.peek().put(param.paramName.lexeme(), null);
+      visitBlock(node.stmts);
+      exitScope();
+    }
+
+    public void visit(VarDeclStmt node) throws MyPLException {
+      node.expr.accept(this);
+      scopes.peek().put(node.varName.lexeme(), node);
+    }
+
+    public void visit(AssignStmt node) throws MyPLException {
+      node.expr.accept(this);
+      VarDeclStmt decl = resolve(node.lvalue.get(0).lexeme());
+      if (decl != null && node.lvalue.size() == 1)
+        assigned.add(decl);
+    }
+
+    public void visit(ForStmt node) throws MyPLException {
+      enterScope();
+      scopes.peek().put(node.varName.lexeme(), null);
+      node.start.accept(this);
+      node.end.accept(this);
+      visitStatements(node.stmts);
+      exitScope();
+    }
+
+    public void visit(IDRValue node) throws MyPLException {
+      VarDeclStmt decl = resolve(node.path.get(0).lexeme());
+      if (decl != null && node.path.size() == 1)
+        uses.put(node, decl);
+    }
+
+  }
+
+}
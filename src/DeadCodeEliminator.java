@@ -0,0 +1,198 @@
+/*
+ * File: DeadCodeEliminator.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Removes code that can never run: statements after a return
+ *       (or after an if/else whose branches all return), if/elif
+ *       branches with a constant false condition (and everything after
+ *       a constant true one), loops that never execute, and functions
+ *       that cannot be reached (through calls) from main. Runs after
+ *       constant folding, which is what exposes most constant
+ *       conditions.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+
+public class DeadCodeEliminator extends OptimizerPass {
+
+  // the statements that replace the statement just visited (null to
+  // keep the statement as is)
+  private List<Stmt> replacement = null;
+
+  // number of statements removed
+  private int removedStmts = 0;
+
+  // the functions removed
+  private List<String> removedFunctions = new ArrayList<>();
+
+
+  /**
+   * Returns the number of statements removed (a removed compound
+   * statement counts once).
+   */
+  public int removedStatements() {
+    return removedStmts;
+  }
+
+  /**
+   * Returns the names of the unreachable functions that were removed.
+   */
+  public List<String> removedFunctions() {
+    return removedFunctions;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    super.visit(node);
+    Set<String> reachable = CallGraph.of(node).reachableFrom("main");
+    Iterator<FunDecl> iter = node.fdecls.iterator();
+    while (iter.hasNext()) {
+      String name = iter.next().funName.lexeme();
+      if (!reachable.contains(name)) {
+        iter.remove();
+        removedFunctions.add(name);
+      }
+    }
+  }
+
+  protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> live = new ArrayList<>();
+    boolean returned = false;
+    for (Stmt stmt : stmts) {
+      if (returned) {
+        ++removedStmts;
+        continue;
+      }
+      replacement = null;
+      stmt.accept(this);
+      List<Stmt> result = replacement == null ? List.of(stmt) : replacement;
+      if (replacement != null && replacement.isEmpty())
+        ++removedStmts;
+      for (Stmt s : result) {
+        if (returned) {
+          ++removedStmts;
+          continue;
+        }
+        live.add(s);
+        returned = alwaysReturns(s);
+      }
+    }
+    stmts.clear();
+    stmts.addAll(live);
+    // (so the enclosing statement is not replaced)
+    replacement = null;
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    super.visit(node);
+    List<BasicIf> branches = new ArrayList<>();
+    branches.add(node.ifPart);
+    branches.addAll(node.elifs);
+    // keep the branches up to the first one that is always taken,
+    // which becomes the else part
+    List<BasicIf> kept = new ArrayList<>();
+    List<Stmt> elseStmts = node.elseStmts;
+    for (BasicIf branch : branches) {
+      Token cond = literal(branch.cond);
+      if (isBool(cond, false)) {
+        ++removedStmts;
+      } else if (isBool(cond, true)) {
+        if (elseStmts != null)
+          ++removedStmts;
+        elseStmts = branch.stmts;
+        break;
+      } else {
+        kept.add(branch);
+      }
+    }
+    if (!kept.isEmpty()) {
+      node.ifPart = kept.get(0);
+      node.elifs = new ArrayList<>(kept.subList(1, kept.size()));
+      node.elseStmts = elseStmts;
+    } else if (elseStmts == null) {
+      replacement = new ArrayList<>();
+    } else if (!declaresVariables(elseStmts)) {
+      replacement = elseStmts;
+    } else {
+      // keep the statements in their own scope
+      BasicIf always = new BasicIf();
+      always.cond = literalExpr(new Token(TokenType.BOOL_VAL, "true", 0, 0));
+      always.stmts = elseStmts;
+      node.ifPart = always;
+      node.elifs = new ArrayList<>();
+      node.elseStmts = null;
+    }
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    super.visit(node);
+    if (isBool(literal(node.cond), false))
+      replacement = new ArrayList<>();
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    super.visit(node);
+    Token start = literal(node.start);
+    Token end = literal(node.end);
+    if (start == null || end == null || start.type() != TokenType.INT_VAL ||
+        end.type() != TokenType.INT_VAL)
+      return;
+    try {
+      int from = Integer.parseInt(start.lexeme());
+      int to = Integer.parseInt(end.lexeme());
+      if (node.upto ? from > to : from < to)
+        replacement = new ArrayList<>();
+    } catch (NumberFormatException e) {
+      // leave the loop alone
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // true if the token is the given bool literal
+  private static boolean isBool(Token value, boolean b) {
+    return value != null && value.type() == TokenType.BOOL_VAL &&
+      value.lexeme().equals(String.valueOf(b));
+  }
+
+  // true if executing the statement always ends in a return
+  private static boolean alwaysReturns(Stmt stmt) {
+    if (stmt instanceof ReturnStmt)
+      return true;
+    if (!(stmt instanceof CondStmt) || ((CondStmt) stmt).elseStmts == null)
+      return false;
+    CondStmt cond = (CondStmt) stmt;
+    if (!alwaysReturns(cond.ifPart.stmts) || !alwaysReturns(cond.elseStmts))
+      return false;
+    for (BasicIf elif : cond.elifs)
+      if (!alwaysReturns(elif.stmts))
+        return false;
+    return true;
+  }
+
+  private static boolean alwaysReturns(List<Stmt> stmts) {
+    for (Stmt stmt : stmts)
+      if (alwaysReturns(stmt))
+        return true;
+    return false;
+  }
+
+  // true if the statement list itself (not a nested block) declares a
+  // variable
+  private static boolean declaresVariables(List<Stmt> stmts) {
+    for (Stmt stmt : stmts)
+      if (stmt instanceof VarDeclStmt)
+        return true;
+    return false;
+  }
+
+}
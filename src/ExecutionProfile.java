@@ -0,0 +1,251 @@
+/*
+ * File: ExecutionProfile.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The counts of a profiled run of a program (see --profile-out),
+ *       used to optimize later compilations of the same source (see
+ *       --profile-in). Records how often each function was called, how
+ *       often each call site ran, and how often the condition of each
+ *       branch (if, elif, while, and for) was true and false. Call
+ *       sites and branches are identified by their source location
+ *       (the function name of the call, the first token of the
+ *       condition, or the loop variable of a for loop), so a profile
+ *       only fits the source it was recorded from.
+ *
+ *       While recording, the counts are kept per instruction (like
+ *       AllocationProfiler) and combined by source location when the
+ *       profile is written. The profile file is plain text, one count
+ *       per line:
+ *
+ *         function <name> <calls>
+ *         site <line:column> <callee> <calls>
+ *         branch <line:column> <times true> <times false>
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+public class ExecutionProfile {
+
+  // the share of all calls a call site (or of all branch decisions a
+  // loop's iterations) must account for to be hot
+  public static final double HOT_SHARE = 0.01;
+
+  // the calls of each function
+  private Map<String,Long> calls = new LinkedHashMap<>();
+
+  // while recording: the calls of each CALL instruction, and the times
+  // each branch instruction's condition was true and false
+  private Map<VMInstr,long[]> callInstrs = new IdentityHashMap<>();
+  private Map<VMInstr,long[]> branchInstrs = new IdentityHashMap<>();
+
+  // the calls of each call site (by "line:column callee"), and the
+  // times each branch was true and false (by "line:column")
+  private Map<String,Long> sites = new TreeMap<>();
+  private Map<String,long[]> branches = new TreeMap<>();
+
+  // the totals (for deciding what is hot)
+  private long totalCalls = 0;
+  private long totalBranches = 0;
+
+
+  //----------------------------------------------------------------------
+  // RECORDING (by the VM)
+  //----------------------------------------------------------------------
+
+  /**
+   * Record a call of a function (from outside the program, as for
+   * main).
+   */
+  public void called(String function) {
+    calls.merge(function, 1L, Long::sum);
+  }
+
+  /**
+   * Record a call of a function by a CALL instruction.
+   */
+  public void called(VMInstr call, String function) {
+    called(function);
+    callInstrs.computeIfAbsent(call, c -> new long[1])[0]++;
+  }
+
+  /**
+   * Record the outcome of a branch instruction (JMPF, FORPREP, or
+   * FORLOOP).
+   * @param instr the branch instruction
+   * @param cond true if the condition held (the body or then-branch
+   *        runs next)
+   */
+  public void branched(VMInstr instr, boolean cond) {
+    branchInstrs.computeIfAbsent(instr, b -> new long[2])[cond ? 0 : 1]++;
+  }
+
+  /**
+   * Write the profile (in the format read by read()).
+   */
+  public void write(PrintStream out) {
+    combine();
+    for (Map.Entry<String,Long> e : calls.entrySet())
+      out.println("function " + e.getKey() + " " + e.getValue());
+    for (Map.Entry<String,Long> e : sites.entrySet())
+      out.println("site " + e.getKey() + " " + e.getValue());
+    for (Map.Entry<String,long[]> e : branches.entrySet())
+      out.println("branch " + e.getKey() + " " + e.getValue()[0] + " " + e.getValue()[1]);
+  }
+
+  //----------------------------------------------------------------------
+  // READING (by the compiler)
+  //----------------------------------------------------------------------
+
+  /**
+   * Read a profile written by write().
+   */
+  public static ExecutionProfile read(InputStream input) throws IOException, MyPLException {
+    ExecutionProfile profile = new ExecutionProfile();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      ++lineNumber;
+      String[] fields = line.trim().split("\\s+");
+      try {
+        if (fields[0].equals("function") && fields.length == 3)
+          profile.calls.merge(fields[1], count(fields[2]), Long::sum);
+        else if (fields[0].equals("site") && fields.length == 4)
+          profile.sites.merge(fields[1] + " " + fields[2], count(fields[3]), Long::sum);
+        else if (fields[0].equals("branch") && fields.length == 4)
+          profile.addBranch(fields[1], count(fields[2]), count(fields[3]));
+        else if (!line.isBlank())
+          throw new NumberFormatException();
+      } catch (NumberFormatException e) {
+        throw MyPLException.VMError("Bad profile line " + lineNumber + ": '" + line + "'");
+      }
+    }
+    for (long n : profile.calls.values())
+      profile.totalCalls += n;
+    return profile;
+  }
+
+  /**
+   * Returns the number of times the function was called.
+   */
+  public long calls(String function) {
+    return calls.getOrDefault(function, 0L);
+  }
+
+  /**
+   * Returns the number of times the call ran.
+   */
+  public long calls(CallExpr call) {
+    return sites.getOrDefault(location(call.funName) + " " + call.funName.lexeme(), 0L);
+  }
+
+  /**
+   * True if the call accounts for a large share of all calls.
+   */
+  public boolean isHot(CallExpr call) {
+    long n = calls(call);
+    return n > 0 && n >= HOT_SHARE * totalCalls;
+  }
+
+  /**
+   * True if the call never ran.
+   */
+  public boolean isCold(CallExpr call) {
+    return calls(call) == 0;
+  }
+
+  /**
+   * Returns the number of times the condition of the branch at the
+   * given token was true (for a loop, the number of iterations).
+   */
+  public long trueCount(Token at) {
+    long[] counts = branches.get(location(at));
+    return counts == null ? 0 : counts[0];
+  }
+
+  /**
+   * Returns the number of times the condition of the branch at the
+   * given token was false (for a loop, the number of times it ended).
+   */
+  public long falseCount(Token at) {
+    long[] counts = branches.get(location(at));
+    return counts == null ? 0 : counts[1];
+  }
+
+  /**
+   * True if the iterations of the loop (with the given loop variable)
+   * account for a large share of all branch decisions.
+   */
+  public boolean isHotLoop(ForStmt loop) {
+    long n = trueCount(loop.varName);
+    return n > 0 && n >= HOT_SHARE * totalBranches;
+  }
+
+  /**
+   * True if the body of the loop (with the given loop variable) never
+   * ran.
+   */
+  public boolean isColdLoop(ForStmt loop) {
+    return trueCount(loop.varName) == 0;
+  }
+
+  /**
+   * Returns the number of functions, call sites, and branches in the
+   * profile (for the optimization report).
+   */
+  public String summary() {
+    return calls.size() + " functions, " + sites.size() + " call sites, " + branches.size() +
+      " branches";
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // combine the per-instruction counts by source location
+  private void combine() {
+    for (Map.Entry<VMInstr,long[]> e : callInstrs.entrySet()) {
+      String source = e.getKey().source();
+      if (source != null)
+        sites.merge(source + " " + e.getKey().operand(), e.getValue()[0], Long::sum);
+    }
+    for (Map.Entry<VMInstr,long[]> e : branchInstrs.entrySet()) {
+      String source = e.getKey().source();
+      if (source != null)
+        addBranch(source, e.getValue()[0], e.getValue()[1]);
+    }
+    callInstrs.clear();
+    branchInstrs.clear();
+  }
+
+  // add to the counts of a branch
+  private void addBranch(String source, long whenTrue, long whenFalse) {
+    long[] counts = branches.computeIfAbsent(source, b -> new long[2]);
+    counts[0] += whenTrue;
+    counts[1] += whenFalse;
+    totalBranches += whenTrue + whenFalse;
+  }
+
+  // a (non-negative) count read from a profile
+  private static long count(String field) {
+    long n = Long.parseLong(field);
+    if (n < 0)
+      throw new NumberFormatException();
+    return n;
+  }
+
+  // the source location of a token, as VMInstr.source() gives it
+  private static String location(Token token) {
+    return token.line() + ":" + token.column();
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * File: ForLoop.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The operand of the counted loop instructions (FORPREP and
+ *       FORLOOP): the variable slots holding the loop counter and its
+ *       limit, the direction of the loop, and the instruction to jump
+ *       to (the loop exit for FORPREP, the start of the body for
+ *       FORLOOP).
+ */
+
+
+public class ForLoop {
+
+  // the slot of the loop variable
+  public int counter;
+
+  // the slot holding the (already evaluated) limit
+  public int limit;
+
+  // true if the counter goes up (upto), false if down (downto)
+  public final boolean upto;
+
+  // the jump target
+  public int target;
+
+
+  public ForLoop(int counter, int limit, boolean upto, int target) {
+    this.counter = counter;
+    this.limit = limit;
+    this.upto = upto;
+    this.target = target;
+  }
+
+  /**
+   * True if the counter has not passed the limit.
+   */
+  public boolean inRange(int value, int limit) {
+    return upto ? value <= limit : value >= limit;
+  }
+
+  public String toString() {
+    return counter + (upto ? " upto " : " downto ") + limit + " -> " + target;
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * File: HeapObject.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: A user-defined type object stored on the VM heap. Field values
+ *       are laid out according to the object's shape: ints, doubles,
+ *       and bools are stored unboxed in a long[] (with a bit per slot
+ *       marking nil), everything else in an Object[].
+ */
+
+
+public class HeapObject {
+
+  // the layout of the object
+  private Shape shape;
+
+  // the primitive slots (ints, doubles as raw bits, bools as 0/1)
+  private long[] prims;
+
+  // the reference slots (strings, object ids, and nil)
+  private Object[] refs;
+
+  // a set bit means the corresponding primitive slot holds nil
+  private long nils;
+
+
+  /**
+   * Create an object of the given shape. Primitive fields start out
+   * nil and reference fields start out null.
+   */
+  public HeapObject(Shape shape) {
+    this.shape = shape;
+    prims = new long[shape.primSlots()];
+    refs = new Object[shape.refSlots()];
+    nils = shape.primSlots() == Shape.MAX_PRIM_SLOTS ? -1L : (1L << shape.primSlots()) - 1;
+  }
+
+  public Shape shape() {
+    return shape;
+  }
+
+  /**
+   * Returns the (boxed) value of the field at the given position.
+   */
+  public Object get(int field) {
+    int slot = shape.slot(field);
+    if (!shape.isPrimitiveSlot(field))
+      return refs[slot];
+    if ((nils & (1L << slot)) != 0)
+      return VM.NIL_OBJ;
+    switch (shape.kind(field)) {
+      case INT:
+        return (int) prims[slot];
+      case DOUBLE:
+        return Double.longBitsToDouble(prims[slot]);
+      default:
+        return prims[slot] != 0;
+    }
+  }
+
+  /**
+   * Set the field at the given position.
+   * @param value for primitive fields an Integer, Double, Boolean, or
+   * NIL_OBJ
+   */
+  public void set(int field, Object value) {
+    int slot = shape.slot(field);
+    if (!shape.isPrimitiveSlot(field)) {
+      refs[slot] = value;
+      return;
+    }
+    if (value == VM.NIL_OBJ || value == null) {
+      nils |= 1L << slot;
+      return;
+    }
+    nils &= ~(1L << slot);
+    if (value instanceof Integer)
+      prims[slot] = (int) value;
+    else if (value instanceof Double)
+      prims[slot] = Double.doubleToRawLongBits((double) value);
+    else
+      prims[slot] = (boolean) value ? 1 : 0;
+  }
+
+  /**
+   * Returns an estimate of the bytes used by the object (assuming
+   * compressed references): the object itself plus its two slot
+   * arrays, not counting any strings it refers to.
+   */
+  public long estimatedBytes() {
+    long prim = align(16 + 8L * prims.length);
+    long ref = align(16 + 4L * refs.length);
+    return 32 + prim + ref;
+  }
+
+  // round up to the JVM's 8 byte object alignment
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  @Override
+  public String toString() {
+    String s = "{";
+    for (int i = 0; i < shape.size(); ++i)
+      s += (i > 0 ? ", " : "") + shape.field(i) + "=" + get(i);
+    return s + "}";
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * File: IRBlock.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: A basic block of the SSA intermediate representation: its phi
+ *       nodes, then straight-line instructions, ending in a single
+ *       terminator (JMP, BR, or RET).
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class IRBlock {
+
+  // the block number (for printing)
+  public final int id;
+
+  // the instructions (phi nodes first, terminator last)
+  public final List<IRInstr> instrs = new ArrayList<>();
+
+  // the blocks that can jump here (in phi operand order)
+  public final List<IRBlock> preds = new ArrayList<>();
+
+
+  public IRBlock(int id) {
+    this.id = id;
+  }
+
+  public String name() {
+    return "b" + id;
+  }
+
+  /**
+   * Add an instruction to the end of the block.
+   */
+  public IRInstr add(IRInstr instr) {
+    instr.block = this;
+    instrs.add(instr);
+    return instr;
+  }
+
+  /**
+   * Add a phi node (after the existing ones).
+   */
+  public IRInstr addPhi(IRInstr phi) {
+    phi.block = this;
+    instrs.add(phis().size(), phi);
+    return phi;
+  }
+
+  /**
+   * Remove an instruction (which must no longer be used).
+   */
+  public void remove(IRInstr instr) {
+    instr.dropOperands();
+    instrs.remove(instr);
+    instr.block = null;
+  }
+
+  /**
+   * Returns the phi nodes.
+   */
+  public List<IRInstr> phis() {
+    int n = 0;
+    while (n < instrs.size() && instrs.get(n).op == IROp.PHI)
+      ++n;
+    return instrs.subList(0, n);
+  }
+
+  /**
+   * Returns the terminator (or null if the block is not finished).
+   */
+  public IRInstr terminator() {
+    if (instrs.isEmpty())
+      return null;
+    IRInstr last = instrs.get(instrs.size() - 1);
+    return last.op.isTerminator() ? last : null;
+  }
+
+  /**
+   * Returns the blocks the terminator can continue with.
+   */
+  public List<IRBlock> succs() {
+    IRInstr last = terminator();
+    return last == null ? List.of() : last.targets;
+  }
+
+  /**
+   * Remove the edge from the given predecessor (and its phi
+   * operands).
+   */
+  public void removePred(IRBlock pred) {
+    int i = preds.indexOf(pred);
+    preds.remove(i);
+    for (IRInstr phi : phis())
+      phi.removeOperand(i);
+  }
+
+  public String toString() {
+    String s = name() + ":";
+    if (!preds.isEmpty()) {
+      s += "  ; preds";
+      for (IRBlock pred : preds)
+        s += " " + pred.name();
+    }
+    s += "\n";
+    for (IRInstr instr : instrs)
+      s += "    " + instr + "\n";
+    return s;
+  }
+
+}
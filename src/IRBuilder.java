@@ -0,0 +1,542 @@
+/*
+ * File: IRBuilder.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Builds the SSA form of each function of a (checked) program.
+ *       Variables are renamed by scope (so shadowed variables are
+ *       distinct) and SSA values are created directly while walking
+ *       the AST, following Braun et al., "Simple and Efficient
+ *       Construction of Static Single Assignment Form" (2013): a
+ *       variable read looks for the definition in the current block
+ *       and then its predecessors, adding phi nodes where control flow
+ *       merges. A loop header is "sealed" (its predecessors are known)
+ *       once its back edge is added, and the phi nodes created before
+ *       that are completed then.
+ *
+ *       Calls selected by the inliner are built in place: the callee's
+ *       returns become jumps to a block after the inlined body.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRBuilder implements Visitor {
+
+  // the user-defined type and function type information
+  private TypeInfo typeInfo;
+
+  // the type declarations (for field initializers) and object layouts
+  private Map<String,TypeDecl> typeDecls = new HashMap<>();
+  private Map<String,Shape> shapes = new HashMap<>();
+
+  // decides which calls are inlined (null if inlining is off)
+  private Inliner inliner;
+
+  // the get calls whose index is known to be in range (null if every
+  // index is checked)
+  private RangeAnalysis ranges;
+
+  // the function being built
+  private IRFunction fn;
+  private String funName;
+
+  // the block being added to (null after a return)
+  private IRBlock cur;
+
+  // the value of the expression just visited
+  private IRInstr value;
+
+  // the variables in scope (name to unique variable), innermost first
+  private Deque<Map<String,String>> scopes = new ArrayDeque<>();
+
+  // the type of each variable
+  private Map<String,String> varTypes = new HashMap<>();
+
+  // number of variables declared so far (for unique names)
+  private int vars = 0;
+
+  // the value of each variable at the end of each block so far
+  private Map<IRBlock,Map<String,IRInstr>> currentDef = new HashMap<>();
+
+  // the blocks whose predecessors are all known, and the phi nodes
+  // waiting for the predecessors of the others
+  private Set<IRBlock> sealed = new HashSet<>();
+  private Map<IRBlock,Map<String,IRInstr>> incompletePhis = new HashMap<>();
+
+  // the bodies being inlined (innermost first)
+  private Deque<InlinedCall> inlined = new ArrayDeque<>();
+
+  // Where the returns of an inlined body go.
+  private static class InlinedCall {
+    String result;
+    IRBlock exit;
+
+    InlinedCall(String result, IRBlock exit) {
+      this.result = result;
+      this.exit = exit;
+    }
+  }
+
+
+  /**
+   * Create a builder for the functions of the given program.
+   * @param program the (checked and optimized) program
+   * @param typeInfo the type information from checking the program
+   * @param inliner decides which calls to inline (null for none)
+   */
+  public IRBuilder(Program program, TypeInfo typeInfo, Inliner inliner) {
+    this.typeInfo = typeInfo;
+    this.inliner = inliner;
+    for (TypeDecl tdecl : program.tdecls)
+      typeDecls.put(tdecl.typeName.lexeme(), tdecl);
+  }
+
+  /**
+   * Skip the index check of the get calls the given analysis proves
+   * in range.
+   */
+  public void setRangeAnalysis(RangeAnalysis ranges) {
+    this.ranges = ranges;
+  }
+
+  /**
+   * Build the SSA form of a function.
+   */
+  public IRFunction build(FunDecl fdecl) throws MyPLException {
+    fdecl.accept(this);
+    return fn;
+  }
+
+  //----------------------------------------------------------------------
+  // SSA CONSTRUCTION
+  //----------------------------------------------------------------------
+
+  // declare a variable in the current scope, returning its unique name
+  private String declare(String name, String type) {
+    String var = name + "." + vars++;
+    scopes.peek().put(name, var);
+    varTypes.put(var, type);
+    return var;
+  }
+
+  // the unique name of a variable in scope
+  private String lookup(String name) {
+    for (Map<String,String> scope : scopes)
+      if (scope.containsKey(name))
+        return scope.get(name);
+    return null;
+  }
+
+  private void write(String var, IRBlock block, IRInstr val) {
+    currentDef.computeIfAbsent(block, b -> new HashMap<>()).put(var, val);
+  }
+
+  private IRInstr read(String var, IRBlock block) {
+    Map<String,IRInstr> defs = currentDef.get(block);
+    if (defs != null && defs.containsKey(var))
+      return defs.get(var);
+    IRInstr val;
+    if (!sealed.contains(block)) {
+      // the predecessors are not all known yet
+      val = block.addPhi(new IRInstr(IROp.PHI, varTypes.get(var)));
+      incompletePhis.computeIfAbsent(block, b -> new HashMap<>()).put(var, val);
+    } else if (block.preds.size() == 1) {
+      val = read(var, block.preds.get(0));
+    } else if (block.preds.isEmpty()) {
+      // (only in unreachable code)
+      val = IRInstr.constant(VM.NIL_OBJ, varTypes.get(var));
+    } else {
+      // write the phi first so reads around a loop find it
+      val = block.addPhi(new IRInstr(IROp.PHI, varTypes.get(var)));
+      write(var, block, val);
+      addPhiOperands(var, val);
+    }
+    write(var, block, val);
+    return val;
+  }
+
+  private void addPhiOperands(String var, IRInstr phi) {
+    for (IRBlock pred : phi.block.preds)
+      phi.addOperand(read(var, pred));
+  }
+
+  // all predecessors of the block have been added
+  private void seal(IRBlock block) {
+    Map<String,IRInstr> phis = incompletePhis.remove(block);
+    if (phis != null)
+      for (Map.Entry<String,IRInstr> e : phis.entrySet())
+        addPhiOperands(e.getKey(), e.getValue());
+    sealed.add(block);
+  }
+
+  private IRBlock newSealedBlock() {
+    IRBlock block = fn.newBlock();
+    sealed.add(block);
+    return block;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // add an instruction to the current block
+  private IRInstr emit(IROp op, String type, IRInstr... operands) {
+    IRInstr instr = new IRInstr(op, type);
+    for (IRInstr operand : operands)
+      instr.addOperand(operand);
+    return cur.add(instr);
+  }
+
+  private static IRInstr nil(String type) {
+    return IRInstr.constant(VM.NIL_OBJ, type);
+  }
+
+  private void statements(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts) {
+      // (the rest of the list cannot run)
+      if (cur == null)
+        return;
+      stmt.accept(this);
+    }
+  }
+
+  // build a nested block of statements in its own scope
+  private void block(List<Stmt> stmts) throws MyPLException {
+    scopes.push(new HashMap<>());
+    statements(stmts);
+    scopes.pop();
+  }
+
+  private IRInstr expr(Expr expr) throws MyPLException {
+    expr.accept(this);
+    return value;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    // functions are built one at a time (see build())
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // field initializers are built at each new
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    funName = node.funName.lexeme();
+    fn = new IRFunction(funName);
+    fn.returnType = node.returnType.lexeme();
+    currentDef.clear();
+    sealed.clear();
+    incompletePhis.clear();
+    scopes.clear();
+    scopes.push(new HashMap<>());
+    cur = newSealedBlock();
+    for (int i = 0; i < node.params.size(); i++) {
+      FunParam param = node.params.get(i);
+      String type = param.paramType.lexeme();
+      fn.paramNames.add(param.paramName.lexeme());
+      fn.paramTypes.add(type);
+      IRInstr arg = emit(IROp.PARAM, type);
+      arg.operand = i;
+      write(declare(param.paramName.lexeme(), type), cur, arg);
+    }
+    statements(node.stmts);
+    if (cur != null)
+      emit(IROp.RET, null, nil(fn.returnType));
+    scopes.pop();
+    fn.removeUnreachable();
+    fn.simplifyPhis();
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    IRInstr val = expr(node.expr);
+    String type = node.typeName != null ? node.typeName.lexeme() : val.type;
+    write(declare(node.varName.lexeme(), type), cur, val);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    IRInstr val = expr(node.expr);
+    List<Token> path = node.lvalue;
+    String var = lookup(path.get(0).lexeme());
+    if (path.size() == 1) {
+      write(var, cur, val);
+      return;
+    }
+    IRInstr obj = read(var, cur);
+    for (int i = 1; i < path.size() - 1; i++)
+      obj = field(obj, path.get(i).lexeme());
+    IRInstr set = emit(IROp.SETFLD, null, val, obj);
+    set.operand = path.get(path.size() - 1).lexeme();
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    IRBlock join = fn.newBlock();
+    List<BasicIf> branches = new ArrayList<>();
+    branches.add(node.ifPart);
+    if (node.elifs != null)
+      branches.addAll(node.elifs);
+    for (BasicIf branch : branches) {
+      IRInstr cond = expr(branch.cond);
+      IRBlock ifTrue = newSealedBlock();
+      IRBlock ifFalse = fn.newBlock();
+      IRFunction.branch(cur, cond, ifTrue, ifFalse).source = OptimizerPass.firstToken(branch.cond);
+      seal(ifFalse);
+      cur = ifTrue;
+      block(branch.stmts);
+      if (cur != null)
+        IRFunction.jump(cur, join);
+      cur = ifFalse;
+    }
+    if (node.elseStmts != null)
+      block(node.elseStmts);
+    if (cur != null)
+      IRFunction.jump(cur, join);
+    seal(join);
+    cur = join.preds.isEmpty() ? null : join;
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    IRBlock header = fn.newBlock();
+    IRFunction.jump(cur, header);
+    cur = header;
+    IRInstr cond = expr(node.cond);
+    IRBlock body = newSealedBlock();
+    IRBlock exit = fn.newBlock();
+    IRFunction.branch(cur, cond, body, exit).source = OptimizerPass.firstToken(node.cond);
+    seal(exit);
+    cur = body;
+    block(node.stmts);
+    if (cur != null)
+      IRFunction.jump(cur, header);
+    seal(header);
+    cur = exit;
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    IRInstr start = expr(node.start);
+    scopes.push(new HashMap<>());
+    String var = declare(node.varName.lexeme(), "int");
+    write(var, cur, start);
+    IRBlock header = fn.newBlock();
+    IRFunction.jump(cur, header);
+    cur = header;
+    IRInstr i = read(var, header);
+    IRInstr end = expr(node.end);
+    IRInstr cond = emit(node.upto ? IROp.CMPLE : IROp.CMPGE, "bool", i, end);
+    IRBlock body = newSealedBlock();
+    IRBlock exit = fn.newBlock();
+    IRFunction.branch(cur, cond, body, exit).source = node.varName;
+    seal(exit);
+    cur = body;
+    block(node.stmts);
+    if (cur != null) {
+      IRInstr next = emit(node.upto ? IROp.ADD : IROp.SUB, "int", read(var, cur),
+                          IRInstr.constant(1, "int"));
+      write(var, cur, next);
+      IRFunction.jump(cur, header);
+    }
+    seal(header);
+    scopes.pop();
+    cur = exit;
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    IRInstr val = node.expr == null ? nil(fn.returnType) : expr(node.expr);
+    if (inlined.isEmpty()) {
+      emit(IROp.RET, null, val);
+    } else {
+      InlinedCall call = inlined.peek();
+      write(call.result, cur, val);
+      IRFunction.jump(cur, call.exit);
+    }
+    cur = null;
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    emit(IROp.FREE, null, read(lookup(node.varName.lexeme()), cur));
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    IRInstr[] args = new IRInstr[node.args.size()];
+    for (int i = 0; i < args.length; i++)
+      args[i] = expr(node.args.get(i));
+    String name = node.funName.lexeme();
+    switch (name) {
+      case "print":
+        emit(IROp.WRITE, null, args);
+        value = nil("void");
+        return;
+      case "read": value = emit(IROp.READ, "string", args); return;
+      case "length": value = emit(IROp.LEN, "int", args); return;
+      case "get":
+        value = emit(IROp.GETCHR, "char", args);
+        value.unchecked = ranges != null && ranges.inRange(node);
+        return;
+      case "stoi": case "dtoi": value = emit(IROp.TOINT, "int", args); return;
+      case "stod": case "itod": value = emit(IROp.TODBL, "double", args); return;
+      case "itos": case "dtos": value = emit(IROp.TOSTR, "string", args); return;
+      case "setroot":
+        emit(IROp.SETROOT, null, args);
+        value = nil("void");
+        return;
+      case "getroot": value = emit(IROp.GETROOT, "void", args); return;
+      default:
+        break;
+    }
+    if (inliner != null && inliner.shouldInline(funName, node, inlined.size())) {
+      value = inline(node, args);
+      return;
+    }
+    value = emit(IROp.CALL, typeInfo.get(name, "return"), args);
+    value.operand = name;
+    value.source = node.funName;
+  }
+
+  // build the callee's body in place of the call, returning its result
+  private IRInstr inline(CallExpr node, IRInstr[] args) throws MyPLException {
+    FunDecl fun = inliner.function(node.funName.lexeme());
+    Deque<Map<String,String>> callerScopes = scopes;
+    scopes = new ArrayDeque<>();
+    scopes.push(new HashMap<>());
+    for (int i = 0; i < args.length; i++) {
+      FunParam param = fun.params.get(i);
+      write(declare(param.paramName.lexeme(), param.paramType.lexeme()), cur, args[i]);
+    }
+    String result = "$result." + vars++;
+    varTypes.put(result, fun.returnType.lexeme());
+    IRBlock exit = fn.newBlock();
+    inlined.push(new InlinedCall(result, exit));
+    statements(fun.stmts);
+    if (cur != null) {
+      write(result, cur, nil(fun.returnType.lexeme()));
+      IRFunction.jump(cur, exit);
+    }
+    inlined.pop();
+    scopes = callerScopes;
+    seal(exit);
+    // (if the body never returns, the code after the call is
+    // unreachable and removed later)
+    cur = exit;
+    inliner.inlined(funName, node);
+    return read(result, exit);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    Token token = node.value;
+    switch (token.type()) {
+      case INT_VAL:
+        value = IRInstr.constant(Integer.parseInt(token.lexeme()), "int");
+        break;
+      case DOUBLE_VAL:
+        value = IRInstr.constant(Double.parseDouble(token.lexeme()), "double");
+        break;
+      case BOOL_VAL:
+        value = IRInstr.constant(token.lexeme().equals("true"), "bool");
+        break;
+      case CHAR_VAL:
+        value = IRInstr.constant(unescape(token.lexeme()), "char");
+        break;
+      case STRING_VAL:
+        value = IRInstr.constant(unescape(token.lexeme()), "string");
+        break;
+      default:
+        value = nil("void");
+        break;
+    }
+  }
+
+  // (as the code generator expands escape sequences)
+  private static String unescape(String s) {
+    s = s.replace("\\n", "\n");
+    s = s.replace("\\t", "\t");
+    s = s.replace("\\r", "\r");
+    s = s.replace("\\\\", "\\");
+    return s;
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    String typeName = node.typeName.lexeme();
+    if (!shapes.containsKey(typeName))
+      shapes.put(typeName, Shape.of(typeInfo, typeName));
+    IRInstr obj = emit(IROp.ALLOC, typeName);
+    obj.operand = shapes.get(typeName);
+    obj.source = node.typeName;
+    for (VarDeclStmt field : typeDecls.get(typeName).vdecls) {
+      IRInstr set = emit(IROp.SETFLD, null, expr(field.expr), obj);
+      set.operand = field.varName.lexeme();
+    }
+    value = obj;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    IRInstr val = read(lookup(node.path.get(0).lexeme()), cur);
+    for (int i = 1; i < node.path.size(); i++)
+      val = field(val, node.path.get(i).lexeme());
+    value = val;
+  }
+
+  private IRInstr field(IRInstr obj, String name) {
+    IRInstr get = emit(IROp.GETFLD, typeInfo.get(obj.type, name), obj);
+    get.operand = name;
+    return get;
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    IRInstr val = expr(node.expr);
+    value = emit(IROp.NEG, val.type, val);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    IRInstr val = value;
+    if (node.op != null) {
+      IRInstr rest = expr(node.rest);
+      val = binary(node.op.lexeme(), val, rest);
+    }
+    if (node.logicallyNegated)
+      val = emit(IROp.NOT, "bool", val);
+    value = val;
+  }
+
+  private IRInstr binary(String op, IRInstr x, IRInstr y) {
+    String type = x.type != null ? x.type : y.type;
+    switch (op) {
+      case "+":
+        // (a char plus a string is a string)
+        if ("string".equals(y.type))
+          type = "string";
+        return emit(IROp.ADD, type, x, y);
+      case "-": return emit(IROp.SUB, type, x, y);
+      case "*": return emit(IROp.MUL, type, x, y);
+      case "/": return emit(IROp.DIV, type, x, y);
+      case "%": return emit(IROp.MOD, type, x, y);
+      case "and": return emit(IROp.AND, "bool", x, y);
+      case "or": return emit(IROp.OR, "bool", x, y);
+      case "<": return emit(IROp.CMPLT, "bool", x, y);
+      case "<=": return emit(IROp.CMPLE, "bool", x, y);
+      case ">": return emit(IROp.CMPGT, "bool", x, y);
+      case ">=": return emit(IROp.CMPGE, "bool", x, y);
+      case "==": return emit(IROp.CMPEQ, "bool", x, y);
+      default: return emit(IROp.CMPNE, "bool", x, y);
+    }
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * File: IRConstantPropagation.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Sparse conditional constant propagation over the SSA form
+ *       (Wegman and Zadeck, "Constant Propagation with Conditional
+ *       Branches", 1991). Values start out undefined and are only
+ *       lowered (to a constant, then to "not constant"); a block is
+ *       only looked at once an edge into it is known to be taken, so a
+ *       phi node merges just the values that can actually reach it.
+ *
+ *       Values known to be constant are replaced by the constant, and
+ *       a branch on a constant becomes a jump (the blocks that can no
+ *       longer be reached are removed by the caller). Operations are
+ *       evaluated exactly as the VM does them and never folded if they
+ *       would fail at runtime.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRConstantPropagation {
+
+  // the lattice value of a value that is not a constant
+  private static final Object NOT_CONSTANT = new Object();
+
+  // the value of each instruction reached so far (undefined if absent)
+  private Map<IRInstr,Object> values = new HashMap<>();
+
+  // the blocks that can run, and the edges (from, to) that can be taken
+  private Set<IRBlock> executable = new HashSet<>();
+  private Map<IRBlock,Set<IRBlock>> edges = new HashMap<>();
+
+  // the blocks and values to (re)visit
+  private Deque<IRBlock> blockWork = new ArrayDeque<>();
+  private Deque<IRInstr> valueWork = new ArrayDeque<>();
+
+  // number of values replaced by constants
+  private int foldCount = 0;
+
+  // number of branches replaced by jumps
+  private int branchCount = 0;
+
+
+  /**
+   * Returns the number of values replaced by constants.
+   */
+  public int foldCount() {
+    return foldCount;
+  }
+
+  /**
+   * Returns the number of conditional branches that always go the
+   * same way.
+   */
+  public int branchCount() {
+    return branchCount;
+  }
+
+  /**
+   * Propagate the constants of a function.
+   */
+  public void run(IRFunction fn) {
+    values.clear();
+    executable.clear();
+    edges.clear();
+    markEdge(null, fn.entry());
+    while (!blockWork.isEmpty() || !valueWork.isEmpty()) {
+      if (!blockWork.isEmpty()) {
+        IRBlock block = blockWork.poll();
+        for (IRInstr instr : block.instrs)
+          visit(instr);
+      } else {
+        for (IRInstr user : valueWork.poll().users)
+          if (user.block != null && executable.contains(user.block))
+            visit(user);
+      }
+    }
+    rewrite(fn);
+  }
+
+  //----------------------------------------------------------------------
+  // PROPAGATION
+  //----------------------------------------------------------------------
+
+  private void markEdge(IRBlock from, IRBlock to) {
+    if (from != null && !edges.computeIfAbsent(from, b -> new HashSet<>()).add(to))
+      return;
+    if (executable.add(to)) {
+      blockWork.add(to);
+    } else {
+      // (a new edge into a block already visited only changes its phis)
+      for (IRInstr phi : to.phis())
+        visit(phi);
+    }
+  }
+
+  private boolean isEdge(IRBlock from, IRBlock to) {
+    return edges.containsKey(from) && edges.get(from).contains(to);
+  }
+
+  private Object valueOf(IRInstr instr) {
+    return instr.isConstant() ? instr.operand : values.get(instr);
+  }
+
+  private void visit(IRInstr instr) {
+    switch (instr.op) {
+      case JMP:
+        markEdge(instr.block, instr.targets.get(0));
+        return;
+      case BR:
+        Object cond = valueOf(instr.operands.get(0));
+        if (cond == null)
+          return;
+        if (cond == NOT_CONSTANT || !(cond instanceof Boolean)) {
+          markEdge(instr.block, instr.targets.get(0));
+          markEdge(instr.block, instr.targets.get(1));
+        } else {
+          markEdge(instr.block, instr.targets.get((Boolean) cond ? 0 : 1));
+        }
+        return;
+      case PHI:
+        Object merged = null;
+        for (int i = 0; i < instr.operands.size(); i++) {
+          if (!isEdge(instr.block.preds.get(i), instr.block))
+            continue;
+          Object v = valueOf(instr.operands.get(i));
+          if (v == null)
+            continue;
+          merged = merged == null || same(merged, v) ? v : NOT_CONSTANT;
+        }
+        update(instr, merged);
+        return;
+      default:
+        if (!instr.op.isPure()) {
+          if (instr.op.hasValue())
+            update(instr, NOT_CONSTANT);
+          return;
+        }
+        List<Object> args = new ArrayList<>();
+        for (IRInstr operand : instr.operands) {
+          Object v = valueOf(operand);
+          // (wait until every operand is known)
+          if (v == null)
+            return;
+          if (v == NOT_CONSTANT) {
+            update(instr, NOT_CONSTANT);
+            return;
+          }
+          args.add(v);
+        }
+        Object result = evaluate(instr.op, args);
+        update(instr, result == null ? NOT_CONSTANT : result);
+    }
+  }
+
+  // lower the value of an instruction (values only ever go down)
+  private void update(IRInstr instr, Object v) {
+    if (v == null)
+      return;
+    Object old = values.get(instr);
+    if (old == NOT_CONSTANT || (old != null && same(old, v)))
+      return;
+    values.put(instr, old == null ? v : NOT_CONSTANT);
+    valueWork.add(instr);
+  }
+
+  private static boolean same(Object a, Object b) {
+    if (a == NOT_CONSTANT || b == NOT_CONSTANT || a == VM.NIL_OBJ || b == VM.NIL_OBJ)
+      return a == b;
+    return a.equals(b) && a.getClass() == b.getClass();
+  }
+
+  //----------------------------------------------------------------------
+  // EVALUATION
+  //----------------------------------------------------------------------
+
+  // the value the VM computes for the operation (or null if it would
+  // fail or leave no value)
+  private static Object evaluate(IROp op, List<Object> args) {
+    Object y = args.get(0);
+    Object x = args.size() > 1 ? args.get(1) : null;
+    switch (op) {
+      case NOT:
+        return y instanceof Boolean ? !(Boolean) y : null;
+      case NEG:
+        if (y instanceof Integer)
+          return -(Integer) y;
+        if (y instanceof Double)
+          return -(Double) y;
+        return null;
+      case LEN:
+        return y instanceof String ? ((String) y).length() : null;
+      case TOINT:
+        if (y instanceof Double)
+          return (int) (double) (Double) y;
+        if (y instanceof String && y != VM.NIL_OBJ) {
+          try {
+            return Integer.parseInt((String) y);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+        }
+        return null;
+      case TODBL:
+        if (y instanceof Integer)
+          return (double) (Integer) y;
+        if (y instanceof String && y != VM.NIL_OBJ) {
+          try {
+            return Double.parseDouble((String) y);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+        }
+        return null;
+      case TOSTR:
+        return y instanceof Integer || y instanceof Double ? y.toString() : null;
+      case GETCHR:
+        // (the index is pushed first)
+        if (!(y instanceof Integer) || !(x instanceof String) || x == VM.NIL_OBJ)
+          return null;
+        int index = (Integer) y;
+        String str = (String) x;
+        return index >= 0 && index < str.length() ? str.substring(index, index + 1) : null;
+      case CMPEQ:
+      case CMPNE:
+        // (only strings, ints, and doubles compare equal; nil is the
+        // string "nil" in the VM)
+        boolean equal = false;
+        if (x instanceof Double && y instanceof Double)
+          equal = (double) (Double) y == (double) (Double) x;
+        else if ((x instanceof String && y instanceof String) ||
+                 (x instanceof Integer && y instanceof Integer))
+          equal = y.equals(x);
+        return op == IROp.CMPEQ ? equal : !equal;
+      case AND:
+        return x instanceof Boolean && y instanceof Boolean ? (Boolean) y && (Boolean) x : null;
+      case OR:
+        return x instanceof Boolean && y instanceof Boolean ? (Boolean) y || (Boolean) x : null;
+      default:
+        break;
+    }
+    // the remaining operators need two non-nil operands of the same kind
+    if (x == null || x == VM.NIL_OBJ || y == VM.NIL_OBJ || x.getClass() != y.getClass())
+      return null;
+    if (x instanceof Integer)
+      return evaluate(op, (int) (Integer) y, (int) (Integer) x);
+    if (x instanceof Double)
+      return evaluate(op, (double) (Double) y, (double) (Double) x);
+    if (x instanceof String)
+      return evaluate(op, (String) y, (String) x);
+    return null;
+  }
+
+  private static Object evaluate(IROp op, int a, int b) {
+    switch (op) {
+      case ADD: return a + b;
+      case SUB: return a - b;
+      case MUL: return a * b;
+      case DIV: return b == 0 ? null : a / b;
+      case MOD: return b == 0 ? null : a % b;
+      case CMPLT: return a < b;
+      case CMPLE: return a <= b;
+      case CMPGT: return a > b;
+      case CMPGE: return a >= b;
+      default: return null;
+    }
+  }
+
+  private static Object evaluate(IROp op, double a, double b) {
+    switch (op) {
+      case ADD: return a + b;
+      case SUB: return a - b;
+      case MUL: return a * b;
+      case DIV: return a / b;
+      case CMPLT: return a < b;
+      case CMPLE: return a <= b;
+      case CMPGT: return a > b;
+      case CMPGE: return a >= b;
+      default: return null;
+    }
+  }
+
+  private static Object evaluate(IROp op, String a, String b) {
+    switch (op) {
+      case ADD: return a + b;
+      case CMPLT: return a.compareTo(b) < 0;
+      case CMPLE: return a.compareTo(b) <= 0;
+      case CMPGT: return a.compareTo(b) > 0;
+      case CMPGE: return a.compareTo(b) >= 0;
+      default: return null;
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // REWRITING
+  //----------------------------------------------------------------------
+
+  private void rewrite(IRFunction fn) {
+    for (IRBlock block : fn.blocks) {
+      if (!executable.contains(block))
+        continue;
+      for (IRInstr instr : new ArrayList<>(block.instrs)) {
+        Object v = values.get(instr);
+        if (v != null && v != NOT_CONSTANT && (instr.op == IROp.PHI || instr.op.isPure())) {
+          instr.replaceUses(IRInstr.constant(v, instr.type));
+          block.remove(instr);
+          ++foldCount;
+        }
+      }
+      IRInstr last = block.terminator();
+      if (last == null || last.op != IROp.BR)
+        continue;
+      IRBlock ifTrue = last.targets.get(0);
+      IRBlock ifFalse = last.targets.get(1);
+      boolean takesTrue = isEdge(block, ifTrue);
+      boolean takesFalse = isEdge(block, ifFalse);
+      if (takesTrue == takesFalse || ifTrue == ifFalse)
+        continue;
+      IRBlock dead = takesTrue ? ifFalse : ifTrue;
+      block.remove(last);
+      dead.removePred(block);
+      IRInstr jmp = new IRInstr(IROp.JMP, null);
+      jmp.targets.add(takesTrue ? ifTrue : ifFalse);
+      block.add(jmp);
+      ++branchCount;
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * File: IRDeadCodeEliminator.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Removes the values of a function in SSA form that nothing
+ *       needs. Starting from the instructions that must run (those
+ *       with effects, the terminators, and operations that might fail
+ *       at runtime), every value they use (directly or through other
+ *       values) is live; the rest, including phi cycles that only feed
+ *       each other, are removed.
+ *
+ *       Whether an operation can fail depends on its operands being
+ *       nil, so the values that are never nil are found first
+ *       (optimistically for phi nodes: a loop phi is non-nil unless
+ *       some value flowing into it might be nil).
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+
+public class IRDeadCodeEliminator {
+
+  // the values that are never nil
+  private Set<IRInstr> nonNil = new HashSet<>();
+
+  // number of instructions removed
+  private int removedCount = 0;
+
+
+  /**
+   * Returns the number of instructions removed.
+   */
+  public int removedCount() {
+    return removedCount;
+  }
+
+  /**
+   * Remove the unneeded values of a function.
+   */
+  public void run(IRFunction fn) {
+    nonNil = fn.nonNilValues();
+    Set<IRInstr> live = new HashSet<>();
+    Deque<IRInstr> work = new ArrayDeque<>();
+    for (IRBlock block : fn.blocks)
+      for (IRInstr instr : block.instrs)
+        if (instr.op.hasEffect() || canFail(instr))
+          work.add(instr);
+    while (!work.isEmpty()) {
+      IRInstr instr = work.poll();
+      if (instr.isConstant() || !live.add(instr))
+        continue;
+      work.addAll(instr.operands);
+    }
+    // (values first removed from their users, so no use is left dangling)
+    for (IRBlock block : fn.blocks)
+      for (IRInstr instr : block.instrs)
+        if (!live.contains(instr))
+          instr.dropOperands();
+    for (IRBlock block : fn.blocks) {
+      for (IRInstr instr : new ArrayList<>(block.instrs)) {
+        if (!live.contains(instr)) {
+          block.remove(instr);
+          ++removedCount;
+        }
+      }
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // FAILURE ANALYSIS
+  //----------------------------------------------------------------------
+
+  // true if the operation might stop the program (or, as with the
+  // negation of nil, leave the operand stack short)
+  private boolean canFail(IRInstr instr) {
+    switch (instr.op) {
+      case PHI:
+      case PARAM:
+        return false;
+      case LEN:
+      case CMPEQ:
+      case CMPNE:
+        // (defined for every value)
+        return false;
+      case DIV:
+      case MOD:
+        IRInstr divisor = instr.operands.get(1);
+        if (!divisor.isConstant() || isZero(divisor.operand))
+          return true;
+        return !isNonNil(instr.operands.get(0));
+      case GETCHR:
+        // (the index of an unchecked one is a loop counter in range)
+        return !instr.unchecked;
+      case TOINT:
+      case TODBL:
+        // (the index or string may not be valid)
+        return true;
+      default:
+        for (IRInstr operand : instr.operands)
+          if (!isNonNil(operand))
+            return true;
+        return false;
+    }
+  }
+
+  private boolean isNonNil(IRInstr value) {
+    return nonNil.contains(value) || IRFunction.isNonNilConstant(value);
+  }
+
+  private static boolean isZero(Object value) {
+    return value == VM.NIL_OBJ || Integer.valueOf(0).equals(value) ||
+      Double.valueOf(0.0).equals(value);
+  }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * File: IRFunction.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: A function in the SSA intermediate representation: a control
+ *       flow graph of basic blocks (the first is the entry) in which
+ *       every value is defined exactly once. Also provides the graph
+ *       utilities shared by the IR passes (block orders, dominators,
+ *       the values that are never nil, and clean up after edges are
+ *       removed).
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRFunction {
+
+  // the function name
+  public final String name;
+
+  // the parameter names and types
+  public final List<String> paramNames = new ArrayList<>();
+  public final List<String> paramTypes = new ArrayList<>();
+
+  // the return type
+  public String returnType;
+
+  // the blocks (the entry block first)
+  public final List<IRBlock> blocks = new ArrayList<>();
+
+  // the next block number
+  private int nextBlock = 0;
+
+
+  public IRFunction(String name) {
+    this.name = name;
+  }
+
+  public IRBlock entry() {
+    return blocks.get(0);
+  }
+
+  /**
+   * Add a new (empty) block.
+   */
+  public IRBlock newBlock() {
+    IRBlock block = new IRBlock(nextBlock++);
+    blocks.add(block);
+    return block;
+  }
+
+  /**
+   * End a block with a jump to the target.
+   */
+  public static void jump(IRBlock from, IRBlock to) {
+    IRInstr jmp = new IRInstr(IROp.JMP, null);
+    jmp.targets.add(to);
+    from.add(jmp);
+    to.preds.add(from);
+  }
+
+  /**
+   * End a block with a conditional branch (returning the branch).
+   */
+  public static IRInstr branch(IRBlock from, IRInstr cond, IRBlock ifTrue, IRBlock ifFalse) {
+    IRInstr br = new IRInstr(IROp.BR, null);
+    br.addOperand(cond);
+    br.targets.add(ifTrue);
+    br.targets.add(ifFalse);
+    from.add(br);
+    ifTrue.preds.add(from);
+    ifFalse.preds.add(from);
+    return br;
+  }
+
+  //----------------------------------------------------------------------
+  // BLOCK ORDERS AND DOMINATORS
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the blocks reachable from the entry in reverse postorder
+   * (every block comes before its successors, except along back
+   * edges). The successors of a block are visited last to first, so
+   * the first target of a branch tends to come right after it.
+   */
+  public List<IRBlock> reversePostorder() {
+    List<IRBlock> order = new ArrayList<>();
+    Set<IRBlock> visited = new HashSet<>();
+    // iterative depth-first search (a block is added after all of its
+    // successors)
+    List<IRBlock> stack = new ArrayList<>();
+    List<Integer> next = new ArrayList<>();
+    stack.add(entry());
+    next.add(0);
+    visited.add(entry());
+    while (!stack.isEmpty()) {
+      int top = stack.size() - 1;
+      IRBlock block = stack.get(top);
+      List<IRBlock> succs = block.succs();
+      int i = next.get(top);
+      if (i < succs.size()) {
+        next.set(top, i + 1);
+        IRBlock succ = succs.get(succs.size() - 1 - i);
+        if (visited.add(succ)) {
+          stack.add(succ);
+          next.add(0);
+        }
+      } else {
+        order.add(0, block);
+        stack.remove(top);
+        next.remove(top);
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Returns the immediate dominator of each reachable block (the entry
+   * maps to itself), using the Cooper-Harvey-Kennedy algorithm.
+   */
+  public Map<IRBlock,IRBlock> dominators() {
+    List<IRBlock> order = reversePostorder();
+    Map<IRBlock,Integer> index = new HashMap<>();
+    for (int i = 0; i < order.size(); i++)
+      index.put(order.get(i), i);
+    Map<IRBlock,IRBlock> idom = new HashMap<>();
+    idom.put(entry(), entry());
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (IRBlock block : order.subList(1, order.size())) {
+        IRBlock dom = null;
+        for (IRBlock pred : block.preds) {
+          if (!idom.containsKey(pred))
+            continue;
+          dom = dom == null ? pred : intersect(pred, dom, idom, index);
+        }
+        if (dom != idom.get(block)) {
+          idom.put(block, dom);
+          changed = true;
+        }
+      }
+    }
+    return idom;
+  }
+
+  private static IRBlock intersect(IRBlock a, IRBlock b, Map<IRBlock,IRBlock> idom,
+                                   Map<IRBlock,Integer> index) {
+    while (a != b) {
+      while (index.get(a) > index.get(b))
+        a = idom.get(a);
+      while (index.get(b) > index.get(a))
+        b = idom.get(b);
+    }
+    return a;
+  }
+
+  //----------------------------------------------------------------------
+  // VALUES
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the values that are never nil, assuming every phi node is
+   * until one of its operands might be (optimistically, so a loop phi
+   * is non-nil unless some value flowing into it might be nil).
+   */
+  public Set<IRInstr> nonNilValues() {
+    Set<IRInstr> nonNil = new HashSet<>();
+    for (IRBlock block : blocks)
+      for (IRInstr instr : block.instrs)
+        if (instr.op == IROp.PHI || producesNonNil(instr.op))
+          nonNil.add(instr);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (IRBlock block : blocks) {
+        for (IRInstr phi : block.phis()) {
+          if (!nonNil.contains(phi))
+            continue;
+          for (IRInstr value : phi.operands) {
+            if (!nonNil.contains(value) && !isNonNilConstant(value)) {
+              nonNil.remove(phi);
+              changed = true;
+              break;
+            }
+          }
+        }
+      }
+    }
+    return nonNil;
+  }
+
+  /**
+   * True if the value is a constant other than nil.
+   */
+  public static boolean isNonNilConstant(IRInstr value) {
+    return value.isConstant() && value.operand != VM.NIL_OBJ;
+  }
+
+  // true if the operation's result (if it has one) is never nil
+  private static boolean producesNonNil(IROp op) {
+    switch (op) {
+      case PARAM: case CALL: case GETFLD: case GETROOT:
+        return false;
+      default:
+        return op.hasValue();
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // CLEAN UP
+  //----------------------------------------------------------------------
+
+  /**
+   * Remove the blocks that cannot be reached from the entry, returning
+   * the number removed.
+   */
+  public int removeUnreachable() {
+    Set<IRBlock> reachable = new HashSet<>(reversePostorder());
+    List<IRBlock> dead = new ArrayList<>();
+    for (IRBlock block : blocks)
+      if (!reachable.contains(block))
+        dead.add(block);
+    for (IRBlock block : dead) {
+      for (IRBlock succ : block.succs())
+        if (reachable.contains(succ))
+          succ.removePred(block);
+      for (IRInstr instr : block.instrs)
+        instr.dropOperands();
+    }
+    // values defined in dead blocks can only be used in dead blocks
+    blocks.removeAll(dead);
+    return dead.size();
+  }
+
+  /**
+   * Remove phi nodes whose operands are all the same value (or the phi
+   * itself), returning the number removed.
+   */
+  public int simplifyPhis() {
+    int removed = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (IRBlock block : blocks) {
+        for (IRInstr phi : new ArrayList<>(block.phis())) {
+          IRInstr same = trivialValue(phi);
+          if (same == null)
+            continue;
+          phi.replaceUses(same);
+          block.remove(phi);
+          ++removed;
+          changed = true;
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * The value a phi node always has (or null if it merges different
+   * values).
+   */
+  public static IRInstr trivialValue(IRInstr phi) {
+    IRInstr same = null;
+    for (IRInstr value : phi.operands) {
+      if (value == phi || value == same ||
+          (same != null && value.isConstant() && same.isConstant() &&
+           sameConstant(value, same)))
+        continue;
+      if (same != null)
+        return null;
+      same = value;
+    }
+    return same;
+  }
+
+  /**
+   * True if two constants have the same VM value.
+   */
+  public static boolean sameConstant(IRInstr a, IRInstr b) {
+    if (a.operand == VM.NIL_OBJ || b.operand == VM.NIL_OBJ)
+      return a.operand == b.operand;
+    return a.operand.equals(b.operand) && a.operand.getClass() == b.operand.getClass();
+  }
+
+  /**
+   * Put an empty block on every edge from a block with several
+   * successors to a block with several predecessors (so there is a
+   * place for the copies that implement phi nodes on that edge).
+   */
+  public void splitCriticalEdges() {
+    for (IRBlock block : new ArrayList<>(blocks)) {
+      IRInstr last = block.terminator();
+      if (last == null || last.targets.size() < 2)
+        continue;
+      for (int i = 0; i < last.targets.size(); i++) {
+        IRBlock succ = last.targets.get(i);
+        if (succ.preds.size() < 2)
+          continue;
+        IRBlock middle = newBlock();
+        last.targets.set(i, middle);
+        middle.preds.add(block);
+        IRInstr jmp = new IRInstr(IROp.JMP, null);
+        jmp.targets.add(succ);
+        middle.add(jmp);
+        succ.preds.set(succ.preds.indexOf(block), middle);
+      }
+    }
+  }
+
+  /**
+   * Number the values in block order (for printing).
+   */
+  public void number() {
+    int id = 0;
+    for (IRBlock block : blocks)
+      for (IRInstr instr : block.instrs)
+        if (instr.op.hasValue())
+          instr.id = id++;
+  }
+
+  public String toString() {
+    number();
+    String s = "function " + returnType + " " + name + "(";
+    for (int i = 0; i < paramNames.size(); i++)
+      s += (i > 0 ? ", " : "") + paramTypes.get(i) + " " + paramNames.get(i);
+    s += ")\n";
+    for (IRBlock block : blocks)
+      s += "  " + block;
+    return s;
+  }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * File: IRInstr.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: An instruction of the SSA intermediate representation. An
+ *       instruction that produces a value is also the (single)
+ *       definition of that value, so operands are the instructions
+ *       whose values are used. Each instruction keeps track of the
+ *       instructions that use it.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class IRInstr {
+
+  // the operation
+  public final IROp op;
+
+  // the values used (in evaluation order)
+  public final List<IRInstr> operands = new ArrayList<>();
+
+  // the instructions using this value
+  public final List<IRInstr> users = new ArrayList<>();
+
+  // the constant (CONST), parameter index (PARAM), function name
+  // (CALL), field name (GETFLD, SETFLD), or shape (ALLOC)
+  public Object operand;
+
+  // the MyPL type of the value (null if there is no value)
+  public String type;
+
+  // the block the instruction is in (null for constants)
+  public IRBlock block;
+
+  // the target blocks of a JMP or BR
+  public final List<IRBlock> targets = new ArrayList<>();
+
+  // the value number (for printing)
+  public int id;
+
+  // the source token (for new, calls, and branches)
+  public Token source;
+
+  // true if the operation's runtime checks are known to pass (see
+  // RangeAnalysis)
+  public boolean unchecked = false;
+
+
+  public IRInstr(IROp op, String type) {
+    this.op = op;
+    this.type = type;
+  }
+
+  /**
+   * Create a constant.
+   * @param value the constant's VM value (VM.NIL_OBJ for nil)
+   * @param type the constant's MyPL type
+   */
+  public static IRInstr constant(Object value, String type) {
+    IRInstr c = new IRInstr(IROp.CONST, type);
+    c.operand = value;
+    return c;
+  }
+
+  /**
+   * Add an operand (recording this instruction as a user).
+   */
+  public void addOperand(IRInstr value) {
+    operands.add(value);
+    value.users.add(this);
+  }
+
+  /**
+   * Replace the i-th operand.
+   */
+  public void setOperand(int i, IRInstr value) {
+    operands.get(i).users.remove(this);
+    operands.set(i, value);
+    value.users.add(this);
+  }
+
+  /**
+   * Remove the i-th operand.
+   */
+  public void removeOperand(int i) {
+    operands.remove(i).users.remove(this);
+  }
+
+  /**
+   * Remove every operand (when the instruction is deleted).
+   */
+  public void dropOperands() {
+    for (IRInstr value : operands)
+      value.users.remove(this);
+    operands.clear();
+  }
+
+  /**
+   * Make every user of this value use the given value instead.
+   */
+  public void replaceUses(IRInstr value) {
+    for (IRInstr user : new ArrayList<>(users))
+      for (int i = 0; i < user.operands.size(); i++)
+        if (user.operands.get(i) == this)
+          user.setOperand(i, value);
+  }
+
+  public boolean isConstant() {
+    return op == IROp.CONST;
+  }
+
+  /**
+   * The operand as it appears in a dump (constants are written out).
+   */
+  public String name() {
+    if (op != IROp.CONST)
+      return "%" + id;
+    if (operand == VM.NIL_OBJ)
+      return "nil";
+    if (operand instanceof String)
+      return "\"" + escape((String) operand) + "\"";
+    return operand.toString();
+  }
+
+  public String toString() {
+    String s = "";
+    if (op.hasValue())
+      s += name() + " " + type + " = ";
+    s += op.toString().toLowerCase();
+    if (unchecked)
+      s += ".unchecked";
+    if (op == IROp.PHI) {
+      for (int i = 0; i < operands.size(); i++)
+        s += (i == 0 ? " " : ", ") + "[" + operands.get(i).name() + ", " +
+          block.preds.get(i).name() + "]";
+      return s;
+    }
+    List<String> parts = new ArrayList<>();
+    if (operand != null && op != IROp.CONST)
+      parts.add(operand instanceof Shape ? type : operand.toString());
+    for (IRInstr value : operands)
+      parts.add(value.name());
+    for (IRBlock target : targets)
+      parts.add(target.name());
+    if (!parts.isEmpty())
+      s += " " + String.join(", ", parts);
+    return s;
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\t", "\\t")
+      .replace("\r", "\\r").replace("\"", "\\\"");
+  }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * File: IRLowering.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Translates a function in SSA form into a VM frame. Blocks are
+ *       laid out in reverse postorder (so most jumps fall through). A
+ *       value used once, right after it is computed, is left on the
+ *       operand stack for its user (so expression trees come out as
+ *       they would from the code generator); every other value gets a
+ *       variable slot. Constants are pushed where they are used.
+ *
+ *       Phi nodes become copies at the end of each predecessor. All of
+ *       the incoming values are pushed before any phi slot is stored,
+ *       so phis that use each other's values (e.g., a swap in a loop)
+ *       copy correctly.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRLowering {
+
+  // the function being lowered and its frame
+  private IRFunction fn;
+  private VMFrame frame;
+
+  // the slot of each value kept in a variable
+  private Map<IRInstr,Integer> slots = new HashMap<>();
+
+  // the values computed on the operand stack for their (only) user
+  private Set<IRInstr> stacked = new HashSet<>();
+
+  // the first instruction of each block, and the jumps to patch
+  private Map<IRBlock,Integer> starts = new HashMap<>();
+  private Map<VMInstr,IRBlock> jumps = new HashMap<>();
+
+
+  private IRLowering(IRFunction fn) {
+    this.fn = fn;
+  }
+
+  /**
+   * Create the VM frame for a function.
+   */
+  public static VMFrame lower(IRFunction fn) {
+    return new IRLowering(fn).lower();
+  }
+
+  private VMFrame lower() {
+    fn.splitCriticalEdges();
+    frame = new VMFrame(fn.name, fn.paramNames.size());
+    List<IRBlock> order = fn.reversePostorder();
+    // the arguments are on the operand stack (the first on top)
+    int params = fn.paramNames.size();
+    for (int i = 0; i < params; i++)
+      frame.instructions.add(VMInstr.STORE(i));
+    for (IRBlock block : order)
+      findStacked(block);
+    assignSlots(order, params);
+    for (int i = 0; i < order.size(); i++)
+      lower(order.get(i), i + 1 < order.size() ? order.get(i + 1) : null);
+    for (Map.Entry<VMInstr,IRBlock> e : jumps.entrySet())
+      e.getKey().updateOperand(starts.get(e.getValue()));
+    return frame;
+  }
+
+  //----------------------------------------------------------------------
+  // STACK AND SLOT ASSIGNMENT
+  //----------------------------------------------------------------------
+
+  // find the values that can stay on the operand stack: working back
+  // from each instruction, an operand is left on the stack if it is
+  // used only there and is computed just before (after the operands
+  // to its right)
+  private void findStacked(IRBlock block) {
+    List<IRInstr> instrs = block.instrs;
+    for (int i = instrs.size() - 1; i >= 0; i--) {
+      IRInstr instr = instrs.get(i);
+      if (instr.op != IROp.PHI && !stacked.contains(instr))
+        claim(instrs, instr, i - 1);
+    }
+  }
+
+  // returns the position before the instruction's stacked operands
+  private int claim(List<IRInstr> instrs, IRInstr user, int pos) {
+    for (int k = user.operands.size() - 1; k >= 0; k--) {
+      IRInstr value = user.operands.get(k);
+      if (pos >= 0 && instrs.get(pos) == value && value.op != IROp.PHI &&
+          value.op != IROp.PARAM && value.users.size() == 1) {
+        stacked.add(value);
+        pos = claim(instrs, value, pos - 1);
+      }
+    }
+    return pos;
+  }
+
+  // give each value that is not stacked (or a constant) a slot; the
+  // parameters are in the first slots
+  private void assignSlots(List<IRBlock> order, int params) {
+    int next = params;
+    for (IRBlock block : order) {
+      for (IRInstr instr : block.instrs) {
+        if (instr.op == IROp.PARAM)
+          slots.put(instr, (int) instr.operand);
+        else if (instr.op.hasValue() && !stacked.contains(instr) && !instr.users.isEmpty())
+          slots.put(instr, next++);
+      }
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // INSTRUCTIONS
+  //----------------------------------------------------------------------
+
+  private void lower(IRBlock block, IRBlock next) {
+    starts.put(block, frame.instructions.size());
+    for (IRInstr instr : block.instrs) {
+      if (instr.op == IROp.PHI || instr.op == IROp.PARAM || stacked.contains(instr))
+        continue;
+      switch (instr.op) {
+        case JMP:
+          IRBlock target = instr.targets.get(0);
+          copyPhis(block, target);
+          if (target != next)
+            jump(VMInstr.JMP(-1), target);
+          break;
+        case BR:
+          push(instr.operands.get(0));
+          VMInstr jmpf = VMInstr.JMPF(-1);
+          if (instr.source != null)
+            jmpf.setSource(instr.source);
+          jump(jmpf, instr.targets.get(1));
+          if (instr.targets.get(0) != next)
+            jump(VMInstr.JMP(-1), instr.targets.get(0));
+          break;
+        case RET:
+          push(instr.operands.get(0));
+          add(VMInstr.VRET());
+          break;
+        default:
+          compute(instr);
+          if (slots.containsKey(instr))
+            add(VMInstr.STORE(slots.get(instr)));
+          else if (instr.op.hasValue())
+            add(VMInstr.POP());
+          break;
+      }
+    }
+  }
+
+  // copy the values the target's phis take from this block
+  private void copyPhis(IRBlock block, IRBlock target) {
+    List<IRInstr> phis = target.phis();
+    if (phis.isEmpty())
+      return;
+    int pred = target.preds.indexOf(block);
+    for (IRInstr phi : phis)
+      push(phi.operands.get(pred));
+    for (int i = phis.size() - 1; i >= 0; i--) {
+      Integer slot = slots.get(phis.get(i));
+      add(slot == null ? VMInstr.POP() : VMInstr.STORE(slot));
+    }
+  }
+
+  // push a value onto the operand stack
+  private void push(IRInstr value) {
+    if (value.isConstant())
+      add(VMInstr.PUSH(value.operand));
+    else if (stacked.contains(value))
+      compute(value);
+    else
+      add(VMInstr.LOAD(slots.get(value)));
+  }
+
+  // push the instruction's operands and do the operation
+  private void compute(IRInstr instr) {
+    for (IRInstr operand : instr.operands)
+      push(operand);
+    switch (instr.op) {
+      case CALL:
+        VMInstr call = VMInstr.CALL((String) instr.operand);
+        if (instr.source != null)
+          call.setSource(instr.source);
+        add(call);
+        break;
+      case ALLOC:
+        VMInstr alloc = VMInstr.ALLOC((Shape) instr.operand);
+        alloc.setSource(instr.source);
+        add(alloc);
+        break;
+      case GETFLD:
+        VMInstr getfld = VMInstr.GETFLD((String) instr.operand);
+        if (instr.unchecked)
+          getfld.setUnchecked();
+        add(getfld);
+        break;
+      case SETFLD:
+        // (the value is computed before the object)
+        add(VMInstr.SWAP());
+        add(VMInstr.SETFLD((String) instr.operand));
+        break;
+      default:
+        VMInstr vmInstr = new VMInstr(instr.op.opcode());
+        if (instr.unchecked)
+          vmInstr.setUnchecked();
+        add(vmInstr);
+        break;
+    }
+  }
+
+  private void add(VMInstr instr) {
+    frame.instructions.add(instr);
+  }
+
+  private void jump(VMInstr instr, IRBlock target) {
+    jumps.put(instr, target);
+    add(instr);
+  }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * File: IRNilCheckEliminator.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Marks the operations of a function in SSA form whose runtime
+ *       checks always pass as unchecked (see VMInstr.setUnchecked):
+ *       arithmetic and not whose operands cannot be nil, and field
+ *       reads of an object that cannot have been deleted.
+ *
+ *       The blocks are visited in dominator tree order, so a fact
+ *       found in a block holds in the blocks it dominates. A value is
+ *       known not to be nil if it is never nil (see
+ *       IRFunction.nonNilValues), if an operation that checks it (or
+ *       reads a field of it) has already run, or if the block is only
+ *       entered through a branch on x != nil (or the false side of
+ *       x == nil). An object is known to exist after it is allocated
+ *       or one of its fields is read, until the end of the block or
+ *       something that could delete it (a call, free, or setroot).
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRNilCheckEliminator {
+
+  // the values that are never nil (in the current function)
+  private Set<IRInstr> nonNil = new HashSet<>();
+
+  // the children of each block in the dominator tree
+  private Map<IRBlock,List<IRBlock>> children;
+
+  // number of checked operations, and those marked unchecked
+  private int checkCount = 0;
+  private int uncheckedCount = 0;
+
+
+  /**
+   * Returns the number of operations with a nil or field check.
+   */
+  public int checkCount() {
+    return checkCount;
+  }
+
+  /**
+   * Returns the number of operations marked unchecked.
+   */
+  public int uncheckedCount() {
+    return uncheckedCount;
+  }
+
+  /**
+   * Mark the operations of a function whose checks always pass.
+   */
+  public void run(IRFunction fn) {
+    nonNil = fn.nonNilValues();
+    Map<IRBlock,IRBlock> idom = fn.dominators();
+    children = new HashMap<>();
+    for (IRBlock block : fn.reversePostorder())
+      if (block != fn.entry())
+        children.computeIfAbsent(idom.get(block), b -> new ArrayList<>()).add(block);
+    visit(fn.entry(), new HashSet<>());
+  }
+
+  // visit a block given the values known not to be nil where it starts
+  // (through its dominators)
+  private void visit(IRBlock block, Set<IRInstr> dominating) {
+    Set<IRInstr> known = new HashSet<>(dominating);
+    known.addAll(guarded(block));
+    Set<IRInstr> live = new HashSet<>();
+    for (IRInstr instr : block.instrs) {
+      switch (instr.op) {
+        case ADD: case SUB: case MUL: case DIV: case MOD: case NOT:
+          check(instr, allNonNil(instr.operands, known));
+          // (the program stops if one is nil)
+          for (IRInstr operand : instr.operands)
+            if (!operand.isConstant())
+              known.add(operand);
+          break;
+        case GETFLD:
+          IRInstr obj = instr.operands.get(0);
+          check(instr, live.contains(obj));
+          known.add(obj);
+          live.add(obj);
+          break;
+        case ALLOC:
+          live.add(instr);
+          break;
+        case CALL: case FREE: case SETROOT:
+          live.clear();
+          break;
+        default:
+          break;
+      }
+    }
+    for (IRBlock child : children.getOrDefault(block, List.of()))
+      visit(child, known);
+  }
+
+  private void check(IRInstr instr, boolean unchecked) {
+    ++checkCount;
+    instr.unchecked = unchecked;
+    if (unchecked)
+      ++uncheckedCount;
+  }
+
+  private boolean allNonNil(List<IRInstr> values, Set<IRInstr> known) {
+    for (IRInstr value : values)
+      if (!known.contains(value) && !nonNil.contains(value) &&
+          !IRFunction.isNonNilConstant(value))
+        return false;
+    return true;
+  }
+
+  // the values not nil on entry to a block because its only way in is
+  // one side of a branch
+  private static Set<IRInstr> guarded(IRBlock block) {
+    Set<IRInstr> values = new HashSet<>();
+    if (block.preds.size() != 1)
+      return values;
+    IRInstr br = block.preds.get(0).terminator();
+    if (br == null || br.op != IROp.BR || br.targets.get(0) == br.targets.get(1))
+      return values;
+    guarded(br.operands.get(0), br.targets.get(0) == block, values);
+    return values;
+  }
+
+  // add the values the condition having the given value shows are not
+  // nil
+  private static void guarded(IRInstr cond, boolean value, Set<IRInstr> values) {
+    if (cond.op == IROp.NOT) {
+      guarded(cond.operands.get(0), !value, values);
+    } else if ((cond.op == IROp.AND && value) || (cond.op == IROp.OR && !value)) {
+      guarded(cond.operands.get(0), value, values);
+      guarded(cond.operands.get(1), value, values);
+    } else if ((cond.op == IROp.CMPNE && value) || (cond.op == IROp.CMPEQ && !value)) {
+      // x != nil (only true for a value that is not nil)
+      IRInstr x = cond.operands.get(0);
+      IRInstr y = cond.operands.get(1);
+      if (isNil(y) && !x.isConstant())
+        values.add(x);
+      else if (isNil(x) && !y.isConstant())
+        values.add(y);
+    }
+  }
+
+  private static boolean isNil(IRInstr value) {
+    return value.isConstant() && value.operand == VM.NIL_OBJ;
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * File: IROp.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The operations of the SSA intermediate representation. Most
+ *       correspond directly to a VM opcode (and have the VM's
+ *       semantics); the rest describe values (constants, parameters,
+ *       and phi nodes) and control flow between basic blocks.
+ */
+
+
+public enum IROp {
+
+  // values
+  CONST,        // a constant (not placed in a block)
+  PARAM,        // the i-th argument of the function
+  PHI,          // one operand per predecessor block
+
+  // ops (operands in evaluation order)
+  ADD, SUB, MUL, DIV, MOD,
+  AND, OR, NOT, NEG,
+  CMPLT, CMPLE, CMPGT, CMPGE, CMPEQ, CMPNE,
+
+  // calls and built-ins
+  CALL,         // call the named function with the operands
+  WRITE,        // write x to stdout
+  READ,         // read a line from stdin
+  LEN, GETCHR, TOINT, TODBL, TOSTR,
+
+  // heap
+  ALLOC,        // allocate an object of the given shape
+  FREE,         // deallocate object x
+  GETFLD,       // the named field of object x
+  SETFLD,       // set the named field of object y to x (operands x, y)
+  SETROOT,      // set the named root y to object x (operands y, x)
+  GETROOT,      // the object stored as root x
+
+  // block terminators
+  JMP,          // continue with the target block
+  BR,           // continue with the first target if x, else the second
+  RET           // return x from the function
+  ;
+
+  /**
+   * True if the operation produces a value.
+   */
+  public boolean hasValue() {
+    switch (this) {
+      case WRITE: case FREE: case SETFLD: case SETROOT:
+      case JMP: case BR: case RET:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * True if the operation ends a basic block.
+   */
+  public boolean isTerminator() {
+    return this == JMP || this == BR || this == RET;
+  }
+
+  /**
+   * True if the operation does something besides compute its value
+   * (or reads state that other operations change).
+   */
+  public boolean hasEffect() {
+    switch (this) {
+      case CALL: case WRITE: case READ: case ALLOC: case FREE:
+      case GETFLD: case SETFLD: case SETROOT: case GETROOT:
+        return true;
+      default:
+        return isTerminator();
+    }
+  }
+
+  /**
+   * True if the operation's value depends only on its operands (so two
+   * with the same operands compute the same value).
+   */
+  public boolean isPure() {
+    return this != CONST && this != PARAM && this != PHI && !hasEffect();
+  }
+
+  /**
+   * The VM opcode for the operation (null if it has none).
+   */
+  public OpCode opcode() {
+    switch (this) {
+      case ADD: return OpCode.ADD;
+      case SUB: return OpCode.SUB;
+      case MUL: return OpCode.MUL;
+      case DIV: return OpCode.DIV;
+      case MOD: return OpCode.MOD;
+      case AND: return OpCode.AND;
+      case OR: return OpCode.OR;
+      case NOT: return OpCode.NOT;
+      case NEG: return OpCode.NEG;
+      case CMPLT: return OpCode.CMPLT;
+      case CMPLE: return OpCode.CMPLE;
+      case CMPGT: return OpCode.CMPGT;
+      case CMPGE: return OpCode.CMPGE;
+      case CMPEQ: return OpCode.CMPEQ;
+      case CMPNE: return OpCode.CMPNE;
+      case WRITE: return OpCode.WRITE;
+      case READ: return OpCode.READ;
+      case LEN: return OpCode.LEN;
+      case GETCHR: return OpCode.GETCHR;
+      case TOINT: return OpCode.TOINT;
+      case TODBL: return OpCode.TODBL;
+      case TOSTR: return OpCode.TOSTR;
+      case FREE: return OpCode.FREE;
+      case SETROOT: return OpCode.SETROOT;
+      case GETROOT: return OpCode.GETROOT;
+      default: return null;
+    }
+  }
+
+}
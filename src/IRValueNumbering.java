@@ -0,0 +1,134 @@
+/*
+ * File: IRValueNumbering.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Global value numbering over the SSA form. Walking the
+ *       dominator tree, a pure operation with the same operands as
+ *       one in a dominating block (or earlier in the same block) is
+ *       replaced by that earlier value. Since each SSA value has one
+ *       definition, this also finds repeated computations across
+ *       blocks and loops that the AST-level (per block) pass cannot.
+ *
+ *       The operands of commutative int, double, and bool operators
+ *       are put in a fixed order first (so a + b and b + a match), and
+ *       constants match by value. Phi nodes in the same block with the
+ *       same operands are merged as well.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class IRValueNumbering {
+
+  // the value number of each instruction
+  private Map<IRInstr,Integer> numbers = new HashMap<>();
+
+  // the available value for each key (in the dominating blocks)
+  private Map<String,IRInstr> available = new HashMap<>();
+
+  // the children of each block in the dominator tree
+  private Map<IRBlock,List<IRBlock>> children = new HashMap<>();
+
+  // number of values replaced by an earlier one
+  private int reuseCount = 0;
+
+
+  /**
+   * Returns the number of values replaced by an equal earlier value.
+   */
+  public int reuseCount() {
+    return reuseCount;
+  }
+
+  /**
+   * Number the values of a function, removing redundant ones.
+   */
+  public void run(IRFunction fn) {
+    numbers.clear();
+    available.clear();
+    children.clear();
+    Map<IRBlock,IRBlock> idom = fn.dominators();
+    for (IRBlock block : fn.reversePostorder())
+      if (block != fn.entry())
+        children.computeIfAbsent(idom.get(block), b -> new ArrayList<>()).add(block);
+    visit(fn.entry());
+  }
+
+  private void visit(IRBlock block) {
+    List<String> added = new ArrayList<>();
+    for (IRInstr instr : new ArrayList<>(block.instrs)) {
+      String key = key(instr);
+      if (key == null) {
+        number(instr);
+        continue;
+      }
+      IRInstr same = available.get(key);
+      if (same != null) {
+        instr.replaceUses(same);
+        block.remove(instr);
+        ++reuseCount;
+      } else {
+        number(instr);
+        available.put(key, instr);
+        added.add(key);
+      }
+    }
+    for (IRBlock child : children.getOrDefault(block, List.of()))
+      visit(child);
+    // (the values are only available in the blocks this one dominates)
+    for (String key : added)
+      available.remove(key);
+  }
+
+  private void number(IRInstr instr) {
+    numbers.put(instr, numbers.size());
+  }
+
+  // the key of a pure operation or phi (or null if it cannot be
+  // replaced by an equal value)
+  private String key(IRInstr instr) {
+    if (instr.op != IROp.PHI && !instr.op.isPure())
+      return null;
+    List<String> operands = new ArrayList<>();
+    for (IRInstr operand : instr.operands) {
+      String operandKey = operandKey(operand);
+      // (a phi can use a value not numbered yet, along a back edge)
+      if (operandKey == null)
+        return null;
+      operands.add(operandKey);
+    }
+    if (isCommutative(instr) && operands.get(0).compareTo(operands.get(1)) > 0)
+      operands.add(operands.remove(0));
+    String key = instr.op + " " + instr.type + " " + String.join(" ", operands);
+    // (phis are only the same in the same block)
+    if (instr.op == IROp.PHI)
+      key += " in " + instr.block.id;
+    return key;
+  }
+
+  private String operandKey(IRInstr operand) {
+    if (!operand.isConstant())
+      return numbers.containsKey(operand) ? "%" + numbers.get(operand) : null;
+    if (operand.operand == VM.NIL_OBJ)
+      return "nil";
+    // (the length keeps strings with spaces apart)
+    String value = operand.operand.toString();
+    return operand.operand.getClass().getSimpleName() + value.length() + ":" + value;
+  }
+
+  private static boolean isCommutative(IRInstr instr) {
+    switch (instr.op) {
+      case ADD: case MUL:
+        // (string concatenation is not)
+        return "int".equals(instr.type) || "double".equals(instr.type);
+      case AND: case OR: case CMPEQ: case CMPNE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+}
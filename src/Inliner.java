@@ -0,0 +1,152 @@
+/*
+ * File: Inliner.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Decides which calls the code generator splices inline. A call
+ *       is inlined if the callee is a (user-defined) function other
+ *       than main, cannot reach itself through calls, and has a body
+ *       no larger than the size budget (measured in AST nodes). Keeps
+ *       track of the calls that were inlined for the optimization
+ *       report. Functions may be generated in parallel (see
+ *       CodeGenerator), so the inlined calls are kept per caller and
+ *       reported in declaration order.
+ *
+ *       Given a profile (see ExecutionProfile), calls that never ran
+ *       are not inlined (they would only grow the code), and hot calls
+ *       may inline functions up to HOT_BUDGET_FACTOR times the budget.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class Inliner {
+
+  // the most nested inlining allowed (functions inlined into inlined
+  // bodies)
+  public static final int MAX_DEPTH = 4;
+
+  // how much larger a function a hot call (see ExecutionProfile) may
+  // inline
+  public static final int HOT_BUDGET_FACTOR = 4;
+
+  // the program's functions by name
+  private Map<String,FunDecl> functions = new HashMap<>();
+
+  // the program's function names in declaration order
+  private List<String> order = new ArrayList<>();
+
+  // the size (in AST nodes) of each function body
+  private Map<String,Integer> sizes = new HashMap<>();
+
+  // the call graph (for finding recursive functions)
+  private CallGraph callGraph;
+
+  // the largest function body (in AST nodes) that is inlined
+  private int budget;
+
+  // the profile of an earlier run (null if none)
+  private ExecutionProfile profile = null;
+
+  // a description of each inlined call, by caller
+  private Map<String,List<String>> inlined = new ConcurrentHashMap<>();
+
+
+  /**
+   * Create an inliner for the given (checked and optimized) program.
+   * @param program the program being generated
+   * @param budget the largest function body size to inline
+   */
+  public Inliner(Program program, int budget) throws MyPLException {
+    this.budget = budget;
+    callGraph = CallGraph.of(program);
+    for (FunDecl fdecl : program.fdecls) {
+      functions.put(fdecl.funName.lexeme(), fdecl);
+      order.add(fdecl.funName.lexeme());
+      sizes.put(fdecl.funName.lexeme(), size(fdecl));
+    }
+  }
+
+  /**
+   * Base the inlining decisions on the call counts of an earlier run.
+   * @param profile the profile of the run (null for none)
+   */
+  public void setProfile(ExecutionProfile profile) {
+    this.profile = profile;
+  }
+
+  /**
+   * True if a call should be inlined.
+   * @param caller the function being generated
+   * @param call the call
+   * @param depth the number of inlined bodies the call is nested in
+   */
+  public boolean shouldInline(String caller, CallExpr call, int depth) {
+    String callee = call.funName.lexeme();
+    return functions.containsKey(callee) && !callee.equals("main") &&
+      !callee.equals(caller) && depth < MAX_DEPTH &&
+      sizes.get(callee) <= budget(call) && !callGraph.isRecursive(callee);
+  }
+
+  /**
+   * Returns the declaration of the given function.
+   */
+  public FunDecl function(String name) {
+    return functions.get(name);
+  }
+
+  /**
+   * Record that a call was inlined.
+   * @param caller the function the call was inlined into
+   * @param call the inlined call
+   */
+  public void inlined(String caller, CallExpr call) {
+    Token name = call.funName;
+    // (each caller is generated by one thread at a time)
+    inlined.computeIfAbsent(caller, c -> new ArrayList<>()).add(name.lexeme() + " into " + caller + " at line " + name.line() +
+                ":" + name.column() + " (size " + sizes.get(name.lexeme()) + ")");
+  }
+
+  /**
+   * Returns a description of each inlined call.
+   */
+  public List<String> inlinedCalls() {
+    List<String> calls = new ArrayList<>();
+    for (String caller : order)
+      calls.addAll(inlined.getOrDefault(caller, List.of()));
+    return calls;
+  }
+
+  // the largest function body the call may inline (-1 for none)
+  private int budget(CallExpr call) {
+    if (profile == null)
+      return budget;
+    if (profile.isCold(call))
+      return -1;
+    return profile.isHot(call) ? budget * HOT_BUDGET_FACTOR : budget;
+  }
+
+  // the number of statement and expression nodes in a function body
+  private static int size(FunDecl fdecl) throws MyPLException {
+    int[] count = {0};
+    fdecl.accept(new OptimizerPass() {
+        protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+          count[0] += stmts.size();
+          super.visitStatements(stmts);
+        }
+        public void visit(Expr node) throws MyPLException {
+          ++count[0];
+          super.visit(node);
+        }
+        public void visit(SimpleTerm node) throws MyPLException {
+          ++count[0];
+          super.visit(node);
+        }
+      });
+    return count[0];
+  }
+
+}
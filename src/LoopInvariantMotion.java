@@ -0,0 +1,296 @@
+/*
+ * File: LoopInvariantMotion.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Loop-invariant code motion. Expressions in a while or for loop
+ *       that compute the same value on every iteration (they only read
+ *       variables the loop does not change, fields the loop does not
+ *       write, and call no user-defined functions) are evaluated once
+ *       into a temporary declared just before the loop.
+ *
+ *       A while condition and a for loop's end expression are
+ *       evaluated at least once, so an invariant part of them that can
+ *       fail may still be hoisted, as long as nothing evaluated before
+ *       it (in the condition, or a for loop's start) has an effect or
+ *       can fail: it would then have failed first on the first
+ *       iteration. Expressions in a loop body may never run, so they
+ *       are only hoisted if evaluating them cannot fail.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class LoopInvariantMotion extends OptimizerPass {
+
+  // prefix of the temporaries (not a valid MyPL identifier)
+  private static final String TEMP_PREFIX = "$licm";
+
+  // built-in functions without side effects
+  private static final Set<String> PURE_BUILTINS =
+    Set.of("length", "get", "stoi", "stod", "itos", "itod", "dtos", "dtoi");
+
+  // number of temporaries created so far
+  private int temps = 0;
+
+  // number of expressions hoisted
+  private int hoistCount = 0;
+
+  // the non-nil variables of the current function
+  private NilAnalysis nils;
+
+  // the loop being optimized and the declarations hoisted out of it
+  private LoopInfo loop;
+  private List<Stmt> hoisted;
+
+  // true if nothing evaluated so far in the loop's first iteration has
+  // an effect or can fail
+  private boolean front;
+
+
+  /**
+   * Returns the number of expressions hoisted out of loops.
+   */
+  public int hoistCount() {
+    return hoistCount;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(FunDecl node) throws MyPLException {
+    nils = NilAnalysis.of(node);
+    super.visit(node);
+  }
+
+  protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      // inner loops first
+      stmt.accept(this);
+      if (stmt instanceof WhileStmt)
+        result.addAll(hoist((WhileStmt) stmt));
+      else if (stmt instanceof ForStmt)
+        result.addAll(hoist((ForStmt) stmt));
+      result.add(stmt);
+    }
+    stmts.clear();
+    stmts.addAll(result);
+  }
+
+  //----------------------------------------------------------------------
+  // HOISTING
+  //----------------------------------------------------------------------
+
+  // hoist the invariant expressions of a while loop, returning the
+  // temporary declarations to place before it
+  private List<Stmt> hoist(WhileStmt node) throws MyPLException {
+    loop = LoopInfo.of(node.stmts, node.cond);
+    hoisted = new ArrayList<>();
+    front = true;
+    rewrite(node.cond);
+    rewriteBody(node.stmts);
+    return hoisted;
+  }
+
+  private List<Stmt> hoist(ForStmt node) throws MyPLException {
+    loop = LoopInfo.of(node.stmts, node.end);
+    loop.modified.add(node.varName.lexeme());
+    hoisted = new ArrayList<>();
+    // the end is normally evaluated after the start, so it can only be
+    // moved ahead of it if the start cannot fail
+    front = !nils.canFail(node.start);
+    rewrite(node.end);
+    rewriteBody(node.stmts);
+    return hoisted;
+  }
+
+  // hoist the invariant expressions of the loop body that cannot fail
+  private void rewriteBody(List<Stmt> stmts) throws MyPLException {
+    OptimizerPass exprs = new OptimizerPass() {
+        public void visit(Expr node) throws MyPLException {
+          front = false;
+          rewrite(node);
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(exprs);
+  }
+
+  // replace the largest invariant subexpressions of the expression
+  // with temporaries, walking them in evaluation order (calls can
+  // fail, so a clean front also means no effects so far)
+  private void rewrite(Expr expr) {
+    boolean canFail = nils.canFail(expr);
+    if (isInvariant(expr) && worthHoisting(expr) && (front || !canFail)) {
+      Expr moved = new Expr();
+      moved.first = expr.first;
+      moved.op = expr.op;
+      moved.rest = expr.rest;
+      moved.logicallyNegated = expr.logicallyNegated;
+      expr.first = temp(moved);
+      expr.op = null;
+      expr.rest = null;
+      expr.logicallyNegated = false;
+      front = front && !canFail;
+      return;
+    }
+    expr.first = rewrite(expr.first);
+    if (expr.rest != null)
+      rewrite(expr.rest);
+    front = front && !canFail;
+  }
+
+  private ExprTerm rewrite(ExprTerm term) {
+    if (term instanceof ComplexTerm) {
+      rewrite(((ComplexTerm) term).expr);
+      return term;
+    }
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    boolean canFail = nils.canFail(term);
+    if (isInvariant(term) && worthHoisting(term) && (front || !canFail)) {
+      Expr moved = new Expr();
+      moved.first = term;
+      front = front && !canFail;
+      return temp(moved);
+    }
+    if (rvalue instanceof CallExpr) {
+      for (Expr arg : ((CallExpr) rvalue).args)
+        rewrite(arg);
+    } else if (rvalue instanceof NegatedRValue) {
+      rewrite(((NegatedRValue) rvalue).expr);
+    }
+    front = front && !canFail;
+    return term;
+  }
+
+  // declare a temporary holding the expression's value (before the
+  // loop), returning a term that reads it
+  private SimpleTerm temp(Expr value) {
+    Token at = firstToken(value);
+    Token name = new Token(TokenType.ID, TEMP_PREFIX + temps++, at.line(), at.column());
+    VarDeclStmt decl = new VarDeclStmt();
+    decl.varName = name;
+    decl.expr = value;
+    hoisted.add(decl);
+    ++hoistCount;
+    IDRValue use = new IDRValue();
+    use.path.add(name);
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = use;
+    return term;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // true if the expression has the same value on every iteration
+  private boolean isInvariant(Expr expr) {
+    return isInvariant(expr.first) && (expr.rest == null || isInvariant(expr.rest));
+  }
+
+  private boolean isInvariant(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return isInvariant(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return true;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue) rvalue).path;
+      if (loop.modified.contains(path.get(0).lexeme()))
+        return false;
+      if (path.size() == 1)
+        return true;
+      if (loop.mutatesHeap)
+        return false;
+      for (int i = 1; i < path.size(); i++)
+        if (loop.writtenFields.contains(path.get(i).lexeme()))
+          return false;
+      return true;
+    }
+    if (rvalue instanceof CallExpr) {
+      CallExpr call = (CallExpr) rvalue;
+      if (!PURE_BUILTINS.contains(call.funName.lexeme()))
+        return false;
+      for (Expr arg : call.args)
+        if (!isInvariant(arg))
+          return false;
+      return true;
+    }
+    if (rvalue instanceof NegatedRValue)
+      return isInvariant(((NegatedRValue) rvalue).expr);
+    // new creates a different object each time
+    return false;
+  }
+
+  // true if hoisting saves work (moving a literal or a variable
+  // does not)
+  private boolean worthHoisting(Expr expr) {
+    return expr.op != null || worthHoisting(expr.first);
+  }
+
+  private boolean worthHoisting(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return worthHoisting(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue) rvalue).path.size() > 1;
+    if (rvalue instanceof NegatedRValue)
+      return worthHoisting(((NegatedRValue) rvalue).expr);
+    return rvalue instanceof CallExpr;
+  }
+
+  //----------------------------------------------------------------------
+  // LOOP SUMMARY
+  //----------------------------------------------------------------------
+
+  // What a loop (its condition and body) can change.
+  private static class LoopInfo {
+    // variables declared or assigned in the loop (by name)
+    Set<String> modified = new HashSet<>();
+    // fields assigned in the loop (by name)
+    Set<String> writtenFields = new HashSet<>();
+    // true if the loop calls user-defined functions or deletes objects
+    boolean mutatesHeap = false;
+
+    static LoopInfo of(List<Stmt> body, Expr cond) throws MyPLException {
+      LoopInfo info = new LoopInfo();
+      OptimizerPass scan = new OptimizerPass() {
+          public void visit(VarDeclStmt node) throws MyPLException {
+            super.visit(node);
+            info.modified.add(node.varName.lexeme());
+          }
+          public void visit(AssignStmt node) throws MyPLException {
+            super.visit(node);
+            if (node.lvalue.size() == 1)
+              info.modified.add(node.lvalue.get(0).lexeme());
+            else
+              info.writtenFields.add(node.lvalue.get(node.lvalue.size() - 1).lexeme());
+          }
+          public void visit(ForStmt node) throws MyPLException {
+            super.visit(node);
+            info.modified.add(node.varName.lexeme());
+          }
+          public void visit(DeleteStmt node) throws MyPLException {
+            info.mutatesHeap = true;
+          }
+          public void visit(CallExpr node) throws MyPLException {
+            super.visit(node);
+            if (!PURE_BUILTINS.contains(node.funName.lexeme()) &&
+                !node.funName.lexeme().equals("print") &&
+                !node.funName.lexeme().equals("read"))
+              info.mutatesHeap = true;
+          }
+        };
+      cond.accept(scan);
+      for (Stmt stmt : body)
+        stmt.accept(scan);
+      return info;
+    }
+  }
+
+}
@@ -0,0 +1,423 @@
+/*
+ * File: LoopUnroller.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Unrolls for loops whose start and end are int literals (after
+ *       constant folding) and whose body is small. If the whole loop
+ *       is small enough, it is replaced by one copy of the body per
+ *       iteration, with the loop variable replaced by its value in
+ *       that iteration (so constant folding can go on from there).
+ *       Otherwise, if the body does not read the loop variable, the
+ *       body is repeated unroll-factor times in a loop that runs
+ *       correspondingly fewer times, followed by the left over copies.
+ *       (The counted loop instructions already make a loop's own
+ *       overhead a single instruction, so a partially unrolled body
+ *       that needs the loop variable rebuilt in each copy would be
+ *       slower, and is not unrolled.)
+ *
+ *       Each copy gets its own names for the variables the body
+ *       declares (not valid MyPL identifiers), so the copies cannot
+ *       see each other's variables or hide variables of the enclosing
+ *       scope. Loops whose body declares or assigns the loop variable
+ *       are left alone.
+ *
+ *       Given a profile (see ExecutionProfile), loops whose body never
+ *       ran are left alone, and hot loops may grow to HOT_SIZE_FACTOR
+ *       times the usual size.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class LoopUnroller extends OptimizerPass {
+
+  // prefix of the renamed variables (not a valid MyPL identifier)
+  private static final String TEMP_PREFIX = "$u";
+
+  // the most AST nodes a loop may grow to when unrolled
+  public static final int MAX_UNROLLED_SIZE = 120;
+
+  // how much larger a hot loop (see ExecutionProfile) may grow
+  public static final int HOT_SIZE_FACTOR = 2;
+
+  // the checked expression types (copied to the copies)
+  private TypeInfo typeInfo;
+
+  // the number of copies of the body per iteration when partially
+  // unrolling, and the most iterations of a fully unrolled loop
+  private int factor;
+
+  // the profile of an earlier run (null if none)
+  private ExecutionProfile profile = null;
+
+  // number of variables renamed so far
+  private int temps = 0;
+
+  // number of loops fully and partially unrolled
+  private int fullCount = 0;
+  private int partialCount = 0;
+  private int coldCount = 0;
+
+  // while copying a body: the new name of each variable declared in
+  // the copy (innermost scope first), and the loop variable and its
+  // value in the copy (null if it keeps its name)
+  private Deque<Map<String,Token>> renames = new ArrayDeque<>();
+  private String loopVar = null;
+  private Token loopValue = null;
+
+
+  /**
+   * Create an unroller for a program checked with the given type
+   * information.
+   * @param typeInfo the type information from checking the program
+   * @param factor the copies of the body per iteration of a partially
+   *        unrolled loop (also the most iterations a loop may have to
+   *        be fully unrolled, times two)
+   */
+  public LoopUnroller(TypeInfo typeInfo, int factor) {
+    this.typeInfo = typeInfo;
+    this.factor = factor;
+  }
+
+  /**
+   * Base the unrolling decisions on the loop iterations of an earlier
+   * run.
+   * @param profile the profile of the run (null for none)
+   */
+  public void setProfile(ExecutionProfile profile) {
+    this.profile = profile;
+  }
+
+  /**
+   * Returns the number of loops replaced by copies of their body.
+   */
+  public int fullCount() {
+    return fullCount;
+  }
+
+  /**
+   * Returns the number of loops whose body was repeated.
+   */
+  public int partialCount() {
+    return partialCount;
+  }
+
+  /**
+   * Returns the number of loops left alone because their body never
+   * ran in the profiled run.
+   */
+  public int coldCount() {
+    return coldCount;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      // inner loops first
+      stmt.accept(this);
+      if (stmt instanceof ForStmt)
+        result.addAll(unroll((ForStmt) stmt));
+      else
+        result.add(stmt);
+    }
+    stmts.clear();
+    stmts.addAll(result);
+  }
+
+  //----------------------------------------------------------------------
+  // UNROLLING
+  //----------------------------------------------------------------------
+
+  // the statements to replace a for loop with (the loop itself if it
+  // is not unrolled)
+  private List<Stmt> unroll(ForStmt node) throws MyPLException {
+    Token start = literal(node.start);
+    Token end = literal(node.end);
+    if (factor < 2 || start == null || end == null ||
+        start.type() != TokenType.INT_VAL || end.type() != TokenType.INT_VAL)
+      return List.of(node);
+    long first = Long.parseLong(start.lexeme());
+    long last = Long.parseLong(end.lexeme());
+    long trips = node.upto ? last - first + 1 : first - last + 1;
+    String var = node.varName.lexeme();
+    if (trips <= 0 || declaresOrAssigns(node.stmts, var))
+      return List.of(node);
+    if (profile != null && profile.isColdLoop(node)) {
+      ++coldCount;
+      return List.of(node);
+    }
+    int size = size(node.stmts);
+    int maxSize = profile != null && profile.isHotLoop(node) ?
+      HOT_SIZE_FACTOR * MAX_UNROLLED_SIZE : MAX_UNROLLED_SIZE;
+    List<Stmt> result = new ArrayList<>();
+    if (trips <= 2 * factor && trips * size <= maxSize) {
+      // one copy per iteration
+      for (long i = 0; i < trips; i++) {
+        long value = node.upto ? first + i : first - i;
+        result.addAll(copyBody(node.stmts, var, intToken(value, node.varName)));
+      }
+      ++fullCount;
+      return result;
+    }
+    if (reads(node.stmts, var) || (long) factor * size > maxSize || trips < factor)
+      return List.of(node);
+    // factor copies per iteration, then the remaining ones
+    ForStmt loop = new ForStmt();
+    loop.varName = new Token(TokenType.ID, TEMP_PREFIX + temps++, node.varName.line(),
+                             node.varName.column());
+    loop.start = intExpr(0, node.varName);
+    loop.end = intExpr(trips / factor - 1, node.varName);
+    for (int i = 0; i < factor; i++)
+      loop.stmts.addAll(copyBody(node.stmts, var, null));
+    result.add(loop);
+    for (long i = 0; i < trips % factor; i++)
+      result.addAll(copyBody(node.stmts, var, null));
+    ++partialCount;
+    return result;
+  }
+
+  // a copy of a loop body, in which the loop variable has the given
+  // value (or null if it is not read)
+  private List<Stmt> copyBody(List<Stmt> stmts, String var, Token value) {
+    loopVar = var;
+    loopValue = value;
+    List<Stmt> copy = copyBlock(stmts);
+    loopVar = null;
+    loopValue = null;
+    return copy;
+  }
+
+  //----------------------------------------------------------------------
+  // COPYING
+  //----------------------------------------------------------------------
+
+  // copy the statements of a scope
+  private List<Stmt> copyBlock(List<Stmt> stmts) {
+    renames.push(new HashMap<>());
+    List<Stmt> copy = new ArrayList<>();
+    for (Stmt stmt : stmts)
+      copy.add(copyStmt(stmt));
+    renames.pop();
+    return copy;
+  }
+
+  private Stmt copyStmt(Stmt stmt) {
+    if (stmt instanceof VarDeclStmt) {
+      VarDeclStmt node = (VarDeclStmt) stmt;
+      VarDeclStmt copy = new VarDeclStmt();
+      copy.typeName = node.typeName;
+      // (the value is in the enclosing scope of the new variable)
+      copy.expr = copyExpr(node.expr);
+      copy.varName = declare(node.varName);
+      return copy;
+    } else if (stmt instanceof AssignStmt) {
+      AssignStmt node = (AssignStmt) stmt;
+      AssignStmt copy = new AssignStmt();
+      copy.lvalue.addAll(node.lvalue);
+      copy.lvalue.set(0, lookup(node.lvalue.get(0)));
+      copy.expr = copyExpr(node.expr);
+      return copy;
+    } else if (stmt instanceof CondStmt) {
+      CondStmt node = (CondStmt) stmt;
+      CondStmt copy = new CondStmt();
+      copy.ifPart = copyIf(node.ifPart);
+      for (BasicIf elif : node.elifs)
+        copy.elifs.add(copyIf(elif));
+      if (node.elseStmts != null)
+        copy.elseStmts = copyBlock(node.elseStmts);
+      return copy;
+    } else if (stmt instanceof WhileStmt) {
+      WhileStmt node = (WhileStmt) stmt;
+      WhileStmt copy = new WhileStmt();
+      copy.cond = copyExpr(node.cond);
+      copy.stmts = copyBlock(node.stmts);
+      return copy;
+    } else if (stmt instanceof ForStmt) {
+      ForStmt node = (ForStmt) stmt;
+      ForStmt copy = new ForStmt();
+      copy.start = copyExpr(node.start);
+      copy.end = copyExpr(node.end);
+      copy.upto = node.upto;
+      renames.push(new HashMap<>());
+      copy.varName = declare(node.varName);
+      copy.stmts = copyBlock(node.stmts);
+      renames.pop();
+      return copy;
+    } else if (stmt instanceof ReturnStmt) {
+      ReturnStmt node = (ReturnStmt) stmt;
+      ReturnStmt copy = new ReturnStmt();
+      copy.expr = node.expr == null ? null : copyExpr(node.expr);
+      return copy;
+    } else if (stmt instanceof DeleteStmt) {
+      DeleteStmt copy = new DeleteStmt();
+      copy.varName = lookup(((DeleteStmt) stmt).varName);
+      return copy;
+    } else {
+      return copyCall((CallExpr) stmt);
+    }
+  }
+
+  private BasicIf copyIf(BasicIf node) {
+    BasicIf copy = new BasicIf();
+    copy.cond = copyExpr(node.cond);
+    copy.stmts = copyBlock(node.stmts);
+    return copy;
+  }
+
+  private Expr copyExpr(Expr node) {
+    Expr copy = new Expr();
+    copy.logicallyNegated = node.logicallyNegated;
+    copy.first = copyTerm(node.first);
+    copy.op = node.op;
+    if (node.rest != null)
+      copy.rest = copyExpr(node.rest);
+    String type = typeInfo.typeOf(node);
+    if (type != null)
+      typeInfo.setType(copy, type);
+    return copy;
+  }
+
+  private ExprTerm copyTerm(ExprTerm term) {
+    if (term instanceof ComplexTerm) {
+      ComplexTerm copy = new ComplexTerm();
+      copy.expr = copyExpr(((ComplexTerm) term).expr);
+      return copy;
+    }
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (loopValue != null && rvalue instanceof IDRValue && isLoopVar(((IDRValue) rvalue).path.get(0)))
+      return literalTerm(loopValue);
+    SimpleTerm copy = new SimpleTerm();
+    copy.rvalue = copyRValue(rvalue);
+    return copy;
+  }
+
+  private RValue copyRValue(RValue rvalue) {
+    if (rvalue instanceof IDRValue) {
+      IDRValue copy = new IDRValue();
+      copy.path.addAll(((IDRValue) rvalue).path);
+      copy.path.set(0, lookup(copy.path.get(0)));
+      return copy;
+    } else if (rvalue instanceof CallExpr) {
+      return copyCall((CallExpr) rvalue);
+    } else if (rvalue instanceof NegatedRValue) {
+      NegatedRValue copy = new NegatedRValue();
+      copy.expr = copyExpr(((NegatedRValue) rvalue).expr);
+      return copy;
+    }
+    // (literals and new have nothing to rename)
+    return rvalue;
+  }
+
+  private CallExpr copyCall(CallExpr node) {
+    CallExpr copy = new CallExpr();
+    copy.funName = node.funName;
+    for (Expr arg : node.args)
+      copy.args.add(copyExpr(arg));
+    return copy;
+  }
+
+  // give a variable declared in the copy a new name
+  private Token declare(Token name) {
+    Token renamed = new Token(TokenType.ID, TEMP_PREFIX + temps++, name.line(), name.column());
+    renames.peek().put(name.lexeme(), renamed);
+    return renamed;
+  }
+
+  // the (new) name of a variable used in the copy
+  private Token lookup(Token name) {
+    for (Map<String,Token> scope : renames)
+      if (scope.containsKey(name.lexeme()))
+        return scope.get(name.lexeme());
+    return name;
+  }
+
+  // true if the name refers to the loop variable being replaced
+  private boolean isLoopVar(Token name) {
+    return name.lexeme().equals(loopVar) && lookup(name) == name;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // an int literal with the given value (at the given token)
+  private static Token intToken(long value, Token at) {
+    return new Token(TokenType.INT_VAL, Long.toString(value), at.line(), at.column());
+  }
+
+  private Expr intExpr(long value, Token at) {
+    Expr expr = literalExpr(intToken(value, at));
+    typeInfo.setType(expr, "int");
+    return expr;
+  }
+
+  // true if the statements declare or assign the variable
+  private static boolean declaresOrAssigns(List<Stmt> stmts, String var) throws MyPLException {
+    boolean[] found = {false};
+    OptimizerPass scan = new OptimizerPass() {
+        public void visit(VarDeclStmt node) throws MyPLException {
+          super.visit(node);
+          found[0] |= node.varName.lexeme().equals(var);
+        }
+        public void visit(AssignStmt node) throws MyPLException {
+          super.visit(node);
+          found[0] |= node.lvalue.get(0).lexeme().equals(var);
+        }
+        public void visit(ForStmt node) throws MyPLException {
+          super.visit(node);
+          found[0] |= node.varName.lexeme().equals(var);
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(scan);
+    return found[0];
+  }
+
+  // true if the statements read the variable
+  private static boolean reads(List<Stmt> stmts, String var) throws MyPLException {
+    boolean[] found = {false};
+    OptimizerPass scan = new OptimizerPass() {
+        public void visit(IDRValue node) throws MyPLException {
+          found[0] |= node.path.get(0).lexeme().equals(var);
+        }
+        public void visit(DeleteStmt node) throws MyPLException {
+          found[0] |= node.varName.lexeme().equals(var);
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(scan);
+    return found[0];
+  }
+
+  // the number of statement and expression nodes in the statements
+  private static int size(List<Stmt> stmts) throws MyPLException {
+    int[] count = {stmts.size()};
+    OptimizerPass scan = new OptimizerPass() {
+        protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+          count[0] += stmts.size();
+          super.visitStatements(stmts);
+        }
+        public void visit(Expr node) throws MyPLException {
+          ++count[0];
+          super.visit(node);
+        }
+        public void visit(SimpleTerm node) throws MyPLException {
+          ++count[0];
+          super.visit(node);
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(scan);
+    return count[0];
+  }
+
+}
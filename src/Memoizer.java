@@ -0,0 +1,129 @@
+/*
+ * File: Memoizer.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Caches the results of calls to pure functions for the VM (see
+ *       PurityAnalysis), keyed on the argument values. Each function
+ *       has its own bounded cache; when it is full, the least recently
+ *       used result is evicted. Keeps per-function counts of calls and
+ *       cache hits for the memoization report.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class Memoizer {
+
+  // the default number of results kept per function
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  // stands in for nil in keys (nil is a string in the VM, but is not
+  // the same argument as "nil")
+  private static final Object NIL_KEY = new Object() {
+      public String toString() {
+        return "nil";
+      }
+    };
+
+  // The cached results and counts of one function.
+  private static class Cache {
+    int capacity;
+    long calls = 0;
+    long hits = 0;
+    long evictions = 0;
+
+    // the results (in access order, so the eldest entry is the least
+    // recently used)
+    Map<List<Object>,Object> results =
+      new LinkedHashMap<List<Object>,Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>,Object> eldest) {
+          if (size() <= capacity)
+            return false;
+          ++evictions;
+          return true;
+        }
+      };
+
+    Cache(int capacity) {
+      this.capacity = capacity;
+    }
+  }
+
+  // the cache of each memoized function
+  private Map<String,Cache> caches = new LinkedHashMap<>();
+
+
+  /**
+   * Create a memoizer for the given (pure) functions.
+   * @param functions the functions to memoize
+   * @param capacity the most results kept per function
+   */
+  public Memoizer(Set<String> functions, int capacity) {
+    for (String function : functions)
+      caches.put(function, new Cache(capacity));
+  }
+
+  /**
+   * True if calls to the function are memoized.
+   */
+  public boolean memoizes(String function) {
+    return caches.containsKey(function);
+  }
+
+  /**
+   * The cache key for a call's arguments (the values are copied).
+   */
+  public static List<Object> key(Iterable<Object> args, int count) {
+    List<Object> key = new ArrayList<>(count);
+    for (Object arg : args) {
+      if (key.size() == count)
+        break;
+      key.add(arg == VM.NIL_OBJ ? NIL_KEY : arg);
+    }
+    return key;
+  }
+
+  /**
+   * Returns the cached result of a call (or null if there is none),
+   * counting the call.
+   */
+  public Object lookup(String function, List<Object> key) {
+    Cache cache = caches.get(function);
+    ++cache.calls;
+    Object result = cache.results.get(key);
+    if (result != null)
+      ++cache.hits;
+    return result;
+  }
+
+  /**
+   * Record the result of a call.
+   */
+  public void store(String function, List<Object> key, Object result) {
+    caches.get(function).results.put(key, result);
+  }
+
+  /**
+   * Returns the calls, hits, and hit rate of each memoized function
+   * that was called.
+   */
+  public String report() {
+    String s = "Memoization report\n";
+    s += String.format("  %-20s %10s %10s %8s %10s%n", "function", "calls", "hits", "hit rate",
+                       "evictions");
+    for (Map.Entry<String,Cache> e : caches.entrySet()) {
+      Cache cache = e.getValue();
+      if (cache.calls == 0)
+        continue;
+      s += String.format("  %-20s %10d %10d %7.1f%% %10d%n", e.getKey(), cache.calls, cache.hits,
+                         100.0 * cache.hits / cache.calls, cache.evictions);
+    }
+    return s;
+  }
+
+}
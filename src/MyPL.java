@@ -9,9 +9,12 @@ import java.io.InputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 public class MyPL {
@@ -24,7 +27,45 @@ public class MyPL {
       boolean printMode = false;
       boolean checkMode = false;
       boolean outIRMode = false;
+      boolean ssaMode = false;
       boolean replMode = false;
+
+      // pull out the VM options (these can be given along with a flag)
+      List<String> argList = new ArrayList<>(Arrays.asList(args));
+      boolean columnarHeap = argList.remove("--columnar");
+      boolean heapHisto = argList.remove("--heap-histo");
+      boolean allocProfile = argList.remove("--alloc-profile");
+      boolean memoize = argList.remove("--memoize");
+      boolean memoReport = argList.remove("--memo-report");
+      String heapDumpFile = optionValue(argList, "--heap-dump");
+      String persistFile = optionValue(argList, "--persist");
+      String profileOutFile = optionValue(argList, "--profile-out");
+      // compiler options
+      Optimizer optimizer = new Optimizer();
+      for (int level = 0; level <= Optimizer.MAX_LEVEL; level++)
+        if (argList.remove("-O" + level))
+          optimizer.setLevel(level);
+      String inlineBudget = optionValue(argList, "--inline-budget");
+      if (inlineBudget != null && !inlineBudget.matches("\\d+")) {
+        displayUsageInfo();
+        System.exit(1);
+      }
+      if (inlineBudget != null)
+        optimizer.setInlineBudget(Integer.parseInt(inlineBudget));
+      String unrollFactor = optionValue(argList, "--unroll-factor");
+      if (unrollFactor != null && !unrollFactor.matches("\\d+")) {
+        displayUsageInfo();
+        System.exit(1);
+      }
+      if (unrollFactor != null)
+        optimizer.setUnrollFactor(Integer.parseInt(unrollFactor));
+      String profileInFile = optionValue(argList, "--profile-in");
+      if (profileInFile != null)
+        optimizer.setProfile(readProfile(profileInFile));
+      optimizer.setProfiling(profileOutFile != null || allocProfile);
+      boolean optReport = argList.remove("--opt-report");
+      args = argList.toArray(new String[0]);
+
       int argCount = args.length;
       InputStream input = System.in;
 
@@ -45,12 +86,14 @@ public class MyPL {
         checkMode = true;
       else if (argCount > 0 && args[0].equals("--ir"))
         outIRMode = true;
+      else if (argCount > 0 && args[0].equals("--ssa"))
+        ssaMode = true;
       else if (argCount > 0 && args[0].equals("--repl"))
         replMode = true;
 
       // to check modes
       boolean specialMode = lexerMode || printMode || parseMode ||
-        checkMode || outIRMode || replMode;
+        checkMode || outIRMode || ssaMode || replMode;
 
       // check if incorrect args 
       if (argCount == 2 && !specialMode) {
@@ -104,10 +147,23 @@ public class MyPL {
         StaticChecker checkVisitor = new StaticChecker(typeInfo);
         program.accept(checkVisitor);
         VM vm = new VM();
-        CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
-        program.accept(genVisitor);
+        generate(program, typeInfo, vm, optimizer, optReport);
         System.out.println(vm);
       }
+      // run in SSA mode (print the SSA form of each function)
+      else if (ssaMode) {
+        ASTParser parser = new ASTParser(lexer);
+        Program program = parser.parse();
+        TypeInfo typeInfo = new TypeInfo();
+        program.accept(new StaticChecker(typeInfo));
+        shake(program, optimizer);
+        RangeAnalysis ranges = optimizer.rangeAnalysis(program);
+        optimizer.optimize(program, typeInfo);
+        for (IRFunction fn : buildSSA(program, typeInfo, optimizer, ranges))
+          System.out.println(fn);
+        if (optReport)
+          System.err.print(optimizer.report());
+      }
       else if (replMode || argCount == 0) {
         REPL repl = new REPL();
         Scanner in = new Scanner(System.in);
@@ -126,9 +182,32 @@ public class MyPL {
         TypeInfo typeInfo = new TypeInfo();
         program.accept(new StaticChecker(typeInfo));
         VM vm = new VM();
-        CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
-        program.accept(genVisitor);
-        vm.run();
+        vm.setColumnarHeap(columnarHeap);
+        vm.setAllocationProfiling(allocProfile);
+        if (persistFile != null)
+          openPersistentHeap(vm, persistFile);
+        ExecutionProfile profile = profileOutFile != null ? new ExecutionProfile() : null;
+        vm.setProfile(profile);
+        generate(program, typeInfo, vm, optimizer, optReport);
+        if (memoize || memoReport)
+          vm.setMemoizer(new Memoizer(PurityAnalysis.of(program).pureFunctions(),
+                                      Memoizer.DEFAULT_CAPACITY));
+        try {
+          vm.run();
+        } finally {
+          // report the heap as of the end of the run (or the error)
+          if (heapHisto)
+            System.err.print(vm.heapHistogram());
+          if (heapDumpFile != null)
+            dumpHeap(vm, heapDumpFile);
+          if (allocProfile)
+            System.err.print(vm.allocationReport(10));
+          if (memoReport)
+            System.err.print(vm.memoizationReport());
+          if (profile != null)
+            writeProfile(profile, profileOutFile);
+          closePersistentHeap(vm);
+        }
       }
     }
     catch (MyPLException e) {
@@ -142,6 +221,133 @@ public class MyPL {
     }
   }
 
+  // optimize a (checked) program and generate its code into the VM,
+  // printing the optimization report if asked for (package private so
+  // tests can compile programs the same way)
+  static void generate(Program program, TypeInfo typeInfo, VM vm,
+                       Optimizer optimizer, boolean report)
+    throws MyPLException
+  {
+    shake(program, optimizer);
+    RangeAnalysis ranges = optimizer.rangeAnalysis(program);
+    optimizer.optimize(program, typeInfo);
+    SlotAllocator slots = optimizer.slotAllocator();
+    if (optimizer.useSSA()) {
+      for (IRFunction fn : buildSSA(program, typeInfo, optimizer, ranges)) {
+        VMFrame frame = IRLowering.lower(fn);
+        slots.allocate(frame);
+        vm.add(frame);
+      }
+    } else {
+      Inliner inliner = optimizer.inliner(program);
+      CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+      genVisitor.setInliner(inliner);
+      genVisitor.setSlotAllocator(slots);
+      genVisitor.setRangeAnalysis(ranges);
+      genVisitor.setNilCheckAnalysis(optimizer.nilCheckAnalysis(program));
+      program.accept(genVisitor);
+      noteInlining(optimizer, inliner);
+    }
+    if (slots != null)
+      optimizer.note("slot allocation: " + slots.slotsBefore() + " variable slots packed into " +
+                     slots.slotsAfter());
+    if (report)
+      System.err.print(optimizer.report());
+  }
+
+  // remove the functions and types a (checked) program cannot reach
+  // from main, so they are neither optimized nor generated
+  private static void shake(Program program, Optimizer optimizer) throws MyPLException {
+    TreeShaker shaker = TreeShaker.fromMain(program);
+    shaker.shake(program);
+    optimizer.note("tree shaking: " + shaker.removedFunctions().size() + " functions and " +
+                   shaker.removedTypes().size() + " types removed");
+  }
+
+  // build the SSA form of each function of an (optimized) program and
+  // run the SSA passes over them
+  private static List<IRFunction> buildSSA(Program program, TypeInfo typeInfo,
+                                           Optimizer optimizer, RangeAnalysis ranges)
+    throws MyPLException
+  {
+    Inliner inliner = optimizer.inliner(program);
+    IRBuilder builder = new IRBuilder(program, typeInfo, inliner);
+    builder.setRangeAnalysis(ranges);
+    List<IRFunction> functions = new ArrayList<>();
+    for (FunDecl fdecl : program.fdecls)
+      functions.add(builder.build(fdecl));
+    noteInlining(optimizer, inliner);
+    optimizer.optimize(functions);
+    return functions;
+  }
+
+  private static void noteInlining(Optimizer optimizer, Inliner inliner) {
+    if (inliner == null)
+      return;
+    optimizer.note("inlining: " + inliner.inlinedCalls().size() + " calls inlined");
+    for (String call : inliner.inlinedCalls())
+      optimizer.note("  inlined " + call);
+  }
+
+  // remove an option and its value from the argument list, returning
+  // the value (or null if the option was not given)
+  private static String optionValue(List<String> argList, String option) {
+    int i = argList.indexOf(option);
+    if (i < 0 || i == argList.size() - 1)
+      return null;
+    argList.remove(i);
+    return argList.remove(i);
+  }
+
+  // write a snapshot of the VM's heap to the given file
+  private static void dumpHeap(VM vm, String fileName) {
+    try (PrintStream out = new PrintStream(fileName)) {
+      vm.dumpHeap(out);
+    } catch (FileNotFoundException e) {
+      System.err.println("ERROR: Unable to write heap dump '" + fileName + "'");
+    }
+  }
+
+  // read the profile of an earlier run
+  private static ExecutionProfile readProfile(String fileName) throws MyPLException {
+    try (InputStream in = new FileInputStream(fileName)) {
+      return ExecutionProfile.read(in);
+    } catch (IOException e) {
+      System.err.println("ERROR: Unable to read profile '" + fileName + "'");
+      System.exit(1);
+      return null;
+    }
+  }
+
+  // write the profile of the run to the given file
+  private static void writeProfile(ExecutionProfile profile, String fileName) {
+    try (PrintStream out = new PrintStream(fileName)) {
+      profile.write(out);
+    } catch (FileNotFoundException e) {
+      System.err.println("ERROR: Unable to write profile '" + fileName + "'");
+    }
+  }
+
+  // back the VM's named roots with the given heap file
+  private static void openPersistentHeap(VM vm, String fileName) {
+    try {
+      vm.openPersistentHeap(fileName);
+    } catch (IOException e) {
+      System.err.println("ERROR: Unable to open persistent heap '" + fileName +
+                         "': " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  // flush the persistent heap file (if any)
+  private static void closePersistentHeap(VM vm) {
+    try {
+      vm.close();
+    } catch (IOException e) {
+      System.err.println("ERROR: Unable to write persistent heap: " + e.getMessage());
+    }
+  }
+
   private static void displayUsageInfo() {
     System.out.println("Usage: ./mypl [flag] [script-file]");
     System.out.println("Options:");
@@ -150,6 +356,35 @@ public class MyPL {
     System.out.println("  --print    Pretty print the program.");
     System.out.println("  --check    Statically check program.");
     System.out.println("  --ir       Print intermediate code.");
+    System.out.println("  --ssa      Print the SSA form of each function.");
+    System.out.println("Compiler options:");
+    System.out.println("  -O0 ... -O3        Optimization level (default -O" +
+                       Optimizer.DEFAULT_LEVEL + "); -O2 adds inlining,");
+    System.out.println("                     -O3 compiles through SSA form.");
+    System.out.println("  --inline-budget <n> Largest function (in AST nodes) to");
+    System.out.println("                     inline (default " +
+                       Optimizer.DEFAULT_INLINE_BUDGET + ").");
+    System.out.println("  --unroll-factor <n> Copies of a loop body per iteration when");
+    System.out.println("                     unrolling for loops (default 4 at -O2,");
+    System.out.println("                     8 at -O3, 0 or 1 turns unrolling off).");
+    System.out.println("  --profile-in <file> Guide inlining and loop unrolling with a");
+    System.out.println("                     profile written by --profile-out.");
+    System.out.println("  --opt-report       Print what the optimizer did.");
+    System.out.println("VM options:");
+    System.out.println("  --columnar Store primitive-only record types column-wise.");
+    System.out.println("  --heap-histo       Print a heap histogram when the program ends.");
+    System.out.println("  --heap-dump <file> Write a heap snapshot when the program ends");
+    System.out.println("                     (normally or with a runtime error).");
+    System.out.println("  --alloc-profile    Print the top leaking and allocating");
+    System.out.println("                     \"new\" sites when the program ends");
+    System.out.println("                     (compiled without inlining or unrolling).");
+    System.out.println("  --persist <file>   Keep objects stored with setroot in the");
+    System.out.println("                     given (memory-mapped) heap file.");
+    System.out.println("  --memoize          Cache the results of calls to pure functions.");
+    System.out.println("  --memo-report      Memoize, and print the cache hit rate of");
+    System.out.println("                     each memoized function when the program ends.");
+    System.out.println("  --profile-out <file> Write the call and branch counts of the run");
+    System.out.println("                     (compiled without inlining or unrolling).");
   }
   
 }
@@ -0,0 +1,180 @@
+/*
+ * File: NilAnalysis.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Finds the local variables of a function that can never hold
+ *       nil. A variable is non-nil if every value it is given (its
+ *       declaration and every assignment to it) is an expression that
+ *       cannot evaluate to nil. Variables are tracked by name across
+ *       the whole function (so shadowed variables are merged), and
+ *       parameters are always assumed to possibly be nil. Also tells
+ *       whether evaluating an expression can end in a runtime error.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class NilAnalysis {
+
+  // built-in functions whose result is never nil
+  static final Set<String> NON_NIL_BUILTINS =
+    Set.of("read", "length", "get", "stoi", "stod", "itos", "itod", "dtos", "dtoi");
+
+  // the variables that are never nil
+  private Set<String> nonNil = new HashSet<>();
+
+
+  /**
+   * Analyze the given function.
+   */
+  public static NilAnalysis of(FunDecl fdecl) throws MyPLException {
+    NilAnalysis analysis = new NilAnalysis();
+    // every value given to each variable (null for "unknown")
+    Map<String,List<Expr>> values = new HashMap<>();
+    Set<String> unknown = new HashSet<>();
+    for (FunParam param : fdecl.params)
+      unknown.add(param.paramName.lexeme());
+    fdecl.accept(new OptimizerPass() {
+        public void visit(VarDeclStmt node) throws MyPLException {
+          super.visit(node);
+          values.computeIfAbsent(node.varName.lexeme(), k -> new ArrayList<>()).add(node.expr);
+        }
+        public void visit(AssignStmt node) throws MyPLException {
+          super.visit(node);
+          if (node.lvalue.size() == 1)
+            values.computeIfAbsent(node.lvalue.get(0).lexeme(), k -> new ArrayList<>()).add(node.expr);
+        }
+        public void visit(ForStmt node) throws MyPLException {
+          super.visit(node);
+          // (the start value is an int, and the variable is only
+          // updated by the loop unless assigned in the body)
+          values.computeIfAbsent(node.varName.lexeme(), k -> new ArrayList<>());
+        }
+      });
+    // start by assuming every local is non-nil, and remove variables
+    // given a possibly-nil value until nothing changes
+    analysis.nonNil.addAll(values.keySet());
+    analysis.nonNil.removeAll(unknown);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Map.Entry<String,List<Expr>> e : values.entrySet()) {
+        if (!analysis.nonNil.contains(e.getKey()))
+          continue;
+        for (Expr value : e.getValue()) {
+          if (!analysis.isNonNil(value)) {
+            analysis.nonNil.remove(e.getKey());
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+    return analysis;
+  }
+
+  /**
+   * True if the variable can never hold nil.
+   */
+  public boolean isNonNil(String var) {
+    return nonNil.contains(var);
+  }
+
+  /**
+   * True if the expression cannot evaluate to nil.
+   */
+  public boolean isNonNil(Expr expr) {
+    // operators always produce a value (or fail)
+    if (expr.op != null || expr.logicallyNegated)
+      return true;
+    return isNonNil(expr.first);
+  }
+
+  /**
+   * True if the term cannot evaluate to nil.
+   */
+  public boolean isNonNil(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return isNonNil(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) rvalue).value.type() != TokenType.NIL;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue) rvalue).path;
+      return path.size() == 1 && nonNil.contains(path.get(0).lexeme());
+    }
+    if (rvalue instanceof CallExpr)
+      return NON_NIL_BUILTINS.contains(((CallExpr) rvalue).funName.lexeme());
+    // new and neg
+    return true;
+  }
+
+  /**
+   * True if evaluating the expression could end in a runtime error:
+   * operators on nil, division (by zero), field access (of nil), and
+   * calls (bad index, bad conversion, or anything in a user-defined
+   * function) can all fail.
+   */
+  public boolean canFail(Expr expr) {
+    if (canFail(expr.first) || (expr.rest != null && canFail(expr.rest)))
+      return true;
+    if (expr.logicallyNegated && !isNonNil(operand(expr)))
+      return true;
+    if (expr.op == null)
+      return false;
+    String op = expr.op.lexeme();
+    if (op.equals("==") || op.equals("!="))
+      return false;
+    if (op.equals("/") || op.equals("%")) {
+      Token divisor = OptimizerPass.literal(expr.rest);
+      if (divisor == null || !isNonZero(divisor))
+        return true;
+    }
+    return !isNonNil(expr.first) || !isNonNil(expr.rest);
+  }
+
+  /**
+   * True if evaluating the term could end in a runtime error.
+   */
+  public boolean canFail(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return canFail(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue || rvalue instanceof NewRValue)
+      return false;
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue) rvalue).path.size() > 1;
+    if (rvalue instanceof NegatedRValue) {
+      Expr inner = ((NegatedRValue) rvalue).expr;
+      return canFail(inner) || !isNonNil(inner);
+    }
+    return true;
+  }
+
+  // the expression without its (logical) negation
+  private static Expr operand(Expr expr) {
+    Expr inner = new Expr();
+    inner.first = expr.first;
+    inner.op = expr.op;
+    inner.rest = expr.rest;
+    return inner;
+  }
+
+  private static boolean isNonZero(Token value) {
+    try {
+      if (value.type() == TokenType.INT_VAL)
+        return Integer.parseInt(value.lexeme()) != 0;
+      if (value.type() == TokenType.DOUBLE_VAL)
+        return Double.parseDouble(value.lexeme()) != 0;
+    } catch (NumberFormatException e) {
+      // not a usable literal
+    }
+    return false;
+  }
+
+}
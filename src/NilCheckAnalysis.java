@@ -0,0 +1,457 @@
+/*
+ * File: NilCheckAnalysis.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Finds the runtime checks the VM can skip (see
+ *       VMInstr.setUnchecked): the nil checks of arithmetic and not
+ *       whose operands cannot be nil, and the checks of field accesses
+ *       whose object cannot have been deleted. Unlike NilAnalysis,
+ *       this follows the flow of each function, so a variable is known
+ *       not to be nil
+ *
+ *         - after it is given a value that cannot be nil,
+ *         - inside the branch of a guard like x != nil (or in the else
+ *           branch of x == nil), and
+ *         - after an operation that checks it (or a field access
+ *           through it) has run, since the program stops otherwise.
+ *
+ *       An object is known to exist after it is created with new or
+ *       one of its fields is read, until something could delete it: a
+ *       delete, a call of a user-defined function, setroot, or a new
+ *       whose field initializers could do either. Loops are analyzed
+ *       until the facts at their head stop changing. Variables declared
+ *       in a block are forgotten at its end (they may hide variables
+ *       of the enclosing scope). An expression reached more than once
+ *       (through shared nodes) is only unchecked if every visit proves
+ *       it.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class NilCheckAnalysis {
+
+  // the operators that check their operands for nil
+  private static final Set<String> CHECKED_OPS = Set.of("+", "-", "*", "/", "%");
+
+  // the built-in functions that cannot delete (or move) objects
+  private static final Set<String> HEAP_SAFE_BUILTINS =
+    Set.of("print", "read", "length", "get", "stoi", "stod", "itos", "itod", "dtos", "dtoi");
+
+  // The facts known at a point of a function: the variables that are
+  // not nil, and the variables whose object exists.
+  private static class Facts {
+    Set<String> nonNil = new HashSet<>();
+    Set<String> live = new HashSet<>();
+
+    Facts copy() {
+      Facts facts = new Facts();
+      facts.nonNil.addAll(nonNil);
+      facts.live.addAll(live);
+      return facts;
+    }
+
+    // keep only the facts that also hold in the other (null if
+    // unreachable)
+    void retain(Facts other) {
+      if (other == null)
+        return;
+      nonNil.retainAll(other.nonNil);
+      live.retainAll(other.live);
+    }
+
+    void forget(String var) {
+      nonNil.remove(var);
+      live.remove(var);
+    }
+
+    boolean sameAs(Facts other) {
+      return nonNil.equals(other.nonNil) && live.equals(other.live);
+    }
+  }
+
+  // for each checked operator, not, and field access (by expression
+  // or rvalue): true if every visit proved the check unneeded
+  private Map<Expr,Boolean> ops = new IdentityHashMap<>();
+  private Map<Expr,Boolean> nots = new IdentityHashMap<>();
+  private Map<IDRValue,Boolean> fields = new IdentityHashMap<>();
+
+  // the types whose field initializers could delete objects
+  private Set<String> unsafeTypes = new HashSet<>();
+
+  // the facts at the current point (null if it cannot be reached)
+  private Facts facts = null;
+
+
+  /**
+   * Analyze the functions of a (checked and optimized) program.
+   */
+  public static NilCheckAnalysis of(Program program) throws MyPLException {
+    NilCheckAnalysis analysis = new NilCheckAnalysis();
+    for (TypeDecl tdecl : program.tdecls)
+      if (mayDelete(tdecl))
+        analysis.unsafeTypes.add(tdecl.typeName.lexeme());
+    for (FunDecl fdecl : program.fdecls) {
+      // (parameters may be nil)
+      analysis.facts = new Facts();
+      analysis.block(fdecl.stmts);
+    }
+    return analysis;
+  }
+
+  /**
+   * True if the operator (+, -, *, /, or %) of the expression needs
+   * no nil check.
+   */
+  public boolean isUnchecked(Expr expr) {
+    return ops.getOrDefault(expr, false);
+  }
+
+  /**
+   * True if the logical negation of the expression needs no nil
+   * check.
+   */
+  public boolean isUncheckedNot(Expr expr) {
+    return nots.getOrDefault(expr, false);
+  }
+
+  /**
+   * True if the first field access of the path needs no check that
+   * the object exists.
+   */
+  public boolean isUnchecked(IDRValue path) {
+    return fields.getOrDefault(path, false);
+  }
+
+  /**
+   * Returns the number of checks analyzed.
+   */
+  public int checkCount() {
+    return ops.size() + nots.size() + fields.size();
+  }
+
+  /**
+   * Returns the number of checks proven unneeded.
+   */
+  public int uncheckedCount() {
+    int count = 0;
+    for (Map<?,Boolean> checks : List.of(ops, nots, fields))
+      for (boolean unchecked : checks.values())
+        if (unchecked)
+          ++count;
+    return count;
+  }
+
+  //----------------------------------------------------------------------
+  // STATEMENTS
+  //----------------------------------------------------------------------
+
+  // analyze a block, forgetting the variables declared in it at its end
+  private void block(List<Stmt> stmts) throws MyPLException {
+    List<String> declared = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      if (facts == null)
+        return;
+      if (stmt instanceof VarDeclStmt)
+        declared.add(((VarDeclStmt) stmt).varName.lexeme());
+      stmt(stmt);
+    }
+    if (facts != null)
+      for (String var : declared)
+        facts.forget(var);
+  }
+
+  private void stmt(Stmt stmt) throws MyPLException {
+    if (stmt instanceof VarDeclStmt) {
+      VarDeclStmt node = (VarDeclStmt) stmt;
+      expr(node.expr);
+      assign(node.varName.lexeme(), node.expr);
+    } else if (stmt instanceof AssignStmt) {
+      AssignStmt node = (AssignStmt) stmt;
+      expr(node.expr);
+      // (a field assignment changes no variable)
+      if (node.lvalue.size() == 1)
+        assign(node.lvalue.get(0).lexeme(), node.expr);
+    } else if (stmt instanceof CondStmt) {
+      cond((CondStmt) stmt);
+    } else if (stmt instanceof WhileStmt) {
+      loop((WhileStmt) stmt);
+    } else if (stmt instanceof ForStmt) {
+      loop((ForStmt) stmt);
+    } else if (stmt instanceof ReturnStmt) {
+      if (((ReturnStmt) stmt).expr != null)
+        expr(((ReturnStmt) stmt).expr);
+      facts = null;
+    } else if (stmt instanceof DeleteStmt) {
+      // (other variables may refer to the same object)
+      facts.live.clear();
+    } else if (stmt instanceof CallExpr) {
+      call((CallExpr) stmt);
+    }
+  }
+
+  // the facts after giving a variable the value of an expression
+  private void assign(String var, Expr value) {
+    facts.forget(var);
+    if (isNonNil(value))
+      facts.nonNil.add(var);
+    String source = variable(value);
+    if (isNew(value) || (source != null && facts.live.contains(source)))
+      facts.live.add(var);
+  }
+
+  private void cond(CondStmt node) throws MyPLException {
+    List<Facts> outs = new ArrayList<>();
+    List<BasicIf> branches = new ArrayList<>();
+    branches.add(node.ifPart);
+    if (node.elifs != null)
+      branches.addAll(node.elifs);
+    for (BasicIf branch : branches) {
+      expr(branch.cond);
+      Facts otherwise = facts;
+      facts = otherwise.copy();
+      facts.nonNil.addAll(guarded(branch.cond, true));
+      block(branch.stmts);
+      outs.add(facts);
+      facts = otherwise;
+      facts.nonNil.addAll(guarded(branch.cond, false));
+    }
+    if (node.elseStmts != null)
+      block(node.elseStmts);
+    outs.add(facts);
+    facts = join(outs);
+  }
+
+  private void loop(WhileStmt node) throws MyPLException {
+    Facts head = facts;
+    Facts atTest;
+    while (true) {
+      facts = head.copy();
+      expr(node.cond);
+      atTest = facts;
+      facts = atTest.copy();
+      facts.nonNil.addAll(guarded(node.cond, true));
+      block(node.stmts);
+      Facts next = head.copy();
+      next.retain(facts);
+      if (next.sameAs(head))
+        break;
+      head = next;
+    }
+    facts = atTest;
+    facts.nonNil.addAll(guarded(node.cond, false));
+  }
+
+  private void loop(ForStmt node) throws MyPLException {
+    String var = node.varName.lexeme();
+    expr(node.start);
+    Facts head = facts;
+    Facts atTest;
+    while (true) {
+      // (a generic loop evaluates the end on each iteration)
+      facts = head.copy();
+      expr(node.end);
+      atTest = facts;
+      facts = atTest.copy();
+      // (the loop variable is an int in the body, or the loop test
+      // has already failed)
+      facts.forget(var);
+      facts.nonNil.add(var);
+      block(node.stmts);
+      Facts next = head.copy();
+      next.retain(facts);
+      if (next.sameAs(head))
+        break;
+      head = next;
+    }
+    facts = atTest;
+    facts.forget(var);
+  }
+
+  // the facts that hold on each of the paths (null if none can be
+  // reached)
+  private static Facts join(List<Facts> paths) {
+    Facts joined = null;
+    for (Facts path : paths) {
+      if (path == null)
+        continue;
+      if (joined == null)
+        joined = path.copy();
+      else
+        joined.retain(path);
+    }
+    return joined;
+  }
+
+  //----------------------------------------------------------------------
+  // EXPRESSIONS (in evaluation order)
+  //----------------------------------------------------------------------
+
+  private void expr(Expr node) throws MyPLException {
+    term(node.first);
+    if (node.op != null) {
+      expr(node.rest);
+      if (CHECKED_OPS.contains(node.op.lexeme())) {
+        mark(ops, node, isNonNil(node.first) && isNonNil(node.rest));
+        // (the program stops if either is nil)
+        addNonNil(variable(node.first));
+        addNonNil(variable(node.rest));
+      }
+    }
+    if (node.logicallyNegated) {
+      mark(nots, node, node.op != null || isNonNil(node.first));
+      if (node.op == null)
+        addNonNil(variable(node.first));
+    }
+  }
+
+  private void term(ExprTerm term) throws MyPLException {
+    if (term instanceof ComplexTerm) {
+      expr(((ComplexTerm) term).expr);
+      return;
+    }
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof CallExpr) {
+      call((CallExpr) rvalue);
+    } else if (rvalue instanceof NegatedRValue) {
+      expr(((NegatedRValue) rvalue).expr);
+    } else if (rvalue instanceof NewRValue) {
+      if (unsafeTypes.contains(((NewRValue) rvalue).typeName.lexeme()))
+        facts.live.clear();
+    } else if (rvalue instanceof IDRValue && ((IDRValue) rvalue).path.size() > 1) {
+      IDRValue path = (IDRValue) rvalue;
+      String var = path.path.get(0).lexeme();
+      mark(fields, path, facts.live.contains(var));
+      // (the program stops if the object does not exist)
+      facts.nonNil.add(var);
+      facts.live.add(var);
+    }
+  }
+
+  private void call(CallExpr node) throws MyPLException {
+    for (Expr arg : node.args)
+      expr(arg);
+    if (!HEAP_SAFE_BUILTINS.contains(node.funName.lexeme()))
+      facts.live.clear();
+  }
+
+  // record whether a visit proved a check unneeded
+  private static <T> void mark(Map<T,Boolean> checks, T node, boolean unchecked) {
+    checks.merge(node, unchecked, Boolean::logicalAnd);
+  }
+
+  private void addNonNil(String var) {
+    if (var != null)
+      facts.nonNil.add(var);
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // true if the expression cannot evaluate to nil (given the facts)
+  private boolean isNonNil(Expr expr) {
+    // operators always produce a value (or fail)
+    if (expr.op != null || expr.logicallyNegated)
+      return true;
+    return isNonNil(expr.first);
+  }
+
+  private boolean isNonNil(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return isNonNil(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) rvalue).value.type() != TokenType.NIL;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue) rvalue).path;
+      return path.size() == 1 && facts.nonNil.contains(path.get(0).lexeme());
+    }
+    if (rvalue instanceof CallExpr)
+      return NilAnalysis.NON_NIL_BUILTINS.contains(((CallExpr) rvalue).funName.lexeme());
+    // new and neg
+    return true;
+  }
+
+  // the variables the condition being true (or false) shows are not
+  // nil
+  private static Set<String> guarded(Expr cond, boolean value) {
+    Set<String> vars = new HashSet<>();
+    if (cond.logicallyNegated)
+      value = !value;
+    if (cond.op == null) {
+      if (cond.first instanceof ComplexTerm)
+        vars.addAll(guarded(((ComplexTerm) cond.first).expr, value));
+      return vars;
+    }
+    String op = cond.op.lexeme();
+    if ((op.equals("and") && value) || (op.equals("or") && !value)) {
+      // (both sides are always evaluated)
+      if (cond.first instanceof ComplexTerm)
+        vars.addAll(guarded(((ComplexTerm) cond.first).expr, value));
+      vars.addAll(guarded(cond.rest, value));
+    } else if ((op.equals("!=") && value) || (op.equals("==") && !value)) {
+      // x != nil (a string "nil" also compares equal to nil, so only
+      // true for a value that is not nil)
+      String var = variable(cond.first);
+      Token other = OptimizerPass.literal(cond.rest);
+      if (var == null) {
+        var = variable(cond.rest);
+        other = OptimizerPass.literal(cond.first);
+      }
+      if (var != null && other != null && other.type() == TokenType.NIL)
+        vars.add(var);
+    }
+    return vars;
+  }
+
+  // the local variable a term or expression consists of (or null)
+  private static String variable(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return variable(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (!(rvalue instanceof IDRValue) || ((IDRValue) rvalue).path.size() != 1)
+      return null;
+    return ((IDRValue) rvalue).path.get(0).lexeme();
+  }
+
+  private static String variable(Expr expr) {
+    if (expr.op != null || expr.logicallyNegated)
+      return null;
+    return variable(expr.first);
+  }
+
+  // true if the expression is a new
+  private static boolean isNew(Expr expr) {
+    while (expr.op == null && !expr.logicallyNegated && expr.first instanceof ComplexTerm)
+      expr = ((ComplexTerm) expr.first).expr;
+    return expr.op == null && !expr.logicallyNegated && expr.first instanceof SimpleTerm &&
+      ((SimpleTerm) expr.first).rvalue instanceof NewRValue;
+  }
+
+  // true if the field initializers of the type could delete objects
+  // (by calling a function, or creating an object whose initializers
+  // could)
+  private static boolean mayDelete(TypeDecl tdecl) throws MyPLException {
+    boolean[] unsafe = {false};
+    OptimizerPass scan = new OptimizerPass() {
+        public void visit(CallExpr node) throws MyPLException {
+          super.visit(node);
+          if (!HEAP_SAFE_BUILTINS.contains(node.funName.lexeme()))
+            unsafe[0] = true;
+        }
+        public void visit(NewRValue node) throws MyPLException {
+          unsafe[0] = true;
+        }
+      };
+    for (VarDeclStmt vdecl : tdecl.vdecls)
+      vdecl.expr.accept(scan);
+    return unsafe[0];
+  }
+
+}
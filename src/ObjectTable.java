@@ -0,0 +1,174 @@
+/*
+ * File: ObjectTable.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The VM's object table. Objects are stored in a dense slab
+ *       indexed by object id (oid). Ids released by FREE go on a free
+ *       list and are handed out again, so the table stays compact
+ *       after heavy allocate/delete churn and lookups never box or
+ *       allocate. Each slot also holds a row number, used by entries
+ *       (column stores) that keep many objects in numbered rows.
+ */
+
+
+public class ObjectTable {
+
+  // initial number of slots in the table
+  private static final int INITIAL_SLOTS = 256;
+
+  // marks the end of the free list
+  private static final int NONE = -1;
+
+  // the oid of slot 0
+  private int baseId;
+
+  // the object stored in each slot (null if the slot is free)
+  private Object[] entries = new Object[INITIAL_SLOTS];
+
+  // the row of each slot's object within its entry
+  private int[] rows = new int[INITIAL_SLOTS];
+
+  // for free slots, the next free slot (the free list)
+  private int[] nextFree = new int[INITIAL_SLOTS];
+
+  // the first free slot (or NONE)
+  private int freeHead = NONE;
+
+  // the number of slots handed out so far (free or not)
+  private int top = 0;
+
+  // the number of live objects
+  private int count = 0;
+
+
+  /**
+   * Create an empty table.
+   * @param baseId the first object id to hand out
+   */
+  public ObjectTable(int baseId) {
+    this.baseId = baseId;
+  }
+
+  /**
+   * Add an object to the table.
+   * @param entry the (non-null) object to store
+   * @return the new object's id
+   */
+  public int add(Object entry) {
+    return add(entry, 0);
+  }
+
+  /**
+   * Add an object that lives in a row of a shared entry.
+   * @param entry the (non-null) entry holding the object
+   * @param row the object's row within the entry
+   * @return the new object's id
+   */
+  public int add(Object entry, int row) {
+    int slot;
+    if (freeHead != NONE) {
+      slot = freeHead;
+      freeHead = nextFree[slot];
+    } else {
+      if (top == entries.length)
+        grow();
+      slot = top++;
+    }
+    entries[slot] = entry;
+    rows[slot] = row;
+    ++count;
+    return slot + baseId;
+  }
+
+  /**
+   * Returns the object with the given id, or null if there is none.
+   */
+  public Object get(int oid) {
+    int slot = oid - baseId;
+    if (slot < 0 || slot >= top)
+      return null;
+    return entries[slot];
+  }
+
+  /**
+   * Returns the row recorded for an object id (0 if there is none).
+   */
+  public int row(int oid) {
+    int slot = oid - baseId;
+    if (slot < 0 || slot >= top)
+      return 0;
+    return rows[slot];
+  }
+
+  /**
+   * Replace the object stored for a (live) object id.
+   */
+  public void set(int oid, Object entry) {
+    entries[oid - baseId] = entry;
+    rows[oid - baseId] = 0;
+  }
+
+  /**
+   * Remove the object with the given id, releasing the id for reuse.
+   * @return the removed object, or null if there was none
+   */
+  public Object remove(int oid) {
+    int slot = oid - baseId;
+    if (slot < 0 || slot >= top || entries[slot] == null)
+      return null;
+    Object entry = entries[slot];
+    entries[slot] = null;
+    nextFree[slot] = freeHead;
+    freeHead = slot;
+    --count;
+    return entry;
+  }
+
+  /**
+   * Returns the number of live objects.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Returns the smallest object id in use.
+   */
+  public int firstId() {
+    return baseId;
+  }
+
+  /**
+   * Returns one past the largest object id handed out so far.
+   */
+  public int endId() {
+    return baseId + top;
+  }
+
+  // double the number of slots
+  private void grow() {
+    Object[] newEntries = new Object[entries.length * 2];
+    System.arraycopy(entries, 0, newEntries, 0, top);
+    entries = newEntries;
+    int[] newNextFree = new int[nextFree.length * 2];
+    System.arraycopy(nextFree, 0, newNextFree, 0, top);
+    nextFree = newNextFree;
+    int[] newRows = new int[rows.length * 2];
+    System.arraycopy(rows, 0, newRows, 0, top);
+    rows = newRows;
+  }
+
+  @Override
+  public String toString() {
+    String s = "{";
+    String sep = "";
+    for (int slot = 0; slot < top; ++slot) {
+      if (entries[slot] != null) {
+        s += sep + (slot + baseId) + "=" + entries[slot];
+        sep = ", ";
+      }
+    }
+    return s + "}";
+  }
+
+}
@@ -34,6 +34,8 @@ public enum OpCode {
   // jump
   JMP,          // jump to given instruction
   JMPF,         // pop x off stack, if x is false jump to instruction
+  FORPREP,      // if the loop counter is past its limit, jump to the exit
+  FORLOOP,      // step the loop counter, if not past its limit jump back
 
   // functions
   CALL,         // calls the function f
@@ -49,10 +51,12 @@ public enum OpCode {
   TOSTR,        // pop x, push x.toString()
   
   // heap 
-  ALLOC,        // allocate obj w/ atts-list, push y (oid)
+  ALLOC,        // allocate obj w/ atts-list (or shape), push y (oid)
   FREE,         // pop x, deallocate object with oid x
   SETFLD,       // set field f: pop x and y, set obj(y).f = x
   GETFLD,       // get field f: pop x, push obj(x).f value
+  SETROOT,      // pop x and y, set persistent root named y to obj x
+  GETROOT,      // pop x, push obj (oid) of persistent root named x
   
   // special
   DUP,          // pop x, push x, push x
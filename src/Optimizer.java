@@ -0,0 +1,275 @@
+/*
+ * File: Optimizer.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The optimization settings for compiling a program and the
+ *       driver for the AST passes that run between the static checker
+ *       and the code generator (and, at level 3, the passes over the
+ *       SSA form the program is compiled through). Each pass adds a
+ *       line to the optimization report (see --opt-report).
+ *
+ *       Levels:
+ *         0  no optimization
+ *         1  constant folding/propagation, dead code elimination,
+ *            sharing of variable slots, and removal of the index,
+ *            nil, and field checks that always pass
+ *         2  level 1 plus compile-time evaluation of pure calls
+ *            with literal arguments, unrolling of for loops with
+ *            constant bounds, algebraic simplification and
+ *            strength reduction, loop-invariant code motion, local
+ *            common subexpression elimination, and inlining of small
+ *            functions
+ *         3  level 2 plus compiling through SSA form, with sparse
+ *            conditional constant propagation, global value
+ *            numbering, and dead value elimination (and more loop
+ *            unrolling)
+ *
+ *       A program compiled to record a profile (see ExecutionProfile)
+ *       is neither inlined nor unrolled, so every call and loop of the
+ *       source shows up in the profile. A profile read back in guides
+ *       the inliner and the loop unroller.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class Optimizer {
+
+  // the default optimization level
+  public static final int DEFAULT_LEVEL = 1;
+
+  // the highest optimization level
+  public static final int MAX_LEVEL = 3;
+
+  // the default largest function body (in AST nodes) to inline
+  public static final int DEFAULT_INLINE_BUDGET = 40;
+
+  // the default loop unroll factor of each level (see LoopUnroller,
+  // below 2 is no unrolling)
+  public static final int[] DEFAULT_UNROLL_FACTORS = {0, 0, 4, 8};
+
+  private int level = DEFAULT_LEVEL;
+  private int inlineBudget = DEFAULT_INLINE_BUDGET;
+  // (-1 for the default of the level)
+  private int unrollFactor = -1;
+
+  // true if compiling to record a profile
+  private boolean profiling = false;
+
+  // the profile of an earlier run (null if none)
+  private ExecutionProfile profile = null;
+
+  // the report lines
+  private List<String> notes = new ArrayList<>();
+
+
+  public void setLevel(int level) {
+    this.level = Math.max(0, Math.min(level, MAX_LEVEL));
+  }
+
+  public int level() {
+    return level;
+  }
+
+  public void setInlineBudget(int budget) {
+    inlineBudget = budget;
+  }
+
+  public int inlineBudget() {
+    return inlineBudget;
+  }
+
+  public void setUnrollFactor(int factor) {
+    unrollFactor = factor;
+  }
+
+  public int unrollFactor() {
+    if (profiling)
+      return 0;
+    return unrollFactor >= 0 ? unrollFactor : DEFAULT_UNROLL_FACTORS[level];
+  }
+
+  /**
+   * Compile to record a profile (turns off inlining and unrolling, so
+   * each call, branch, and allocation in the source is generated once
+   * in the function that contains it).
+   */
+  public void setProfiling(boolean profiling) {
+    this.profiling = profiling;
+  }
+
+  public boolean profiling() {
+    return profiling;
+  }
+
+  /**
+   * Guide the optimizations with the profile of an earlier run (of a
+   * program compiled with the same source and level).
+   */
+  public void setProfile(ExecutionProfile profile) {
+    this.profile = profile;
+    note("profile: " + profile.summary());
+  }
+
+  public ExecutionProfile profile() {
+    return profile;
+  }
+
+  /**
+   * Run the AST optimization passes for the current level.
+   * @param program a statically checked program
+   * @param typeInfo the type information from checking the program
+   */
+  public void optimize(Program program, TypeInfo typeInfo) throws MyPLException {
+    if (level < 1)
+      return;
+    ConstantFolder folder = new ConstantFolder();
+    program.accept(folder);
+    note("constant folding: " + folder.foldCount() + " operators folded, " +
+         folder.propagateCount() + " constant uses propagated");
+    if (level >= 2) {
+      PureCallEvaluator evaluator = new PureCallEvaluator(program, typeInfo);
+      program.accept(evaluator);
+      note("compile-time evaluation: " + evaluator.evaluatedCount() +
+           " calls to pure functions replaced by their result");
+    }
+    if (unrollFactor() >= 2) {
+      LoopUnroller unroller = new LoopUnroller(typeInfo, unrollFactor());
+      unroller.setProfile(profile);
+      program.accept(unroller);
+      note("loop unrolling (factor " + unrollFactor() + "): " + unroller.fullCount() +
+           " loops fully unrolled, " + unroller.partialCount() + " partially unrolled" +
+           (profile == null ? "" : ", " + unroller.coldCount() + " cold loops left alone"));
+      // (the copies of a fully unrolled body use the loop variable's value)
+      if (unroller.fullCount() > 0) {
+        folder = new ConstantFolder();
+        program.accept(folder);
+        note("constant folding (after unrolling): " + folder.foldCount() + " operators folded, " +
+             folder.propagateCount() + " constant uses propagated");
+      }
+    }
+    DeadCodeEliminator dce = new DeadCodeEliminator();
+    program.accept(dce);
+    note("dead code: " + dce.removedStatements() + " statements removed" +
+         (dce.removedFunctions().isEmpty() ? "" :
+          ", unreachable functions removed: " + String.join(", ", dce.removedFunctions())));
+    if (level < 2)
+      return;
+    AlgebraicSimplifier simplifier = new AlgebraicSimplifier(typeInfo);
+    program.accept(simplifier);
+    note("algebraic simplification: " + simplifier.simplifyCount() + " operators simplified, " +
+         simplifier.reduceCount() + " loop products strength reduced");
+    LoopInvariantMotion licm = new LoopInvariantMotion();
+    program.accept(licm);
+    note("loop-invariant code motion: " + licm.hoistCount() + " expressions hoisted");
+    CommonSubexpressions cse = new CommonSubexpressions();
+    program.accept(cse);
+    note("common subexpressions: " + cse.reuseCount() + " repeated computations replaced by " +
+         cse.tempCount() + " temporaries");
+  }
+
+  /**
+   * Returns true if the program should be compiled through SSA form
+   * (see IRBuilder) instead of directly by the code generator.
+   */
+  public boolean useSSA() {
+    return level >= 3;
+  }
+
+  /**
+   * Run the SSA passes for the current level over the functions of a
+   * program.
+   */
+  public void optimize(List<IRFunction> functions) {
+    if (!useSSA())
+      return;
+    IRConstantPropagation sccp = new IRConstantPropagation();
+    IRValueNumbering gvn = new IRValueNumbering();
+    IRDeadCodeEliminator dce = new IRDeadCodeEliminator();
+    IRNilCheckEliminator nils = new IRNilCheckEliminator();
+    int blocks = 0;
+    for (IRFunction fn : functions) {
+      sccp.run(fn);
+      blocks += fn.removeUnreachable();
+      fn.simplifyPhis();
+      gvn.run(fn);
+      fn.simplifyPhis();
+      dce.run(fn);
+      nils.run(fn);
+    }
+    note("SSA constant propagation: " + sccp.foldCount() + " values folded, " +
+         sccp.branchCount() + " branches resolved, " + blocks + " blocks removed");
+    note("SSA value numbering: " + gvn.reuseCount() + " redundant values removed");
+    note("SSA dead values: " + dce.removedCount() + " instructions removed");
+    note("SSA nil checks: " + nils.uncheckedCount() + " of " + nils.checkCount() +
+         " nil and field checks removed");
+  }
+
+  /**
+   * Returns the inliner to use when generating code for the program
+   * (or null if inlining is off at the current level, or while
+   * profiling).
+   */
+  public Inliner inliner(Program program) throws MyPLException {
+    if (level < 2 || profiling)
+      return null;
+    Inliner inliner = new Inliner(program, inlineBudget);
+    inliner.setProfile(profile);
+    return inliner;
+  }
+
+  /**
+   * Returns the analysis of which string indexes are known to be in
+   * range (or null if every index is checked at the current level).
+   * Runs before the AST passes, on the program as written.
+   */
+  public RangeAnalysis rangeAnalysis(Program program) throws MyPLException {
+    if (level < 1)
+      return null;
+    RangeAnalysis ranges = RangeAnalysis.of(program);
+    note("range analysis: " + ranges.inRangeCount() + " string index checks removed");
+    return ranges;
+  }
+
+  /**
+   * Returns the analysis of which nil and field checks always pass
+   * (or null if every check is made at the current level). Runs after
+   * the AST passes, on the program the code generator sees.
+   */
+  public NilCheckAnalysis nilCheckAnalysis(Program program) throws MyPLException {
+    if (level < 1)
+      return null;
+    NilCheckAnalysis nils = NilCheckAnalysis.of(program);
+    note("nil analysis: " + nils.uncheckedCount() + " of " + nils.checkCount() +
+         " nil and field checks removed");
+    return nils;
+  }
+
+  /**
+   * Returns the slot allocator to pack the variable slots of each
+   * generated frame with (or null if slots are not shared at the
+   * current level).
+   */
+  public SlotAllocator slotAllocator() {
+    return level >= 1 ? new SlotAllocator() : null;
+  }
+
+  /**
+   * Add a line to the optimization report.
+   */
+  public void note(String line) {
+    notes.add(line);
+  }
+
+  /**
+   * Returns the optimization report.
+   */
+  public String report() {
+    String s = "Optimization report (level " + level + ")\n";
+    for (String note : notes)
+      s += "  " + note + "\n";
+    return s;
+  }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * File: OptimizerPass.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Base class for the AST optimization passes that run between
+ *       the static checker and the code generator. Each visit function
+ *       walks the node's children (in evaluation order) and does
+ *       nothing else, so a pass only overrides the nodes it rewrites.
+ *       Every statement list is visited through visitStatements() and
+ *       is bracketed by enterScope()/exitScope(), mirroring the static
+ *       checker's environments.
+ */
+
+import java.util.List;
+
+
+public abstract class OptimizerPass implements Visitor {
+
+  //----------------------------------------------------------------------
+  // HOOKS
+  //----------------------------------------------------------------------
+
+  // called before the statements of a new scope (function body, loop
+  // body, if/elif/else part) are visited
+  protected void enterScope() {
+  }
+
+  // called after the statements of a scope are visited
+  protected void exitScope() {
+  }
+
+  // visit a list of statements (in its own scope)
+  protected void visitBlock(List<Stmt> stmts) throws MyPLException {
+    enterScope();
+    visitStatements(stmts);
+    exitScope();
+  }
+
+  // visit each statement of a list (passes that add, remove, or
+  // replace statements override this)
+  protected void visitStatements(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the literal value of an expression if it is a single
+   * (non-negated) literal term, otherwise null.
+   */
+  public static Token literal(Expr expr) {
+    if (expr == null || expr.op != null || expr.logicallyNegated)
+      return null;
+    return literal(expr.first);
+  }
+
+  /**
+   * Returns the literal value of a term if it is a simple term holding
+   * a literal, otherwise null.
+   */
+  public static Token literal(ExprTerm term) {
+    if (term instanceof SimpleTerm && ((SimpleTerm) term).rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) ((SimpleTerm) term).rvalue).value;
+    return null;
+  }
+
+  /**
+   * Build a simple term holding the given literal.
+   */
+  public static SimpleTerm literalTerm(Token value) {
+    SimpleRValue rvalue = new SimpleRValue();
+    rvalue.value = value;
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    return term;
+  }
+
+  /**
+   * Build an expression consisting of the given literal.
+   */
+  public static Expr literalExpr(Token value) {
+    Expr expr = new Expr();
+    expr.first = literalTerm(value);
+    return expr;
+  }
+
+  /**
+   * Returns the first token of an expression (for source positions).
+   */
+  public static Token firstToken(Expr expr) {
+    ExprTerm term = expr.first;
+    while (term instanceof ComplexTerm)
+      term = ((ComplexTerm) term).expr.first;
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) rvalue).value;
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue) rvalue).path.get(0);
+    if (rvalue instanceof CallExpr)
+      return ((CallExpr) rvalue).funName;
+    if (rvalue instanceof NewRValue)
+      return ((NewRValue) rvalue).typeName;
+    return firstToken(((NegatedRValue) rvalue).expr);
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS (default traversal)
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (TypeDecl tdecl : node.tdecls)
+      tdecl.accept(this);
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    enterScope();
+    for (VarDeclStmt vdecl : node.vdecls)
+      vdecl.accept(this);
+    exitScope();
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    visitBlock(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitBlock(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitBlock(elif.stmts);
+    }
+    if (node.elseStmts != null)
+      visitBlock(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    visitBlock(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    // the loop variable (and so the range expressions) are in the
+    // body's scope
+    enterScope();
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStatements(node.stmts);
+    exitScope();
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
@@ -0,0 +1,495 @@
+/*
+ * File: PersistentHeap.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: An opt-in heap region backed by a memory-mapped file. Objects
+ *       reachable from a named root are moved into the region and
+ *       survive the process. Later runs map the file and reach the
+ *       objects through their roots without deserializing anything:
+ *       an object only gets a VM object id when a run first touches
+ *       it, and its fields are read and written in the mapped file.
+ *
+ *       File layout (all offsets in bytes):
+ *         header   magic, version, bytes used, epoch (number of runs
+ *                  that opened the file), and the last shape
+ *                  descriptor (descriptors form a linked list)
+ *         roots    MAX_ROOTS entries of (name, record offset)
+ *         data     records, shape descriptors, and strings
+ *
+ *       A record is (shape index, live flag, epoch, oid, nil bits)
+ *       followed by one 8 byte slot per field. Object references are
+ *       stored as record offsets and strings as string offsets. The
+ *       (epoch, oid) pair caches the object id the record was given
+ *       by the current run.
+ */
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class PersistentHeap {
+
+  // header
+  private static final int MAGIC = 0x4d59504c;
+  private static final int VERSION = 1;
+  private static final int USED = 8;
+  private static final int EPOCH = 16;
+  private static final int LAST_SHAPE = 20;
+
+  // root table
+  private static final int ROOTS = 64;
+  private static final int MAX_ROOTS = 64;
+  private static final int ROOT_NAME_BYTES = 56;
+  private static final int ROOT_SIZE = ROOT_NAME_BYTES + 8;
+
+  // start of the data area
+  private static final int DATA = ROOTS + MAX_ROOTS * ROOT_SIZE;
+
+  // record layout
+  private static final int REC_SHAPE = 0;
+  private static final int REC_LIVE = 4;
+  private static final int REC_EPOCH = 8;
+  private static final int REC_OID = 12;
+  private static final int REC_NILS = 16;
+  private static final int REC_FIELDS = 24;
+
+  // initial size of the mapped region
+  private static final int INITIAL_SIZE = 1 << 20;
+
+  private FileChannel channel;
+  private MappedByteBuffer region;
+
+  // this run's epoch
+  private int epoch;
+
+  // the VM's object table (persistent objects map to this heap)
+  private ObjectTable table;
+
+  // the shape descriptors in the file (by index), and the newest
+  // descriptor index for each type name
+  private List<Shape> shapes = new ArrayList<>();
+  private Map<String,Integer> shapeIds = new HashMap<>();
+
+  // the record offset of each persistent object (by oid - first id)
+  private int[] records = new int[256];
+
+
+  private PersistentHeap(FileChannel channel, ObjectTable table) {
+    this.channel = channel;
+    this.table = table;
+  }
+
+  /**
+   * Open (or create) a persistent heap file. The file's shape
+   * descriptors are read, but no objects are touched.
+   * @param fileName the heap file
+   * @param table the VM's object table
+   */
+  public static PersistentHeap open(String fileName, ObjectTable table) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(fileName),
+                                           StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE,
+                                           StandardOpenOption.CREATE);
+    PersistentHeap heap = new PersistentHeap(channel, table);
+    long size = channel.size();
+    heap.map(Math.max(size, INITIAL_SIZE));
+    if (size == 0) {
+      heap.region.putInt(0, MAGIC);
+      heap.region.putInt(4, VERSION);
+      heap.region.putLong(USED, DATA);
+      heap.region.putInt(EPOCH, 0);
+      heap.region.putInt(LAST_SHAPE, 0);
+    } else if (heap.region.getInt(0) != MAGIC || heap.region.getInt(4) != VERSION) {
+      channel.close();
+      throw new IOException("'" + fileName + "' is not a MyPL heap file");
+    }
+    heap.epoch = heap.region.getInt(EPOCH) + 1;
+    heap.region.putInt(EPOCH, heap.epoch);
+    heap.loadShapes();
+    return heap;
+  }
+
+  /**
+   * Flush the region to the file and close it.
+   */
+  public void close() throws IOException {
+    region.force();
+    channel.close();
+  }
+
+  //----------------------------------------------------------------------
+  // Roots
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the object id of the named root, or -1 if the root is not
+   * set. The root object is mapped in (given an id) if needed.
+   */
+  public int getRoot(String name) {
+    int entry = findRoot(name);
+    if (entry < 0 || region.getLong(entry + ROOT_NAME_BYTES) == 0)
+      return -1;
+    return oidFor((int) region.getLong(entry + ROOT_NAME_BYTES));
+  }
+
+  /**
+   * Set the named root, first moving the object and everything it
+   * reaches into the region.
+   * @param name the root name
+   * @param oid the root object (or -1 to clear the root)
+   */
+  public void setRoot(String name, int oid) throws MyPLException {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length >= ROOT_NAME_BYTES)
+      throw MyPLException.VMError("Persistent root name '" + name + "' is too long");
+    int entry = findRoot(name);
+    if (entry < 0) {
+      entry = findRoot("");
+      if (entry < 0)
+        throw MyPLException.VMError("Too many persistent roots (max " + MAX_ROOTS + ")");
+      region.put(entry, (byte) bytes.length);
+      for (int i = 0; i < bytes.length; ++i)
+        region.put(entry + 1 + i, bytes[i]);
+    }
+    long record = oid < 0 ? 0 : persist(oid);
+    region.putLong(entry + ROOT_NAME_BYTES, record);
+  }
+
+  // the root table entry for the name (an empty name finds a free
+  // entry), or -1
+  private int findRoot(String name) {
+    for (int i = 0; i < MAX_ROOTS; ++i) {
+      int entry = ROOTS + i * ROOT_SIZE;
+      int length = region.get(entry);
+      byte[] bytes = new byte[length];
+      for (int j = 0; j < length; ++j)
+        bytes[j] = region.get(entry + 1 + j);
+      if (name.equals(new String(bytes, StandardCharsets.UTF_8)))
+        return entry;
+    }
+    return -1;
+  }
+
+  //----------------------------------------------------------------------
+  // Objects
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the shape of a persistent object.
+   */
+  public Shape shape(int oid) {
+    return shapes.get(region.getInt(record(oid) + REC_SHAPE));
+  }
+
+  /**
+   * Returns the value of a field of a persistent object.
+   * @param oid the object id
+   * @param field the position of the field in the object's shape
+   */
+  public Object get(int oid, int field) {
+    int rec = record(oid);
+    Shape shape = shapes.get(region.getInt(rec + REC_SHAPE));
+    if ((region.getLong(rec + REC_NILS) & (1L << field)) != 0)
+      return VM.NIL_OBJ;
+    long slot = region.getLong(rec + REC_FIELDS + 8 * field);
+    switch (shape.kind(field)) {
+      case INT:
+        return (int) slot;
+      case DOUBLE:
+        return Double.longBitsToDouble(slot);
+      case BOOL:
+        return slot != 0;
+      default:
+        if (isString(shape.fieldType(field)))
+          return readString((int) slot);
+        return oidFor((int) slot);
+    }
+  }
+
+  /**
+   * Set a field of a persistent object. Objects stored in the field
+   * are moved into the region (so everything reachable from a root
+   * stays persistent).
+   * @param oid the object id
+   * @param field the position of the field in the object's shape
+   * @param value the new value
+   */
+  public void set(int oid, int field, Object value) throws MyPLException {
+    writeField(record(oid), field, value);
+  }
+
+  /**
+   * Delete a persistent object (its space is not reclaimed).
+   */
+  public void free(int oid) {
+    region.putInt(record(oid) + REC_LIVE, 0);
+    records[oid - table.firstId()] = 0;
+  }
+
+  /**
+   * Returns the bytes a persistent object uses in the region.
+   */
+  public long bytes(int oid) {
+    return REC_FIELDS + 8L * shape(oid).size();
+  }
+
+  /**
+   * Returns the number of bytes used in the region.
+   */
+  public long used() {
+    return region.getLong(USED);
+  }
+
+  // the record offset of a mapped-in object
+  private int record(int oid) {
+    return records[oid - table.firstId()];
+  }
+
+  // the object id for a record in this run, mapping the record in if
+  // this run has not seen it yet (-1 for deleted records)
+  private int oidFor(int rec) {
+    if (region.getInt(rec + REC_LIVE) == 0)
+      return -1;
+    if (region.getInt(rec + REC_EPOCH) == epoch)
+      return region.getInt(rec + REC_OID);
+    int oid = table.add(this);
+    mapIn(oid, rec);
+    return oid;
+  }
+
+  // associate an object id with a record (for this run)
+  private void mapIn(int oid, int rec) {
+    int slot = oid - table.firstId();
+    while (slot >= records.length) {
+      int[] grown = new int[records.length * 2];
+      System.arraycopy(records, 0, grown, 0, records.length);
+      records = grown;
+    }
+    records[slot] = rec;
+    region.putInt(rec + REC_EPOCH, epoch);
+    region.putInt(rec + REC_OID, oid);
+  }
+
+  // move the object (and everything it reaches) into the region,
+  // returning its record offset
+  private int persist(int oid) throws MyPLException {
+    if (table.get(oid) == this)
+      return record(oid);
+    // objects are moved in breadth first (with their old field values)
+    // so long chains do not recurse
+    Deque<Object[]> pending = new ArrayDeque<>();
+    int rec = moveIn(oid, pending);
+    while (!pending.isEmpty()) {
+      Object[] move = pending.removeFirst();
+      int moved = (int) move[0];
+      for (int i = 1; i < move.length; ++i)
+        writeField(moved, i - 1, move[i], pending);
+    }
+    return rec;
+  }
+
+  // allocate a record for a transient object and switch its table
+  // entry over to the region, queueing its field values to be written
+  private int moveIn(int oid, Deque<Object[]> pending) throws MyPLException {
+    Object entry = table.get(oid);
+    Shape shape;
+    Object[] move;
+    if (entry instanceof HeapObject) {
+      shape = ((HeapObject) entry).shape();
+      move = new Object[shape.size() + 1];
+      for (int i = 0; i < shape.size(); ++i)
+        move[i + 1] = ((HeapObject) entry).get(i);
+    } else if (entry instanceof ColumnStore) {
+      shape = ((ColumnStore) entry).shape();
+      move = new Object[shape.size() + 1];
+      int row = table.row(oid);
+      for (int i = 0; i < shape.size(); ++i)
+        move[i + 1] = ((ColumnStore) entry).get(row, i);
+      ((ColumnStore) entry).free(row);
+    } else {
+      throw MyPLException.VMError("Cannot persist object " + oid);
+    }
+    if (shape.typeName() == null)
+      throw MyPLException.VMError("Cannot persist an untyped object");
+    if (shape.size() > 64)
+      throw MyPLException.VMError("Cannot persist type " + shape.typeName() +
+                                  " (more than 64 fields)");
+    int rec = allocate(REC_FIELDS + 8 * shape.size());
+    region.putInt(rec + REC_SHAPE, shapeIndex(shape));
+    region.putInt(rec + REC_LIVE, 1);
+    region.putLong(rec + REC_NILS, -1L);
+    table.set(oid, this);
+    mapIn(oid, rec);
+    move[0] = rec;
+    pending.addLast(move);
+    return rec;
+  }
+
+  // write a field value into a record
+  private void writeField(int rec, int field, Object value) throws MyPLException {
+    Deque<Object[]> pending = new ArrayDeque<>();
+    writeField(rec, field, value, pending);
+    while (!pending.isEmpty()) {
+      Object[] move = pending.removeFirst();
+      int moved = (int) move[0];
+      for (int i = 1; i < move.length; ++i)
+        writeField(moved, i - 1, move[i], pending);
+    }
+  }
+
+  private void writeField(int rec, int field, Object value, Deque<Object[]> pending)
+    throws MyPLException
+  {
+    Shape shape = shapes.get(region.getInt(rec + REC_SHAPE));
+    long nils = region.getLong(rec + REC_NILS);
+    if (value == VM.NIL_OBJ || value == null) {
+      region.putLong(rec + REC_NILS, nils | (1L << field));
+      return;
+    }
+    long slot;
+    switch (shape.kind(field)) {
+      case INT:
+        slot = (int) value;
+        break;
+      case DOUBLE:
+        slot = Double.doubleToRawLongBits((double) value);
+        break;
+      case BOOL:
+        slot = (boolean) value ? 1 : 0;
+        break;
+      default:
+        if (isString(shape.fieldType(field))) {
+          slot = writeString((String) value);
+        } else {
+          int target = (int) value;
+          Object entry = table.get(target);
+          if (entry == null)
+            throw MyPLException.VMError("Cannot persist a reference to a deleted object");
+          slot = entry == this ? record(target) : moveIn(target, pending);
+        }
+    }
+    region.putLong(rec + REC_FIELDS + 8 * field, slot);
+    region.putLong(rec + REC_NILS, nils & ~(1L << field));
+  }
+
+  //----------------------------------------------------------------------
+  // Shapes, strings, and space
+  //----------------------------------------------------------------------
+
+  // the descriptor index for a shape, adding a descriptor if the file
+  // has none for the shape's current layout
+  private int shapeIndex(Shape shape) throws MyPLException {
+    Integer index = shapeIds.get(shape.typeName());
+    if (index != null && sameLayout(shapes.get(index), shape))
+      return index;
+    // descriptor: previous, index, type name, field count, (name, type)*
+    List<Integer> strings = new ArrayList<>();
+    strings.add(writeString(shape.typeName()));
+    for (int i = 0; i < shape.size(); ++i) {
+      strings.add(writeString(shape.field(i)));
+      strings.add(writeString(shape.fieldType(i)));
+    }
+    int desc = allocate(12 + 4 * strings.size());
+    region.putInt(desc, region.getInt(LAST_SHAPE));
+    region.putInt(desc + 4, shapes.size());
+    region.putInt(desc + 8, shape.size());
+    for (int i = 0; i < strings.size(); ++i)
+      region.putInt(desc + 12 + 4 * i, strings.get(i));
+    region.putInt(LAST_SHAPE, desc);
+    shapeIds.put(shape.typeName(), shapes.size());
+    shapes.add(shape);
+    return shapes.size() - 1;
+  }
+
+  // read the shape descriptors stored in the file
+  private void loadShapes() {
+    List<Shape> loaded = new ArrayList<>();
+    for (int desc = region.getInt(LAST_SHAPE); desc != 0; desc = region.getInt(desc)) {
+      int index = region.getInt(desc + 4);
+      int count = region.getInt(desc + 8);
+      String typeName = readString(region.getInt(desc + 12));
+      List<String> fields = new ArrayList<>();
+      List<String> types = new ArrayList<>();
+      for (int i = 0; i < count; ++i) {
+        fields.add(readString(region.getInt(desc + 16 + 8 * i)));
+        types.add(readString(region.getInt(desc + 20 + 8 * i)));
+      }
+      while (loaded.size() <= index)
+        loaded.add(null);
+      loaded.set(index, Shape.of(typeName, fields, types));
+    }
+    shapes = loaded;
+    // descriptors were read newest first, so the first one seen for a
+    // type name is its current layout
+    for (int i = shapes.size() - 1; i >= 0; --i)
+      shapeIds.put(shapes.get(i).typeName(), i);
+  }
+
+  private static boolean sameLayout(Shape x, Shape y) {
+    if (x.size() != y.size())
+      return false;
+    for (int i = 0; i < x.size(); ++i)
+      if (!x.field(i).equals(y.field(i)) || !x.fieldType(i).equals(y.fieldType(i)))
+        return false;
+    return true;
+  }
+
+  private static boolean isString(String type) {
+    return "string".equals(type) || "char".equals(type);
+  }
+
+  // store a string (length then UTF-8 bytes), returning its offset
+  private int writeString(String s) throws MyPLException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int offset = allocate(4 + bytes.length);
+    region.putInt(offset, bytes.length);
+    for (int i = 0; i < bytes.length; ++i)
+      region.put(offset + 4 + i, bytes[i]);
+    return offset;
+  }
+
+  private String readString(int offset) {
+    byte[] bytes = new byte[region.getInt(offset)];
+    for (int i = 0; i < bytes.length; ++i)
+      bytes[i] = region.get(offset + 4 + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // allocate (8 byte aligned) space in the data area, growing the
+  // file as needed
+  private int allocate(int bytes) throws MyPLException {
+    long used = region.getLong(USED);
+    long end = used + ((bytes + 7) & ~7);
+    if (end > Integer.MAX_VALUE)
+      throw MyPLException.VMError("Persistent heap is full");
+    if (end > region.capacity()) {
+      long size = region.capacity();
+      while (size < end)
+        size *= 2;
+      try {
+        map(Math.min(size, Integer.MAX_VALUE));
+      } catch (IOException e) {
+        throw MyPLException.VMError("Cannot grow persistent heap: " +
+                                    e.getMessage());
+      }
+    }
+    region.putLong(USED, end);
+    return (int) used;
+  }
+
+  // (re)map the file with the given size
+  private void map(long size) throws IOException {
+    region = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * File: PureCallEvaluator.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Evaluates calls to pure functions (see PurityAnalysis) whose
+ *       arguments are all literals at compile time, replacing each
+ *       call with a literal of its result (so fib(20) becomes 6765).
+ *       The program is compiled into a separate VM and the function is
+ *       run there, with a limit on the instructions each call (and all
+ *       calls together) may run, so a call that takes too long (or
+ *       never returns) is left alone. A call that fails at runtime is
+ *       also left alone, so the error still happens when the program
+ *       runs.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class PureCallEvaluator extends OptimizerPass {
+
+  // the most instructions a single call may run
+  public static final long CALL_STEP_LIMIT = 1000000;
+
+  // the most instructions all calls together may run
+  public static final long TOTAL_STEP_LIMIT = 4000000;
+
+  // the pure functions of the program
+  private PurityAnalysis purity;
+
+  // the program and its type information (for compiling it)
+  private Program program;
+  private TypeInfo typeInfo;
+
+  // the VM the program is compiled into (null until the first call)
+  private VM vm = null;
+
+  // the result (a literal, or null if it cannot be evaluated) of each
+  // call so far, by function and arguments
+  private Map<List<Object>,Token> results = new HashMap<>();
+
+  // the number of instructions still allowed
+  private long budget = TOTAL_STEP_LIMIT;
+
+  // number of calls replaced by their result
+  private int evaluatedCount = 0;
+
+
+  /**
+   * Create an evaluator for the calls of a (checked) program.
+   */
+  public PureCallEvaluator(Program program, TypeInfo typeInfo) throws MyPLException {
+    this.program = program;
+    this.typeInfo = typeInfo;
+    purity = PurityAnalysis.of(program);
+  }
+
+  /**
+   * Returns the number of calls replaced by their result.
+   */
+  public int evaluatedCount() {
+    return evaluatedCount;
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    // (arguments first, so nested calls are evaluated inside out)
+    node.rvalue.accept(this);
+    if (!(node.rvalue instanceof CallExpr))
+      return;
+    CallExpr call = (CallExpr) node.rvalue;
+    Token value = evaluate(call);
+    if (value != null) {
+      node.rvalue = literalTerm(value).rvalue;
+      ++evaluatedCount;
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the result of a call as a literal (or null)
+  private Token evaluate(CallExpr call) throws MyPLException {
+    String name = call.funName.lexeme();
+    if (!purity.isPure(name))
+      return null;
+    List<Object> args = new ArrayList<>();
+    for (Expr arg : call.args) {
+      Object value = value(literal(arg));
+      if (value == null)
+        return null;
+      args.add(value);
+    }
+    List<Object> key = new ArrayList<>();
+    key.add(name);
+    // (nil is not the same argument as "nil")
+    for (Object arg : args)
+      key.add(arg == VM.NIL_OBJ ? TokenType.NIL : arg);
+    if (results.containsKey(key))
+      return results.get(key);
+    Token result = null;
+    if (budget > 0) {
+      Object value = run(name, args);
+      if (value != null)
+        result = literal(value, typeInfo.get(name, "return"), call.funName);
+    }
+    results.put(key, result);
+    return result;
+  }
+
+  // run the function in the evaluation VM (null if it fails or runs
+  // too long)
+  private Object run(String name, List<Object> args) throws MyPLException {
+    if (vm == null) {
+      vm = new VM();
+      program.accept(new CodeGenerator(typeInfo, vm));
+    }
+    long limit = Math.min(CALL_STEP_LIMIT, budget);
+    try {
+      return vm.call(name, args, limit);
+    } catch (MyPLException | RuntimeException e) {
+      return null;
+    } finally {
+      budget -= Math.min(limit, vm.stepCount());
+    }
+  }
+
+  // the VM value of a literal (or null if it is not one we evaluate
+  // with, including strings with escape sequences)
+  private static Object value(Token literal) {
+    if (literal == null)
+      return null;
+    switch (literal.type()) {
+      case INT_VAL:
+        try {
+          return Integer.parseInt(literal.lexeme());
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      case DOUBLE_VAL:
+        return Double.parseDouble(literal.lexeme());
+      case BOOL_VAL:
+        return literal.lexeme().equals("true");
+      case CHAR_VAL:
+      case STRING_VAL:
+        return literal.lexeme().indexOf('\\') >= 0 ? null : literal.lexeme();
+      case NIL:
+        return VM.NIL_OBJ;
+      default:
+        return null;
+    }
+  }
+
+  // a literal for a VM value of the given type (at the call's
+  // position), or null if it has no literal form (or is nil, which
+  // has no type of its own)
+  private static Token literal(Object value, String type, Token at) {
+    TokenType tokenType;
+    String lexeme;
+    if (value == VM.NIL_OBJ) {
+      return null;
+    } else if (value instanceof Integer && type.equals("int")) {
+      tokenType = TokenType.INT_VAL;
+      lexeme = value.toString();
+    } else if (value instanceof Double && type.equals("double")) {
+      if (((Double) value).isInfinite() || ((Double) value).isNaN())
+        return null;
+      tokenType = TokenType.DOUBLE_VAL;
+      lexeme = value.toString();
+    } else if (value instanceof Boolean && type.equals("bool")) {
+      tokenType = TokenType.BOOL_VAL;
+      lexeme = value.toString();
+    } else if (value instanceof String && (type.equals("string") || type.equals("char"))) {
+      // (written back with escape sequences, as the lexer leaves them)
+      String s = (String) value;
+      if (s.indexOf('\\') >= 0)
+        return null;
+      tokenType = type.equals("char") ? TokenType.CHAR_VAL : TokenType.STRING_VAL;
+      lexeme = s.replace("\n", "\\n").replace("\t", "\\t").replace("\r", "\\r");
+    } else {
+      return null;
+    }
+    return new Token(tokenType, lexeme, at.line(), at.column());
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * File: PurityAnalysis.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Finds the pure functions of a program: functions whose result
+ *       depends only on their argument values and that do nothing
+ *       else, so a call can be replaced by the result of an earlier
+ *       call with the same arguments. A function is pure if its
+ *       parameters and return value are primitive (int, double, bool,
+ *       char, or string), it does not create, read, change, or delete
+ *       objects, does no input or output (print, read, setroot,
+ *       getroot), and only calls pure functions. Recursive functions
+ *       start out pure and stay pure unless something they call is
+ *       not.
+ */
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+public class PurityAnalysis {
+
+  // the types of values that can be compared by value
+  private static final Set<String> PRIMITIVE_TYPES =
+    Set.of("int", "double", "bool", "char", "string");
+
+  // built-in functions with effects (or that read state)
+  private static final Set<String> IMPURE_BUILTINS =
+    Set.of("print", "read", "setroot", "getroot");
+
+  // the pure functions
+  private Set<String> pure = new LinkedHashSet<>();
+
+
+  /**
+   * Find the pure functions of a (checked) program.
+   */
+  public static PurityAnalysis of(Program program) throws MyPLException {
+    PurityAnalysis analysis = new PurityAnalysis();
+    CallGraph callGraph = CallGraph.of(program);
+    Map<String,Set<String>> callees = new HashMap<>();
+    for (FunDecl fdecl : program.fdecls) {
+      String name = fdecl.funName.lexeme();
+      if (isLocallyPure(fdecl)) {
+        analysis.pure.add(name);
+        callees.put(name, callGraph.callees(name));
+      }
+    }
+    // remove the functions that call impure ones (until none do)
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (String name : new LinkedHashSet<>(analysis.pure)) {
+        if (!analysis.pure.containsAll(callees.get(name))) {
+          analysis.pure.remove(name);
+          changed = true;
+        }
+      }
+    }
+    return analysis;
+  }
+
+  /**
+   * True if the function is pure.
+   */
+  public boolean isPure(String funName) {
+    return pure.contains(funName);
+  }
+
+  /**
+   * Returns the pure functions (in declaration order).
+   */
+  public Set<String> pureFunctions() {
+    return pure;
+  }
+
+  // true if the function itself (ignoring the functions it calls) is
+  // pure
+  private static boolean isLocallyPure(FunDecl fdecl) throws MyPLException {
+    if (fdecl.funName.lexeme().equals("main") ||
+        !PRIMITIVE_TYPES.contains(fdecl.returnType.lexeme()))
+      return false;
+    for (FunParam param : fdecl.params)
+      if (!PRIMITIVE_TYPES.contains(param.paramType.lexeme()))
+        return false;
+    boolean[] impure = {false};
+    fdecl.accept(new OptimizerPass() {
+        public void visit(AssignStmt node) throws MyPLException {
+          super.visit(node);
+          if (node.lvalue.size() > 1)
+            impure[0] = true;
+        }
+        public void visit(DeleteStmt node) throws MyPLException {
+          impure[0] = true;
+        }
+        public void visit(NewRValue node) throws MyPLException {
+          impure[0] = true;
+        }
+        public void visit(IDRValue node) throws MyPLException {
+          if (node.path.size() > 1)
+            impure[0] = true;
+        }
+        public void visit(CallExpr node) throws MyPLException {
+          super.visit(node);
+          if (IMPURE_BUILTINS.contains(node.funName.lexeme()))
+            impure[0] = true;
+        }
+      });
+    return !impure[0];
+  }
+
+}
@@ -4,6 +4,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Scanner;
 
@@ -104,6 +105,23 @@ public class REPL {
                         runLastCommand = true;
                         break;
                     }
+                    case ":heap": {
+                        System.out.print(vm.heapHistogram());
+                        break;
+                    }
+                    case ":dump":
+                    case ":d": {
+                        if (filename != null) {
+                            try (PrintStream out = new PrintStream(filename)) {
+                                vm.dumpHeap(out);
+                            } catch (IOException e) {
+                                System.out.println("Unable to write heap dump to '" + filename + "'");
+                            }
+                        } else {
+                            System.out.println("File name was not provided");
+                        }
+                        break;
+                    }
                     case ":load":
                     case ":l": {
                         if (filename != null) {
@@ -168,6 +186,8 @@ public class REPL {
         System.out.println("\t:show    => Shows declared types, functions, and variables");
         System.out.println("\t:prev    => Runs previous input to the REPL");
         System.out.println("\t:load    => loads the given file into the REPL");
+        System.out.println("\t:heap    => Shows a histogram of the live heap objects");
+        System.out.println("\t:dump    => Writes a heap snapshot to the given file");
     }
 
     private int charsInString(String str, char c) {
@@ -84,13 +84,7 @@ public class REPLASTParser extends ASTParser {
                 sTerm.rvalue = idrValue;
                 Expr expr = new Expr();
                 expr.first = sTerm;
-                if (isOperator()) {
-                    expr.op = currToken;
-                    advance();
-                    Expr rest = new Expr();
-                    expr(rest);
-                    expr.rest = rest;
-                }
+                operators(expr);
                 aStmt.expr = expr;
                 stmts.add(aStmt);
                 stmts.add(printExpr());
@@ -138,13 +132,7 @@ public class REPLASTParser extends ASTParser {
       sTerm.rvalue = callExpr;
       Expr expr = new Expr();
       expr.first = sTerm;
-      if (isOperator()) {
-          expr.op = currToken;
-          advance();
-          Expr rest = new Expr();
-          expr(rest);
-          expr.rest = rest;
-      }
+      operators(expr);
       aStmt.expr = expr;
       return aStmt;
     }
@@ -1,11 +1,18 @@
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 public class REPLCodeGenerator extends CodeGenerator {
 
     protected VMFrame globalFrame;
     protected Map<String,Integer> globalVarMap;
     protected int globalVarIndex;
+    // the functions declared so far, and those not generated yet
+    protected Map<String,FunDecl> funDecls = new LinkedHashMap<>();
+    protected Set<String> ungenerated = new HashSet<>();
     
     public REPLCodeGenerator(TypeInfo typeInfo, VM vm, VMFrame global) {
         super(typeInfo, vm);
@@ -22,9 +29,22 @@ public class REPLCodeGenerator extends CodeGenerator {
             // add a mapping from type name to the TypeDecl
             typeDecls.put(tdecl.typeName.lexeme(), tdecl);
         }
-        // only need to translate the function declarations
-        for (FunDecl fdecl : node.fdecls)
-            fdecl.accept(this);
+        // only translate the functions the statements can reach, the
+        // rest wait until a later input calls them
+        for (FunDecl fdecl : node.fdecls) {
+            funDecls.put(fdecl.funName.lexeme(), fdecl);
+            ungenerated.add(fdecl.funName.lexeme());
+        }
+        TreeShaker shaker = new TreeShaker(new ArrayList<>(funDecls.values()),
+                                           new ArrayList<>(typeDecls.values()));
+        shaker.addRoots(node.stmts);
+        for (FunDecl fdecl : funDecls.values()) {
+            String name = fdecl.funName.lexeme();
+            if (ungenerated.contains(name) && shaker.isLiveFunction(name)) {
+                fdecl.accept(this);
+                ungenerated.remove(name);
+            }
+        }
         
         // We want to add these instructions to the global VMFrame
         // Initialize the CodeGenerator with global values
@@ -0,0 +1,182 @@
+/*
+ * File: RangeAnalysis.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Finds the calls get(i, s) whose index is always in range, so
+ *       the VM can skip the index check (see VMInstr.setUnchecked).
+ *       The index must be the variable of an enclosing for loop that
+ *       runs over the indexes of the string, as in
+ *
+ *         for i from 0 upto length(s) - 1 { ... get(i, s) ... }
+ *         for i from length(s) - 1 downto 0 { ... get(i, s) ... }
+ *
+ *       where the bound at zero is a non-negative literal, the one at
+ *       the length subtracts a positive literal, s is a local
+ *       variable, and the loop body declares or assigns neither i nor
+ *       s (so both mean the same thing throughout the body).
+ *       Everything else keeps its check.
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class RangeAnalysis {
+
+  // the get calls whose index is proven in range
+  private Set<CallExpr> inRange = Collections.newSetFromMap(new IdentityHashMap<>());
+
+
+  /**
+   * Analyze the functions of a (checked) program.
+   */
+  public static RangeAnalysis of(Program program) throws MyPLException {
+    RangeAnalysis analysis = new RangeAnalysis();
+    for (FunDecl fdecl : program.fdecls)
+      fdecl.accept(analysis.new Scan());
+    return analysis;
+  }
+
+  /**
+   * True if the index of the given get call is always in range.
+   */
+  public boolean inRange(CallExpr call) {
+    return inRange.contains(call);
+  }
+
+  /**
+   * Returns the number of get calls whose index is proven in range.
+   */
+  public int inRangeCount() {
+    return inRange.size();
+  }
+
+  //----------------------------------------------------------------------
+  // ANALYSIS
+  //----------------------------------------------------------------------
+
+  // Visits a function, keeping track of the enclosing loops that run
+  // over the indexes of a string.
+  private class Scan extends OptimizerPass {
+
+    // loop variable to the string whose indexes it runs over
+    private Map<String,String> indexes = new HashMap<>();
+
+    public void visit(ForStmt node) throws MyPLException {
+      node.start.accept(this);
+      node.end.accept(this);
+      String var = node.varName.lexeme();
+      String string = indexedString(node);
+      String enclosing = indexes.get(var);
+      if (string != null)
+        indexes.put(var, string);
+      else
+        indexes.remove(var);
+      visitBlock(node.stmts);
+      if (enclosing != null)
+        indexes.put(var, enclosing);
+      else
+        indexes.remove(var);
+    }
+
+    public void visit(CallExpr node) throws MyPLException {
+      super.visit(node);
+      if (!node.funName.lexeme().equals("get") || node.args.size() != 2)
+        return;
+      String index = variable(node.args.get(0));
+      String string = variable(node.args.get(1));
+      if (index != null && string != null && string.equals(indexes.get(index)))
+        inRange.add(node);
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the string whose indexes a for loop's variable stays within (or
+  // null if it cannot be shown)
+  private static String indexedString(ForStmt node) throws MyPLException {
+    Token low = OptimizerPass.literal(node.upto ? node.start : node.end);
+    String string = lengthMinusConstant(node.upto ? node.end : node.start);
+    if (low == null || low.type() != TokenType.INT_VAL || intValue(low) < 0 || string == null)
+      return null;
+    Set<String> modified = modified(node.stmts);
+    if (modified.contains(node.varName.lexeme()) || modified.contains(string))
+      return null;
+    return string;
+  }
+
+  // if the expression is length(s) - k for a variable s and literal
+  // k > 0, returns s (otherwise null)
+  private static String lengthMinusConstant(Expr expr) {
+    expr = unwrap(expr);
+    if (expr.op == null || expr.logicallyNegated || expr.op.type() != TokenType.MINUS)
+      return null;
+    Token k = OptimizerPass.literal(expr.rest);
+    if (k == null || k.type() != TokenType.INT_VAL || intValue(k) < 1)
+      return null;
+    if (!(expr.first instanceof SimpleTerm) ||
+        !(((SimpleTerm) expr.first).rvalue instanceof CallExpr))
+      return null;
+    CallExpr call = (CallExpr) ((SimpleTerm) expr.first).rvalue;
+    if (!call.funName.lexeme().equals("length") || call.args.size() != 1)
+      return null;
+    return variable(call.args.get(0));
+  }
+
+  // the name of the local variable an expression consists of (or null)
+  private static String variable(Expr expr) {
+    expr = unwrap(expr);
+    if (expr.op != null || expr.logicallyNegated || !(expr.first instanceof SimpleTerm))
+      return null;
+    RValue rvalue = ((SimpleTerm) expr.first).rvalue;
+    if (!(rvalue instanceof IDRValue) || ((IDRValue) rvalue).path.size() != 1)
+      return null;
+    return ((IDRValue) rvalue).path.get(0).lexeme();
+  }
+
+  // the expression inside any redundant parentheses
+  private static Expr unwrap(Expr expr) {
+    while (expr.op == null && !expr.logicallyNegated && expr.first instanceof ComplexTerm)
+      expr = ((ComplexTerm) expr.first).expr;
+    return expr;
+  }
+
+  // the value of an int literal (-1 if it does not fit)
+  private static int intValue(Token literal) {
+    try {
+      return Integer.parseInt(literal.lexeme());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // the variables declared or assigned in the statements
+  private static Set<String> modified(List<Stmt> stmts) throws MyPLException {
+    Set<String> modified = new HashSet<>();
+    OptimizerPass scan = new OptimizerPass() {
+        public void visit(VarDeclStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.varName.lexeme());
+        }
+        public void visit(AssignStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.lvalue.get(0).lexeme());
+        }
+        public void visit(ForStmt node) throws MyPLException {
+          super.visit(node);
+          modified.add(node.varName.lexeme());
+        }
+      };
+    for (Stmt stmt : stmts)
+      stmt.accept(scan);
+    return modified;
+  }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * File: Shape.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: The layout of a user-defined (record) type as seen by the
+ *       VM. A shape fixes the order of the type's fields and records
+ *       the kind of value each field holds (as declared in TypeInfo),
+ *       so the VM can pick a storage strategy per type. Each field is
+ *       also assigned a slot: int, double, and bool fields go in an
+ *       object's primitive (long) slots, everything else in its
+ *       reference slots.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class Shape {
+
+  /**
+   * The kind of value stored in a field. Everything that is not an
+   * int, double, or bool (strings, chars, and object ids) is a REF.
+   */
+  public enum Kind { REF, INT, DOUBLE, BOOL }
+
+  // the most primitive slots an object can have (nil is tracked with
+  // one bit per primitive slot in a long)
+  public static final int MAX_PRIM_SLOTS = 64;
+
+  // name of the record type (null for untyped shapes)
+  private String typeName;
+
+  // field names in declaration order
+  private String[] fields;
+
+  // the kind of each field (parallel to fields)
+  private Kind[] kinds;
+
+  // the declared MyPL type of each field (null entries if untyped)
+  private String[] types;
+
+  // the slot of each field (parallel to fields)
+  private int[] slots;
+
+  // true if the field is stored in a primitive slot (parallel to fields)
+  private boolean[] primitive;
+
+  // the number of primitive and reference slots
+  private int primSlots = 0;
+  private int refSlots = 0;
+
+  // field name to position
+  private Map<String,Integer> positions = new HashMap<>();
+
+
+  private Shape(String typeName, List<String> fields, List<String> types) {
+    this.typeName = typeName;
+    this.fields = fields.toArray(new String[0]);
+    this.types = types.toArray(new String[0]);
+    kinds = new Kind[this.fields.length];
+    for (int i = 0; i < kinds.length; ++i)
+      kinds[i] = kindOf(this.types[i]);
+    slots = new int[this.fields.length];
+    primitive = new boolean[this.fields.length];
+    for (int i = 0; i < this.fields.length; ++i) {
+      positions.put(this.fields[i], i);
+      if (this.kinds[i] != Kind.REF && primSlots < MAX_PRIM_SLOTS) {
+        primitive[i] = true;
+        slots[i] = primSlots++;
+      } else {
+        slots[i] = refSlots++;
+      }
+    }
+  }
+
+  /**
+   * Build the shape of a user-defined type from its type information.
+   * @param typeInfo the type information from the static checker
+   * @param typeName the name of the record type
+   */
+  public static Shape of(TypeInfo typeInfo, String typeName) {
+    List<String> fields = new ArrayList<>(typeInfo.components(typeName));
+    List<String> types = new ArrayList<>();
+    for (String field : fields)
+      types.add(typeInfo.get(typeName, field));
+    return new Shape(typeName, fields, types);
+  }
+
+  /**
+   * Build a shape from field names and their declared MyPL types.
+   * @param typeName the name of the record type
+   * @param fields the field names in order
+   * @param types the declared type of each field
+   */
+  public static Shape of(String typeName, List<String> fields, List<String> types) {
+    return new Shape(typeName, fields, types);
+  }
+
+  /**
+   * Build a shape without type information (every field is a REF).
+   * @param fields the field names
+   */
+  public static Shape untyped(List<String> fields) {
+    return new Shape(null, fields, Arrays.asList(new String[fields.size()]));
+  }
+
+  // map a MyPL type name to a field kind
+  private static Kind kindOf(String type) {
+    if ("int".equals(type))
+      return Kind.INT;
+    else if ("double".equals(type))
+      return Kind.DOUBLE;
+    else if ("bool".equals(type))
+      return Kind.BOOL;
+    return Kind.REF;
+  }
+
+  public String typeName() {
+    return typeName;
+  }
+
+  public int size() {
+    return fields.length;
+  }
+
+  public String field(int index) {
+    return fields[index];
+  }
+
+  public Kind kind(int index) {
+    return kinds[index];
+  }
+
+  /**
+   * Returns the declared MyPL type of the field (or null if the shape
+   * is untyped).
+   */
+  public String fieldType(int index) {
+    return types[index];
+  }
+
+  /**
+   * Returns the field's slot (in the primitive slots if
+   * isPrimitiveSlot() is true for the field, and otherwise in the
+   * reference slots).
+   */
+  public int slot(int index) {
+    return slots[index];
+  }
+
+  public boolean isPrimitiveSlot(int index) {
+    return primitive[index];
+  }
+
+  public int primSlots() {
+    return primSlots;
+  }
+
+  public int refSlots() {
+    return refSlots;
+  }
+
+  public List<String> fields() {
+    return Arrays.asList(fields);
+  }
+
+  /**
+   * Returns the position of the given field, or -1 if the shape does
+   * not have the field.
+   */
+  public int indexOf(String field) {
+    Integer i = positions.get(field);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * True if every field holds an int, double, or bool value (and so
+   * instances can be stored without any object references).
+   */
+  public boolean isPrimitiveOnly() {
+    if (typeName == null || fields.length == 0)
+      return false;
+    for (Kind kind : kinds)
+      if (kind == Kind.REF)
+        return false;
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    String s = Arrays.toString(fields);
+    return typeName == null ? s : typeName + s;
+  }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * File: SlotAllocator.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Packs the variable slots of a generated frame. The code
+ *       generator gives every declaration (and for loop variable) its
+ *       own slot, so a function with many blocks or loops has many
+ *       slots that are never in use at the same time. A liveness
+ *       analysis over the frame's instructions finds which slots hold
+ *       a value that may still be loaded at each point, and slots are
+ *       then colored so two that are never live at the same time share
+ *       one (fewer slots means a smaller frame for each call).
+ *
+ *       A slot that may be loaded before it is stored (so is read as
+ *       an empty slot) is never shared. The counted loop instructions
+ *       (FORPREP and FORLOOP) use the slots of their ForLoop operand.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class SlotAllocator {
+
+  // number of slots before and after packing (over all frames)
+  private int slotsBefore = 0;
+  private int slotsAfter = 0;
+
+
+  /**
+   * Returns the number of variable slots the frames had before
+   * packing.
+   */
+  public synchronized int slotsBefore() {
+    return slotsBefore;
+  }
+
+  /**
+   * Returns the number of variable slots the frames have after
+   * packing.
+   */
+  public synchronized int slotsAfter() {
+    return slotsAfter;
+  }
+
+  /**
+   * Renumber the slots of a (complete) frame so slots with disjoint
+   * lifetimes are shared.
+   */
+  public void allocate(VMFrame frame) {
+    List<VMInstr> instrs = frame.instructions;
+    // the slots in order of first use
+    Map<Integer,Integer> index = new LinkedHashMap<>();
+    for (VMInstr instr : instrs)
+      for (int slot : slots(instr))
+        index.putIfAbsent(slot, index.size());
+    int n = index.size();
+    BitSet[] liveIn = liveness(instrs, index);
+    // slots that interfere (both hold a needed value at some store)
+    BitSet[] interferes = new BitSet[n];
+    for (int s = 0; s < n; s++)
+      interferes[s] = new BitSet(n);
+    for (int i = 0; i < instrs.size(); i++) {
+      Integer stored = stored(instrs.get(i));
+      if (stored == null)
+        continue;
+      int s = index.get(stored);
+      BitSet out = liveOut(instrs, i, liveIn);
+      for (int t = out.nextSetBit(0); t >= 0; t = out.nextSetBit(t + 1)) {
+        if (t != s) {
+          interferes[s].set(t);
+          interferes[t].set(s);
+        }
+      }
+    }
+    // a slot read before any store must stay empty
+    if (!instrs.isEmpty()) {
+      BitSet entry = liveIn[0];
+      for (int s = entry.nextSetBit(0); s >= 0; s = entry.nextSetBit(s + 1)) {
+        for (int t = 0; t < n; t++) {
+          if (t != s) {
+            interferes[s].set(t);
+            interferes[t].set(s);
+          }
+        }
+      }
+    }
+    // greedy coloring (in order of first use)
+    int[] color = new int[n];
+    int colors = 0;
+    for (int s = 0; s < n; s++) {
+      BitSet taken = new BitSet();
+      for (int t = interferes[s].nextSetBit(0); t >= 0 && t < s; t = interferes[s].nextSetBit(t + 1))
+        taken.set(color[t]);
+      color[s] = taken.nextClearBit(0);
+      colors = Math.max(colors, color[s] + 1);
+    }
+    count(n, colors);
+    for (VMInstr instr : instrs) {
+      if (instr.opcode() == OpCode.LOAD || instr.opcode() == OpCode.STORE) {
+        instr.updateOperand(color[index.get((Integer) instr.operand())]);
+      } else if (instr.operand() instanceof ForLoop) {
+        ForLoop loop = (ForLoop) instr.operand();
+        loop.counter = color[index.get(loop.counter)];
+        loop.limit = color[index.get(loop.limit)];
+      }
+    }
+  }
+
+  // add a frame's slots to the totals (frames may be allocated in
+  // parallel, see CodeGenerator)
+  private synchronized void count(int before, int after) {
+    slotsBefore += before;
+    slotsAfter += after;
+  }
+
+  //----------------------------------------------------------------------
+  // LIVENESS
+  //----------------------------------------------------------------------
+
+  // the slots an instruction loads (or stores)
+  private static List<Integer> slots(VMInstr instr) {
+    switch (instr.opcode()) {
+      case LOAD:
+      case STORE:
+        return List.of((Integer) instr.operand());
+      case FORPREP:
+      case FORLOOP:
+        ForLoop loop = (ForLoop) instr.operand();
+        return List.of(loop.counter, loop.limit);
+      default:
+        return List.of();
+    }
+  }
+
+  // the slot an instruction stores (or null)
+  private static Integer stored(VMInstr instr) {
+    if (instr.opcode() == OpCode.STORE)
+      return (Integer) instr.operand();
+    if (instr.opcode() == OpCode.FORLOOP)
+      return ((ForLoop) instr.operand()).counter;
+    return null;
+  }
+
+  // the slots (by index) that may be loaded before being stored again,
+  // on entry to each instruction
+  private static BitSet[] liveness(List<VMInstr> instrs, Map<Integer,Integer> index) {
+    int size = instrs.size();
+    BitSet[] liveIn = new BitSet[size];
+    for (int i = 0; i < size; i++)
+      liveIn[i] = new BitSet();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      // (backwards, so straight-line code settles in one pass)
+      for (int i = size - 1; i >= 0; i--) {
+        VMInstr instr = instrs.get(i);
+        BitSet live = liveOut(instrs, i, liveIn);
+        if (instr.opcode() == OpCode.STORE) {
+          live.clear(index.get((Integer) instr.operand()));
+        } else {
+          // (FORLOOP loads the counter before storing it)
+          for (int slot : slots(instr))
+            live.set(index.get(slot));
+        }
+        if (!live.equals(liveIn[i])) {
+          liveIn[i] = live;
+          changed = true;
+        }
+      }
+    }
+    return liveIn;
+  }
+
+  // the slots live after the i-th instruction
+  private static BitSet liveOut(List<VMInstr> instrs, int i, BitSet[] liveIn) {
+    BitSet out = new BitSet();
+    for (int succ : successors(instrs, i))
+      if (succ < instrs.size())
+        out.or(liveIn[succ]);
+    return out;
+  }
+
+  // the instructions that can run after the i-th one
+  private static List<Integer> successors(List<VMInstr> instrs, int i) {
+    VMInstr instr = instrs.get(i);
+    List<Integer> succs = new ArrayList<>();
+    switch (instr.opcode()) {
+      case JMP:
+        succs.add((Integer) instr.operand());
+        break;
+      case JMPF:
+        succs.add(i + 1);
+        succs.add((Integer) instr.operand());
+        break;
+      case FORPREP:
+      case FORLOOP:
+        succs.add(i + 1);
+        succs.add(((ForLoop) instr.operand()).target);
+        break;
+      case VRET:
+        break;
+      default:
+        succs.add(i + 1);
+        break;
+    }
+    return succs;
+  }
+
+}
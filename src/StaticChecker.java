@@ -8,6 +8,7 @@
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 // NOTE: Some of the following are filled in, some partly filled in,
 // and most left for you to fill in. The helper functions are provided
@@ -15,6 +16,10 @@ import java.util.List;
 
 public class StaticChecker implements Visitor {
 
+  // the fewest functions a program needs for their bodies to be
+  // checked in parallel
+  public static final int PARALLEL_MIN_FUNCTIONS = 32;
+
   // the symbol table
   private SymbolTable symbolTable = new SymbolTable();
   // the current expression type
@@ -51,7 +56,7 @@ public class StaticChecker implements Visitor {
   // return the build in function names
   private List<String> getBuiltinFunctions() {
     return Arrays.asList("print", "read", "length", "get", "stoi",
-        "stod", "itos", "itod", "dtos", "dtoi");
+        "stod", "itos", "itod", "dtos", "dtoi", "setroot", "getroot");
   }
 
   // check if given token is a valid function signature return type
@@ -110,6 +115,13 @@ public class StaticChecker implements Visitor {
     this.typeInfo = typeInfo;
   }
 
+  // a checker for one function body, with its own scopes over the
+  // (frozen) global environment of the given checker
+  private StaticChecker(StaticChecker global) {
+    this.typeInfo = global.typeInfo.share();
+    this.symbolTable = new SymbolTable(global.symbolTable);
+  }
+
   // --------------------------------------------------------------------
   // top-level nodes
   // --------------------------------------------------------------------
@@ -229,16 +241,44 @@ public class StaticChecker implements Visitor {
       error("main function does not have void return type", null);
     }
 
-    // check each type and function
+    // check each type and function (once the types are checked, the
+    // global environment and signatures no longer change, so the
+    // function bodies can be checked in parallel)
     for (TypeDecl tdecl : node.tdecls)
       tdecl.accept(this);
-    for (FunDecl fdecl : node.fdecls)
-      fdecl.accept(this);
+    if (node.fdecls.size() < PARALLEL_MIN_FUNCTIONS) {
+      for (FunDecl fdecl : node.fdecls)
+        fdecl.accept(this);
+    } else {
+      checkParallel(node.fdecls);
+    }
 
     // all done, pop the global table
     symbolTable.popEnvironment();
   }
 
+  // check each function body with its own checker over the common
+  // fork/join pool, reporting the error of the first function (in
+  // declaration order) that has one, as checking them in turn would
+  private void checkParallel(List<FunDecl> fdecls) throws MyPLException {
+    TypeInfo[] results = new TypeInfo[fdecls.size()];
+    MyPLException[] errors = new MyPLException[fdecls.size()];
+    IntStream.range(0, fdecls.size()).parallel().forEach(i -> {
+        StaticChecker checker = new StaticChecker(this);
+        try {
+          fdecls.get(i).accept(checker);
+          results[i] = checker.typeInfo;
+        } catch (MyPLException e) {
+          errors[i] = e;
+        }
+      });
+    for (MyPLException error : errors)
+      if (error != null)
+        throw error;
+    for (TypeInfo result : results)
+      typeInfo.addAll(result);
+  }
+
   public void visit(TypeDecl node) throws MyPLException {
     symbolTable.pushEnvironment();
     for (VarDeclStmt vDecl : node.vdecls) {
@@ -423,7 +463,8 @@ public class StaticChecker implements Visitor {
   public void visit(DeleteStmt node) throws MyPLException {
     if (!symbolTable.nameExists(node.varName.lexeme())) {
       error("Variable does not exist", node.varName);
-    } else if (!symbolTable.get(node.varName.lexeme()).equals("type")) {
+    } else if (!"type".equals(symbolTable.get(symbolTable.get(node.varName.lexeme())))) {
+      // the variable's type must itself be a user-defined type name
       error("Can only delete UDT", node.varName);
     }
   }
@@ -479,6 +520,23 @@ public class StaticChecker implements Visitor {
       typeChange(node, "double", "string", "dtos");
     } else if (funName.equals("dtoi")) {
       typeChange(node, "double", "int", "dtoi");
+    } else if (funName.equals("setroot")) {
+      // a root name and a user-defined type object (or nil)
+      if (node.args.size() != 2)
+        error("setroot expects two arguments", node.funName);
+      Expr e = node.args.get(0);
+      e.accept(this);
+      if (!currType.equals("string"))
+        error("expecting string in setroot", getFirstToken(e));
+      e = node.args.get(1);
+      e.accept(this);
+      if (!currType.equals("void") && !"type".equals(symbolTable.get(currType)))
+        error("expecting a user-defined type object in setroot", getFirstToken(e));
+      currType = "void";
+    } else if (funName.equals("getroot")) {
+      // the root's type is only known at runtime, so (like nil) the
+      // result can be assigned to any user-defined type variable
+      typeChange(node, "string", "void", "getroot");
     }
   }
 
@@ -573,6 +631,7 @@ public class StaticChecker implements Visitor {
       if (node.logicallyNegated && !currType.equals("bool")) {
         error("Logical negation only valid for bool type", getFirstToken(node.first));
       }
+      typeInfo.setType(node, currType);
       return;
     }
     String firstType = currType;
@@ -627,6 +686,7 @@ public class StaticChecker implements Visitor {
       }
     }
 
+    typeInfo.setType(node, currType);
   }
 
   // ----------------------------------------------------------------------
@@ -18,6 +18,17 @@ public class SymbolTable {
   List<Map<String,String>> environments = new ArrayList<>();
 
 
+  // creates an empty table
+  public SymbolTable() {
+  }
+
+  // creates a table layered over the environments of the given one,
+  // which are shared (not copied) and must not change while this
+  // table is in use (environments pushed on this table are its own)
+  public SymbolTable(SymbolTable enclosing) {
+    environments.addAll(enclosing.environments);
+  }
+
   // adds an environment to the table (which acts as the "current"
   // environment)
   public void pushEnvironment() {
@@ -0,0 +1,157 @@
+/*
+ * File: TreeShaker.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Finds the live functions and types of a program: the functions
+ *       that can be called (directly or through other calls) starting
+ *       from a set of roots, and the types they create with new. The
+ *       roots are main for a whole program, or the statements the REPL
+ *       runs. Field initializers of a live type count as part of the
+ *       type (they run on each new), so their calls and types are live
+ *       too. Everything else can be dropped before code generation,
+ *       since no run of the program can reach it.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class TreeShaker {
+
+  // the declared functions and types (by name)
+  private Map<String,FunDecl> fdecls = new LinkedHashMap<>();
+  private Map<String,TypeDecl> tdecls = new LinkedHashMap<>();
+
+  // the live functions and types
+  private Set<String> liveFunctions = new LinkedHashSet<>();
+  private Set<String> liveTypes = new LinkedHashSet<>();
+
+  // the declarations reached but not yet visited
+  private Deque<ASTNode> pending = new ArrayDeque<>();
+
+  // the functions and types removed by shake()
+  private List<String> removedFunctions = new ArrayList<>();
+  private List<String> removedTypes = new ArrayList<>();
+
+
+  /**
+   * Create a tree shaker over the given declarations (with no roots,
+   * so nothing is live yet).
+   */
+  public TreeShaker(List<FunDecl> fdecls, List<TypeDecl> tdecls) {
+    for (FunDecl fdecl : fdecls)
+      this.fdecls.put(fdecl.funName.lexeme(), fdecl);
+    for (TypeDecl tdecl : tdecls)
+      this.tdecls.put(tdecl.typeName.lexeme(), tdecl);
+  }
+
+  /**
+   * Find the live functions and types of a (checked) program, starting
+   * from main.
+   */
+  public static TreeShaker fromMain(Program program) throws MyPLException {
+    TreeShaker shaker = new TreeShaker(program.fdecls, program.tdecls);
+    shaker.addFunction("main");
+    shaker.propagate();
+    return shaker;
+  }
+
+  /**
+   * Add statements (that run) as roots, making everything they can
+   * reach live.
+   */
+  public void addRoots(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      pending.add(stmt);
+    propagate();
+  }
+
+  /**
+   * True if the function can be called from the roots.
+   */
+  public boolean isLiveFunction(String funName) {
+    return liveFunctions.contains(funName);
+  }
+
+  /**
+   * True if the type can be created from the roots.
+   */
+  public boolean isLiveType(String typeName) {
+    return liveTypes.contains(typeName);
+  }
+
+  /**
+   * Remove the functions and types that are not live from the program.
+   */
+  public void shake(Program program) {
+    Iterator<FunDecl> fiter = program.fdecls.iterator();
+    while (fiter.hasNext()) {
+      String name = fiter.next().funName.lexeme();
+      if (!isLiveFunction(name)) {
+        fiter.remove();
+        removedFunctions.add(name);
+      }
+    }
+    Iterator<TypeDecl> titer = program.tdecls.iterator();
+    while (titer.hasNext()) {
+      String name = titer.next().typeName.lexeme();
+      if (!isLiveType(name)) {
+        titer.remove();
+        removedTypes.add(name);
+      }
+    }
+  }
+
+  /**
+   * Returns the names of the functions removed by shake().
+   */
+  public List<String> removedFunctions() {
+    return removedFunctions;
+  }
+
+  /**
+   * Returns the names of the types removed by shake().
+   */
+  public List<String> removedTypes() {
+    return removedTypes;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // mark a function live (if it is declared), visiting it later
+  private void addFunction(String funName) {
+    if (fdecls.containsKey(funName) && liveFunctions.add(funName))
+      pending.add(fdecls.get(funName));
+  }
+
+  // mark a type live (if it is declared), visiting it later
+  private void addType(String typeName) {
+    if (tdecls.containsKey(typeName) && liveTypes.add(typeName))
+      pending.add(tdecls.get(typeName));
+  }
+
+  // visit the pending nodes (and the declarations they reach)
+  private void propagate() throws MyPLException {
+    OptimizerPass visitor = new OptimizerPass() {
+        public void visit(CallExpr node) throws MyPLException {
+          super.visit(node);
+          addFunction(node.funName.lexeme());
+        }
+        public void visit(NewRValue node) throws MyPLException {
+          addType(node.typeName.lexeme());
+        }
+      };
+    while (!pending.isEmpty())
+      pending.pop().accept(visitor);
+  }
+
+}
@@ -9,6 +9,7 @@
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.Set;
 
@@ -17,6 +18,38 @@ public class TypeInfo {
   // a type has a name and a set of component name-type pairs
   private Map<String,Map<String,String>> types = new HashMap<>();
 
+  // the type of each checked expression (by node identity)
+  private Map<Expr,String> exprTypes = new IdentityHashMap<>();
+
+  /**
+   * Create an empty type information table.
+   */
+  public TypeInfo() {
+  }
+
+  // a table sharing the types (not the expression types) of another
+  private TypeInfo(Map<String,Map<String,String>> types) {
+    this.types = types;
+  }
+
+  /**
+   * Returns a table that shares this table's types but records
+   * expression types on its own (for checking a function while others
+   * are checked in parallel). The types must not change while it is
+   * in use; its expression types are merged back with addAll().
+   */
+  public TypeInfo share() {
+    return new TypeInfo(types);
+  }
+
+  /**
+   * Adds the expression types recorded by another table.
+   * @param other the table whose expression types are added
+   */
+  public void addAll(TypeInfo other) {
+    exprTypes.putAll(other.exprTypes);
+  }
+
   /**
    * Returns the current set of type names being stored.
    */
@@ -65,5 +98,23 @@ public class TypeInfo {
       return types.get(type).get(componentName);
     return null;
   }
+
+  /**
+   * Records the type of an expression (set by the static checker).
+   * @param expr the expression node
+   * @param type the type the expression evaluates to
+   */
+  public void setType(Expr expr, String type) {
+    exprTypes.put(expr, type);
+  }
+
+  /**
+   * Returns the type of an expression, or null if the expression was
+   * not type checked (e.g., it was created by an optimization pass).
+   * @param expr the expression node
+   */
+  public String typeOf(Expr expr) {
+    return exprTypes.get(expr);
+  }
       
 }
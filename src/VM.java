@@ -19,6 +19,9 @@ import java.util.Map;
 import java.util.Deque;
 import java.util.ArrayDeque;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.io.IOException;
+import java.io.PrintStream;
 
 
 /*----------------------------------------------------------------------
@@ -50,11 +53,32 @@ class VM {
   // set to true to print debugging information
   private boolean DEBUG = false;
   
+  // the first object-id handed out
+  private static final int FIRST_OBJECT_ID = 1111;
+
   // the VM's heap (free store) accessible via object-id
-  private Map<Integer,Map<String,Object>> heap = new HashMap<>();
-  
-  // next available object-id
-  private int objectId = 1111;
+  private ObjectTable heap = new ObjectTable(FIRST_OBJECT_ID);
+
+  // true if primitive-only record types are stored column-wise
+  private boolean columnarHeap = false;
+
+  // the column-wise (off-heap) stores, one per primitive-only type
+  private Map<String,ColumnStore> columnStores = new HashMap<>();
+
+  // per-allocation-site counts (null if not profiling)
+  private AllocationProfiler allocProfiler = null;
+
+  // caches the results of pure functions (null if not memoizing)
+  private Memoizer memoizer = null;
+
+  // call and branch counts (null if not recording a profile)
+  private ExecutionProfile profile = null;
+
+  // the memory-mapped heap region (null if not persisting)
+  private PersistentHeap persistentHeap = null;
+
+  // the named roots when not persisting (root name to oid)
+  private Map<String,Integer> roots = new HashMap<>();
   
   // the frames for the program (one frame per function)
   private Map<String,VMFrame> frames = new HashMap<>();
@@ -62,6 +86,14 @@ class VM {
   // the VM call stack
   private Deque<VMFrame> frameStack = new ArrayDeque<>();
 
+  // the most instructions to run (-1 for no limit), and the number
+  // run so far (see call())
+  private long stepLimit = -1;
+  private long steps = 0;
+
+  // the value returned by the outermost frame
+  private Object returnValue = null;
+
   
   /**
    * For representing "nil" as a value
@@ -86,423 +118,93 @@ class VM {
     DEBUG = debug;
   }
 
-  public void runREPL() throws MyPLException {
-    VMFrame frame = frames.get("global");
-    frameStack.push(frame);
-
-    // run loop (keep going until we run out of frames or
-    // instructions) note that we assume each function returns a
-    // value, and so the second check below should never occur (but is
-    // useful for testing, etc).
-    while (frame != null && frame.pc < frame.instructions.size()) {
-      // get next instruction
-      VMInstr instr = frame.instructions.get(frame.pc);
-      // increment instruction pointer
-      ++frame.pc;
-
-      // For debugging: to turn on the following, call setDebug(true)
-      // on the VM.
-      if (DEBUG) {
-        System.out.println();
-        System.out.println("\t FRAME........: " + frame.functionName());
-        System.out.println("\t PC...........: " + (frame.pc - 1));
-        System.out.println("\t INSTRUCTION..: " + instr);
-        System.out.println("\t OPERAND STACK: " + frame.operandStack);
-        System.out.println("\t HEAP ........: " + heap);
-      }
-
-      
-      //------------------------------------------------------------
-      // Consts/Vars
-      //------------------------------------------------------------
-
-      if (instr.opcode() == OpCode.PUSH) {
-        frame.operandStack.push(instr.operand());
-      }
-
-      else if (instr.opcode() == OpCode.POP) {
-        frame.operandStack.pop();
-      }
-
-      else if (instr.opcode() == OpCode.LOAD) {
-        int index = (int)instr.operand();
-        frame.operandStack.push(frame.variables.get(index));
-      }
-        
-      else if (instr.opcode() == OpCode.STORE) {
-        Object store = frame.operandStack.pop();
-        int address = (int) instr.operand();
-        frame.variables.put(address, store);
-      }
-
-      
-      //------------------------------------------------------------
-      // Ops
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.ADD) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
-        if (x instanceof String) {
-          frame.operandStack.push((String)y + (String)x);
-        } else if (x instanceof Integer) {
-          frame.operandStack.push((int)y + (int) x);
-        } else if (x instanceof Double) {
-          frame.operandStack.push((double)y + (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.SUB) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
-        if (x instanceof Integer) {
-          frame.operandStack.push((int)y - (int) x);
-        } else if (x instanceof Double) {
-          frame.operandStack.push((double)y - (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.MUL) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
-        if (x instanceof Integer) {
-          frame.operandStack.push((int)y * (int) x);
-        } else if (x instanceof Double) {
-          frame.operandStack.push((double)y * (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.DIV) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
-        if (x instanceof Integer) {
-          int div = (int)y / (int) x;
-          frame.operandStack.push(div);
-        } else if (x instanceof Double) {
-          frame.operandStack.push((double)y / (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.MOD) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
-        frame.operandStack.push((int)y % (int) x);
-      }
-
-      else if (instr.opcode() == OpCode.AND) {
-        Boolean x =  (boolean)frame.operandStack.pop();
-        Boolean y = (boolean) frame.operandStack.pop();
-        frame.operandStack.push((x && y));
-      }
-
-      else if (instr.opcode() == OpCode.OR) {
-        Boolean x =  (boolean)frame.operandStack.pop();
-        Boolean y = (boolean) frame.operandStack.pop();
-        frame.operandStack.push((x || y));
-      }
-
-      else if (instr.opcode() == OpCode.NOT) {
-        Object operand = frame.operandStack.pop();
-        ensureNotNil(frame, operand);
-        frame.operandStack.push(!(boolean)operand);
-      }
-
-      else if (instr.opcode() == OpCode.CMPLT) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        if (x instanceof String) {
-          String j = (String) y;
-          frame.operandStack.push(j.compareTo((String)x) < 0);
-        } else if (x instanceof Integer) {
-          Integer j = (int)y;
-          frame.operandStack.push(j < (int) x);
-        } else if (x instanceof Double) {
-          double j = (double)y;
-          frame.operandStack.push(j < (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.CMPLE) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        if (x instanceof String) {
-          String j = (String) y;
-          frame.operandStack.push(j.compareTo((String)x) <= 0);
-        } else if (x instanceof Integer) {
-          Integer j = (int)y;
-          frame.operandStack.push(j <= (int) x);
-        } else if (x instanceof Double) {
-          double j = (double)y;
-          frame.operandStack.push(j <= (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.CMPGT) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        if (x instanceof String) {
-          String j = (String) y;
-          frame.operandStack.push(j.compareTo((String)x) > 0);
-        } else if (x instanceof Integer) {
-          Integer j = (int)y;
-          frame.operandStack.push(j > (int) x);
-        } else if (x instanceof Double) {
-          double j = (double)y;
-          frame.operandStack.push(j > (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.CMPGE) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        if (x instanceof String) {
-          String j = (String) y;
-          frame.operandStack.push(j.compareTo((String)x) >= 0);
-        } else if (x instanceof Integer) {
-          Integer j = (int)y;
-          frame.operandStack.push(j >= (int) x);
-        } else if (x instanceof Double) {
-          double j = (double)y;
-          frame.operandStack.push(j >= (double) x);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.CMPEQ) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        if (x instanceof String && y instanceof String) {
-          String j = (String) y;
-          frame.operandStack.push(j.equals((String)x));
-        } else if (x instanceof Integer && y instanceof Integer) {
-          Integer j = (int)y;
-          frame.operandStack.push(j == (int) x);
-        } else if (x instanceof Double && y instanceof Double) {
-          double j = (double)y;
-          frame.operandStack.push(j == (double) x);
-        } else {
-          frame.operandStack.push(false);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.CMPNE) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        if (x instanceof String && y instanceof String) {
-          String j = (String) y;
-          frame.operandStack.push(!j.equals((String)x));
-        } else if (x instanceof Integer && y instanceof Integer) {
-          Integer j = (int)y;
-          frame.operandStack.push(j != (int) x);
-        } else if (x instanceof Double && y instanceof Double) {
-          double j = (double)y;
-          frame.operandStack.push(j != (double) x);
-        } else {
-          frame.operandStack.push(true);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.NEG) {
-        Object op = frame.operandStack.pop();
-        if (op instanceof Integer) {
-          frame.operandStack.push(-(int)op);
-        } else if (op instanceof Double) {
-          frame.operandStack.push(-(double)op);
-        }
-        
-      }
-
-      
-      //------------------------------------------------------------
-      // Jumps
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.JMP) {
-        frame.pc = (int)instr.operand();
-      }
-
-      else if (instr.opcode() == OpCode.JMPF) {
-        boolean x = (boolean) frame.operandStack.pop();
-        if (!x) {
-          frame.pc = (int)instr.operand();
-        }
-      }
-        
-      //------------------------------------------------------------
-      // Functions
-      //------------------------------------------------------------
-
-      else if (instr.opcode() == OpCode.CALL) {
-        // (1) get frame and instantiate a new copy
-        String fName = (String) instr.operand();
-        VMFrame newFrame = frames.get(fName).instantiate();
-        
-        // (2) Pop argument values off stack and push into the newFrame
-        for(int i = 0; i < newFrame.argCount(); i++) {
-          newFrame.operandStack.push(frame.operandStack.pop());
-        }
-        // (3) Push the new frame onto frame stack
-        frameStack.push(newFrame);
-        // (4) Set the new frame as the current frame
-        frame = newFrame;
-        
-      }
-        
-      else if (instr.opcode() == OpCode.VRET) {
-        // (1) pop return value off of stack
-        Object ret = frame.operandStack.pop();
-        // (2) remove the frame from the current frameStack
-        frameStack.pop();
-        // (3) set frame to the frame on the top of the stack
-        frame = frameStack.peek();
-        // (4) push the return value onto the operand stack of the frame
-        if (frame == null) {
-          return;
-        }
-        frame.operandStack.push(ret);
-      }
-        
-      //------------------------------------------------------------
-      // Built-ins
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.WRITE) {
-        System.out.print(frame.operandStack.pop());
-      }
-
-      else if (instr.opcode() == OpCode.READ) {
-        Scanner s = new Scanner(System.in);
-        frame.operandStack.push(s.nextLine());
-      }
-
-      else if (instr.opcode() == OpCode.LEN) {
-        String str = (String) frame.operandStack.pop();
-        frame.operandStack.push(str.length());
-      }
-
-      else if (instr.opcode() == OpCode.GETCHR) {
-        String str = (String) frame.operandStack.pop();
-        int index = (int) frame.operandStack.pop();
-        if (index >= str.length() || index < 0) {
-          error("String index out of range", frame);
-        }
-        frame.operandStack.push(str.substring(index, index + 1));
-      }
-
-      else if (instr.opcode() == OpCode.TOINT) {
-        Object obj =  frame.operandStack.pop();
-        try {
-          if (obj instanceof String) {
-            String s = (String) obj;
-            frame.operandStack.push(Integer.parseInt(s));
-          } else if (obj instanceof Double) {
-            double d = (double) obj;
-            frame.operandStack.push((int) d);
-          }
-        } catch (Exception e) {
-          error("Cannot cast " + obj + " to type int", frame);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.TODBL) {
-        Object obj =  frame.operandStack.pop();
-        try {
-          if (obj instanceof String) {
-            String s = (String) obj;
-            frame.operandStack.push(Double.parseDouble(s));
-          } else if (obj instanceof Integer) {
-            int i = (int) obj;
-            frame.operandStack.push((double) i);
-          }
-        } catch (Exception e) {
-          error("Cannot cast " + obj + " to type double", frame);
-        }
-      }
-
-      else if (instr.opcode() == OpCode.TOSTR) {
-        Object obj =  frame.operandStack.pop();
-        try {
-          if (obj instanceof Integer) {
-            Integer i = (int) obj;
-            frame.operandStack.push(i.toString());
-          } else if (obj instanceof Double) {
-            Double d = (double) obj;
-            frame.operandStack.push(d.toString());
-          }
-        } catch (Exception e) {
-          error("Cannot cast to type String", frame);
-        }
-      }
+  /**
+   * Turn on/off columnar storage. When on, instances of record types
+   * whose fields are all ints, doubles, or bools are stored
+   * column-wise in off-heap buffers instead of one map per object.
+   * @param columnar set to true to turn on (by default false)
+   */
+  public void setColumnarHeap(boolean columnar) {
+    columnarHeap = columnar;
+  }
 
-      //------------------------------------------------------------
-      // Heap related
-      //------------------------------------------------------------
+  /**
+   * Turn on/off allocation-site profiling, which counts the objects
+   * allocated, freed, and still live for each "new" expression.
+   * @param profile set to true to turn on (by default false)
+   */
+  public void setAllocationProfiling(boolean profile) {
+    allocProfiler = profile ? new AllocationProfiler(FIRST_OBJECT_ID) : null;
+  }
 
-      else if (instr.opcode() == OpCode.ALLOC) {      
-        List<String> fields = (List<String>) instr.operand();
-        int id = objectId++;
-        Map<String, Object> newMap = new HashMap<>();
-        for(String field: fields) {
-          newMap.put(field, null);
-        }
-        heap.put(id, newMap);
-        frame.operandStack.push(id);
-      }
+  /**
+   * Memoize the calls to the given (pure) functions: a call with the
+   * same argument values as an earlier one returns the earlier result
+   * without running the function again.
+   * @param memoizer the result caches (null to turn memoization off)
+   */
+  public void setMemoizer(Memoizer memoizer) {
+    this.memoizer = memoizer;
+  }
 
-      else if (instr.opcode() == OpCode.FREE) {
-        // pop the oid to 
-        Object oid = frame.operandStack.pop();
-        ensureNotNil(frame, oid);
-        // remove the object with oid from the heap
-        heap.remove((int)oid);
-      }
+  /**
+   * Record the calls and branch outcomes of the run in the given
+   * profile (see ExecutionProfile).
+   * @param profile the profile to record in (null to turn recording off)
+   */
+  public void setProfile(ExecutionProfile profile) {
+    this.profile = profile;
+  }
 
-      else if (instr.opcode() == OpCode.SETFLD) {
-        Object x = frame.operandStack.pop();
-        int oid = (int) frame.operandStack.pop();
-        String f = (String) instr.operand();
-        heap.get(oid).put(f, x);
-      }
+  /**
+   * Returns the memoization hit rates (or null if memoization is off).
+   */
+  public String memoizationReport() {
+    return memoizer == null ? null : memoizer.report();
+  }
 
-      else if (instr.opcode() == OpCode.GETFLD) {  
-        int oid = (int) frame.operandStack.pop();
-        String f = (String) instr.operand();
-        if (heap.get(oid) == null) {
-          error("Cannot reference null object ID", frame);
-        }
-        frame.operandStack.push(heap.get(oid).get(f));
-      }
+  /**
+   * Back named roots (see the setroot and getroot built-ins) with a
+   * memory-mapped heap file. Objects reachable from a root are moved
+   * into the file and are visible to later runs using the same file.
+   * @param fileName the heap file (created if it does not exist)
+   */
+  public void openPersistentHeap(String fileName) throws IOException {
+    persistentHeap = PersistentHeap.open(fileName, heap);
+  }
 
-      //------------------------------------------------------------
-      // Special instructions
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.DUP) {
-        Object x = frame.operandStack.peek();
-        frame.operandStack.push(x);
-      }
+  /**
+   * Flush and close the persistent heap file (if one is open).
+   */
+  public void close() throws IOException {
+    if (persistentHeap != null) {
+      persistentHeap.close();
+      persistentHeap = null;
+    }
+  }
 
-      else if (instr.opcode() == OpCode.SWAP) {
-        Object x = frame.operandStack.pop();
-        Object y = frame.operandStack.pop();
-        frame.operandStack.push(x);
-        frame.operandStack.push(y);
-      }
+  /**
+   * Returns the top leaking and top allocating sites (or null if
+   * allocation profiling is off).
+   * @param top the number of sites to list in each category
+   */
+  public String allocationReport(int top) {
+    return allocProfiler == null ? null : allocProfiler.report(top);
+  }
 
-      else if (instr.opcode() == OpCode.NOP) {
-        // do nothing
-      }
+  /**
+   * Returns the number of instructions run by the last call().
+   */
+  public long stepCount() {
+    return steps;
+  }
 
-    }
+  /**
+   * Run the REPL's global frame. The global frame is not instantiated
+   * so that its variables and pc persist across REPL inputs.
+   */
+  public void runREPL() throws MyPLException {
+    execute(frames.get("global"));
   }
 
   /**
@@ -513,7 +215,38 @@ class VM {
     // grab the main stack frame
     if (!frames.containsKey("main"))
       throw MyPLException.VMError("No 'main' function");
-    VMFrame frame = frames.get("main").instantiate();
+    if (profile != null)
+      profile.called("main");
+    execute(frames.get("main").instantiate());
+  }
+
+  /**
+   * Call a function and return its result, giving up (with a VM
+   * error) after the given number of instructions. Used to evaluate
+   * calls at compile time.
+   * @param funName the function to call
+   * @param args the argument values
+   * @param maxSteps the most instructions to run
+   */
+  public Object call(String funName, List<Object> args, long maxSteps) throws MyPLException {
+    VMFrame frame = frames.get(funName).instantiate();
+    // (the first argument on top, as CALL leaves them)
+    for (int i = args.size() - 1; i >= 0; i--)
+      frame.operandStack.push(args.get(i));
+    steps = 0;
+    stepLimit = maxSteps;
+    returnValue = null;
+    try {
+      execute(frame);
+    } finally {
+      stepLimit = -1;
+      frameStack.clear();
+    }
+    return returnValue;
+  }
+
+  // run the given frame until we run out of frames or instructions
+  private void execute(VMFrame frame) throws MyPLException {
     frameStack.push(frame);
     
     // run loop (keep going until we run out of frames or
@@ -523,6 +256,8 @@ class VM {
     while (frame != null && frame.pc < frame.instructions.size()) {
       // get next instruction
       VMInstr instr = frame.instructions.get(frame.pc);
+      if (stepLimit >= 0 && ++steps > stepLimit)
+        throw MyPLException.VMError("Step limit exceeded");
       // increment instruction pointer
       ++frame.pc;
 
@@ -552,13 +287,13 @@ class VM {
 
       else if (instr.opcode() == OpCode.LOAD) {
         int index = (int)instr.operand();
-        frame.operandStack.push(frame.variables.get(index));
+        frame.operandStack.push(frame.load(index));
       }
         
       else if (instr.opcode() == OpCode.STORE) {
         Object store = frame.operandStack.pop();
         int address = (int) instr.operand();
-        frame.variables.put(address, store);
+        frame.store(address, store);
       }
 
       
@@ -569,8 +304,10 @@ class VM {
       else if (instr.opcode() == OpCode.ADD) {
         Object x = frame.operandStack.pop();
         Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
+        if (!instr.isUnchecked()) {
+          ensureNotNil(frame, x);
+          ensureNotNil(frame, y);
+        }
         if (x instanceof String) {
           frame.operandStack.push((String)y + (String)x);
         } else if (x instanceof Integer) {
@@ -583,8 +320,10 @@ class VM {
       else if (instr.opcode() == OpCode.SUB) {
         Object x = frame.operandStack.pop();
         Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
+        if (!instr.isUnchecked()) {
+          ensureNotNil(frame, x);
+          ensureNotNil(frame, y);
+        }
         if (x instanceof Integer) {
           frame.operandStack.push((int)y - (int) x);
         } else if (x instanceof Double) {
@@ -595,8 +334,10 @@ class VM {
       else if (instr.opcode() == OpCode.MUL) {
         Object x = frame.operandStack.pop();
         Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
+        if (!instr.isUnchecked()) {
+          ensureNotNil(frame, x);
+          ensureNotNil(frame, y);
+        }
         if (x instanceof Integer) {
           frame.operandStack.push((int)y * (int) x);
         } else if (x instanceof Double) {
@@ -607,8 +348,10 @@ class VM {
       else if (instr.opcode() == OpCode.DIV) {
         Object x = frame.operandStack.pop();
         Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
+        if (!instr.isUnchecked()) {
+          ensureNotNil(frame, x);
+          ensureNotNil(frame, y);
+        }
         if (x instanceof Integer) {
           int div = (int)y / (int) x;
           frame.operandStack.push(div);
@@ -620,8 +363,10 @@ class VM {
       else if (instr.opcode() == OpCode.MOD) {
         Object x = frame.operandStack.pop();
         Object y = frame.operandStack.pop();
-        ensureNotNil(frame, x);
-        ensureNotNil(frame, y);
+        if (!instr.isUnchecked()) {
+          ensureNotNil(frame, x);
+          ensureNotNil(frame, y);
+        }
         frame.operandStack.push((int)y % (int) x);
       }
 
@@ -639,7 +384,8 @@ class VM {
 
       else if (instr.opcode() == OpCode.NOT) {
         Object operand = frame.operandStack.pop();
-        ensureNotNil(frame, operand);
+        if (!instr.isUnchecked())
+          ensureNotNil(frame, operand);
         frame.operandStack.push(!(boolean)operand);
       }
 
@@ -758,10 +504,33 @@ class VM {
 
       else if (instr.opcode() == OpCode.JMPF) {
         boolean x = (boolean) frame.operandStack.pop();
+        if (profile != null)
+          profile.branched(instr, x);
         if (!x) {
           frame.pc = (int)instr.operand();
         }
       }
+
+      else if (instr.opcode() == OpCode.FORPREP) {
+        ForLoop loop = (ForLoop) instr.operand();
+        int limit = (int) frame.load(loop.limit);
+        boolean enter = loop.inRange((int) frame.load(loop.counter), limit);
+        if (profile != null)
+          profile.branched(instr, enter);
+        if (!enter)
+          frame.pc = loop.target;
+      }
+
+      else if (instr.opcode() == OpCode.FORLOOP) {
+        ForLoop loop = (ForLoop) instr.operand();
+        int counter = (int) frame.load(loop.counter) + (loop.upto ? 1 : -1);
+        frame.store(loop.counter, counter);
+        boolean again = loop.inRange(counter, (int) frame.load(loop.limit));
+        if (profile != null)
+          profile.branched(instr, again);
+        if (again)
+          frame.pc = loop.target;
+      }
         
       //------------------------------------------------------------
       // Functions
@@ -770,7 +539,23 @@ class VM {
       else if (instr.opcode() == OpCode.CALL) {
         // (1) get frame and instantiate a new copy
         String fName = (String) instr.operand();
+        if (profile != null)
+          profile.called(instr, fName);
+        List<Object> memoKey = null;
+        if (memoizer != null && memoizer.memoizes(fName)) {
+          // a repeated call to a pure function: use the earlier result
+          int argCount = frames.get(fName).argCount();
+          memoKey = Memoizer.key(frame.operandStack, argCount);
+          Object result = memoizer.lookup(fName, memoKey);
+          if (result != null) {
+            for (int i = 0; i < argCount; i++)
+              frame.operandStack.pop();
+            frame.operandStack.push(result);
+            continue;
+          }
+        }
         VMFrame newFrame = frames.get(fName).instantiate();
+        newFrame.memoKey = memoKey;
         
         // (2) Pop argument values off stack and push into the newFrame
         for(int i = 0; i < newFrame.argCount(); i++) {
@@ -786,12 +571,15 @@ class VM {
       else if (instr.opcode() == OpCode.VRET) {
         // (1) pop return value off of stack
         Object ret = frame.operandStack.pop();
+        if (frame.memoKey != null)
+          memoizer.store(frame.functionName(), frame.memoKey, ret);
         // (2) remove the frame from the current frameStack
         frameStack.pop();
         // (3) set frame to the frame on the top of the stack
         frame = frameStack.peek();
         // (4) push the return value onto the operand stack of the frame
         if (frame == null) {
+          returnValue = ret;
           return;
         }
         frame.operandStack.push(ret);
@@ -818,7 +606,7 @@ class VM {
       else if (instr.opcode() == OpCode.GETCHR) {
         String str = (String) frame.operandStack.pop();
         int index = (int) frame.operandStack.pop();
-        if (index >= str.length() || index < 0) {
+        if (!instr.isUnchecked() && (index >= str.length() || index < 0)) {
           error("String index out of range", frame);
         }
         frame.operandStack.push(str.substring(index, index + 1));
@@ -873,14 +661,20 @@ class VM {
       // Heap related
       //------------------------------------------------------------
 
-      else if (instr.opcode() == OpCode.ALLOC) {      
-        List<String> fields = (List<String>) instr.operand();
-        int id = objectId++;
-        Map<String, Object> newMap = new HashMap<>();
-        for(String field: fields) {
-          newMap.put(field, null);
+      else if (instr.opcode() == OpCode.ALLOC) {
+        Object operand = instr.operand();
+        int id;
+        if (operand instanceof Shape && isColumnar((Shape) operand)) {
+          ColumnStore store = columnStore((Shape) operand);
+          id = heap.add(store, store.allocate());
+        } else {
+          Shape shape = operand instanceof Shape ?
+            (Shape) operand : Shape.untyped((List<String>) operand);
+          id = heap.add(new HeapObject(shape));
+        }
+        if (allocProfiler != null) {
+          allocProfiler.allocated(instr, frame.functionName(), id);
         }
-        heap.put(id, newMap);
         frame.operandStack.push(id);
       }
 
@@ -889,23 +683,77 @@ class VM {
         Object oid = frame.operandStack.pop();
         ensureNotNil(frame, oid);
         // remove the object with oid from the heap
-        heap.remove((int)oid);
+        int row = heap.row((int)oid);
+        Object obj = heap.remove((int)oid);
+        if (obj instanceof ColumnStore) {
+          ((ColumnStore) obj).free(row);
+        } else if (obj instanceof PersistentHeap) {
+          ((PersistentHeap) obj).free((int)oid);
+        }
+        if (obj != null && allocProfiler != null) {
+          allocProfiler.freed((int)oid);
+        }
       }
 
       else if (instr.opcode() == OpCode.SETFLD) {
         Object x = frame.operandStack.pop();
         int oid = (int) frame.operandStack.pop();
         String f = (String) instr.operand();
-        heap.get(oid).put(f, x);
+        Object obj = heap.get(oid);
+        if (obj instanceof ColumnStore) {
+          ColumnStore store = (ColumnStore) obj;
+          store.set(heap.row(oid), store.shape().indexOf(f), x);
+        } else if (obj instanceof PersistentHeap) {
+          PersistentHeap region = (PersistentHeap) obj;
+          region.set(oid, persistentField(frame, oid, f), x);
+        } else {
+          HeapObject heapObj = (HeapObject) obj;
+          heapObj.set(heapObj.shape().indexOf(f), x);
+        }
       }
 
       else if (instr.opcode() == OpCode.GETFLD) {  
         int oid = (int) frame.operandStack.pop();
         String f = (String) instr.operand();
-        if (heap.get(oid) == null) {
+        Object obj = heap.get(oid);
+        if (obj == null && !instr.isUnchecked()) {
           error("Cannot reference null object ID", frame);
         }
-        frame.operandStack.push(heap.get(oid).get(f));
+        if (obj instanceof ColumnStore) {
+          ColumnStore store = (ColumnStore) obj;
+          frame.operandStack.push(store.get(heap.row(oid), store.shape().indexOf(f)));
+        } else if (obj instanceof PersistentHeap) {
+          PersistentHeap region = (PersistentHeap) obj;
+          frame.operandStack.push(region.get(oid, persistentField(frame, oid, f)));
+        } else {
+          HeapObject heapObj = (HeapObject) obj;
+          frame.operandStack.push(heapObj.get(heapObj.shape().indexOf(f)));
+        }
+      }
+
+      else if (instr.opcode() == OpCode.SETROOT) {
+        Object x = frame.operandStack.pop();
+        String name = (String) frame.operandStack.pop();
+        ensureNotNil(frame, name);
+        if (persistentHeap != null) {
+          persistentHeap.setRoot(name, x == NIL_OBJ ? -1 : (int) x);
+        } else if (x == NIL_OBJ) {
+          roots.remove(name);
+        } else {
+          roots.put(name, (int) x);
+        }
+      }
+
+      else if (instr.opcode() == OpCode.GETROOT) {
+        String name = (String) frame.operandStack.pop();
+        ensureNotNil(frame, name);
+        int oid = -1;
+        if (persistentHeap != null) {
+          oid = persistentHeap.getRoot(name);
+        } else if (roots.containsKey(name)) {
+          oid = roots.get(name);
+        }
+        frame.operandStack.push(oid < 0 ? NIL_OBJ : oid);
       }
 
       //------------------------------------------------------------
@@ -931,6 +779,129 @@ class VM {
     }
   }
 
+
+  /**
+   * Returns a histogram of the live objects on the heap: the number
+   * of objects, their estimated bytes, and the bytes reserved for them
+   * per MyPL type, largest first. For columnar types the reserved
+   * bytes are the store's columns, which stay allocated (up to the
+   * peak number of live objects) after objects are deleted.
+   */
+  public String heapHistogram() {
+    // type name -> {count, bytes, reserved}
+    Map<String,long[]> counts = new TreeMap<>();
+    long totalBytes = 0;
+    long totalReserved = 0;
+    for (int oid = heap.firstId(); oid < heap.endId(); ++oid) {
+      Object obj = heap.get(oid);
+      if (obj == null)
+        continue;
+      String type = shapeOf(oid, obj).typeName();
+      long bytes;
+      if (obj instanceof ColumnStore) {
+        bytes = ((ColumnStore) obj).bytesPerObject();
+      } else if (obj instanceof PersistentHeap) {
+        bytes = ((PersistentHeap) obj).bytes(oid);
+      } else {
+        bytes = ((HeapObject) obj).estimatedBytes();
+      }
+      if (type == null)
+        type = "<untyped>";
+      if (!counts.containsKey(type))
+        counts.put(type, new long[3]);
+      counts.get(type)[0] += 1;
+      counts.get(type)[1] += bytes;
+      totalBytes += bytes;
+      if (!(obj instanceof ColumnStore)) {
+        counts.get(type)[2] += bytes;
+        totalReserved += bytes;
+      }
+    }
+    // column stores are listed even if all their objects were deleted
+    for (ColumnStore store : columnStores.values()) {
+      String type = store.shape().typeName();
+      if (!counts.containsKey(type))
+        counts.put(type, new long[3]);
+      counts.get(type)[2] += store.reservedBytes();
+      totalReserved += store.reservedBytes();
+    }
+    List<Map.Entry<String,long[]>> rows = new ArrayList<>(counts.entrySet());
+    rows.sort((x, y) -> Long.compare(y.getValue()[2], x.getValue()[2]));
+    String s = "Heap histogram: " + heap.size() + " live objects, " +
+      totalBytes + " bytes (estimated), " + totalReserved + " reserved\n";
+    s += String.format("  %-20s %12s %14s %14s%n", "type", "objects",
+                       "bytes", "reserved");
+    for (Map.Entry<String,long[]> row : rows)
+      s += String.format("  %-20s %12d %14d %14d%n", row.getKey(),
+                         row.getValue()[0], row.getValue()[1],
+                         row.getValue()[2]);
+    return s;
+  }
+
+  /**
+   * Write a snapshot of the heap: the shape of each type, every live
+   * object with its field values, and the reference edges between
+   * objects.
+   * @param out the stream to write the snapshot to
+   */
+  public void dumpHeap(PrintStream out) {
+    List<String> edges = new ArrayList<>();
+    Map<String,Shape> shapes = new TreeMap<>();
+    out.println("# MyPL heap dump: " + heap.size() + " live objects");
+    out.println("objects:");
+    for (int oid = heap.firstId(); oid < heap.endId(); ++oid) {
+      Object obj = heap.get(oid);
+      if (obj == null)
+        continue;
+      Shape shape = shapeOf(oid, obj);
+      String type = shape.typeName() == null ? "<untyped>" : shape.typeName();
+      shapes.put(type, shape);
+      String line = "  @" + oid + " " + type;
+      if (obj instanceof ColumnStore)
+        line += " (columnar)";
+      else if (obj instanceof PersistentHeap)
+        line += " (persistent)";
+      line += " {";
+      for (int i = 0; i < shape.size(); ++i) {
+        Object val = fieldOf(oid, obj, i);
+        String text;
+        if (isReference(shape, i, val)) {
+          text = "@" + val;
+          edges.add("  @" + oid + "." + shape.field(i) + " -> @" + val);
+        } else if (val instanceof String && val != NIL_OBJ) {
+          text = "\"" + ((String) val).replace("\n", "\\n") + "\"";
+        } else {
+          text = String.valueOf(val);
+        }
+        line += (i > 0 ? ", " : "") + shape.field(i) + "=" + text;
+      }
+      out.println(line + "}");
+    }
+    out.println("shapes:");
+    for (Map.Entry<String,Shape> e : shapes.entrySet()) {
+      Shape shape = e.getValue();
+      String line = "  " + e.getKey() + " [";
+      for (int i = 0; i < shape.size(); ++i) {
+        String type = shape.fieldType(i) == null ? "?" : shape.fieldType(i);
+        line += (i > 0 ? ", " : "") + shape.field(i) + ": " + type;
+      }
+      out.println(line + "]");
+    }
+    out.println("edges:");
+    for (String edge : edges)
+      out.println(edge);
+    out.flush();
+  }
+
+  // true if the field value is an object id (a reference to another
+  // object)
+  private boolean isReference(Shape shape, int field, Object val) {
+    if (!(val instanceof Integer) || shape.kind(field) != Shape.Kind.REF)
+      return false;
+    String type = shape.fieldType(field);
+    return type == null ? heap.get((int) val) != null :
+      !type.equals("char") && !type.equals("string");
+  }
   
   // to print the lists of instructions for each VM Frame
   @Override
@@ -963,6 +934,48 @@ class VM {
     throw MyPLException.VMError(m);
   }
 
+  // the shape of a heap entry
+  private Shape shapeOf(int oid, Object obj) {
+    if (obj instanceof ColumnStore)
+      return ((ColumnStore) obj).shape();
+    else if (obj instanceof PersistentHeap)
+      return ((PersistentHeap) obj).shape(oid);
+    return ((HeapObject) obj).shape();
+  }
+
+  // the value of a field of a heap entry
+  private Object fieldOf(int oid, Object obj, int field) {
+    if (obj instanceof ColumnStore)
+      return ((ColumnStore) obj).get(heap.row(oid), field);
+    else if (obj instanceof PersistentHeap)
+      return ((PersistentHeap) obj).get(oid, field);
+    return ((HeapObject) obj).get(field);
+  }
+
+  // the position of a field in a persistent object (whose type may
+  // have been declared differently by the run that stored it)
+  private int persistentField(VMFrame f, int oid, String field) throws MyPLException {
+    int index = persistentHeap.shape(oid).indexOf(field);
+    if (index < 0)
+      error("Persistent object has no field '" + field + "'", f);
+    return index;
+  }
+
+  // true if instances of the shape are stored column-wise
+  private boolean isColumnar(Shape shape) {
+    return columnarHeap && shape.isPrimitiveOnly();
+  }
+
+  // the column store for the given (primitive-only) shape
+  private ColumnStore columnStore(Shape shape) {
+    ColumnStore store = columnStores.get(shape.typeName());
+    if (store == null) {
+      store = new ColumnStore(shape);
+      columnStores.put(shape.typeName(), store);
+    }
+    return store;
+  }
+
   // error if given value is nil
   private void ensureNotNil(VMFrame f, Object v) throws MyPLException {
     if (v == NIL_OBJ)
@@ -8,8 +8,8 @@
 
 import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.List;
 
 
@@ -31,8 +31,13 @@ public class VMFrame {
   // the program instructions 
   public List<VMInstr> instructions = new ArrayList<>();
 
-  // @TODO Should this be a HashMap? 
-  public HashMap<Integer, Object> variables = new HashMap<>();
+  // the local variables (by slot); sized for the frame's slots when
+  // instantiated, and grown as needed (e.g., for the REPL's global
+  // frame, whose instructions keep growing)
+  private Object[] variables;
+
+  // the number of slots the instructions use (-1 until counted)
+  private int slotCount = -1;
 
   // the operand stack
   public Deque<Object> operandStack = new ArrayDeque<>();
@@ -40,11 +45,20 @@ public class VMFrame {
   // the program counter (pc) for an active stack frame
   public int pc = 0;
 
+  // the argument values of a memoized call, to cache its result under
+  // (null if the call is not memoized)
+  public List<Object> memoKey = null;
+
 
   // basic constructor
   public VMFrame(String functionName, int argCount) {
+    this(functionName, argCount, 0);
+  }
+
+  private VMFrame(String functionName, int argCount, int slots) {
     this.functionName = functionName;
     this.argCount = argCount;
+    variables = new Object[slots];
   }
 
   // get the frame function's name
@@ -57,19 +71,49 @@ public class VMFrame {
     return argCount;
   }
   
+  /**
+   * Returns the value in a variable slot (null if never stored).
+   */
+  public Object load(int slot) {
+    return slot < variables.length ? variables[slot] : null;
+  }
+
+  /**
+   * Store a value in a variable slot.
+   */
+  public void store(int slot, Object value) {
+    if (slot >= variables.length)
+      variables = Arrays.copyOf(variables, Math.max(slot + 1, 2 * variables.length));
+    variables[slot] = value;
+  }
+
+  // the number of variable slots the instructions use
+  private int slotCount() {
+    if (slotCount < 0) {
+      slotCount = 0;
+      for (VMInstr instr : instructions)
+        if (instr.opcode() == OpCode.LOAD || instr.opcode() == OpCode.STORE)
+          slotCount = Math.max(slotCount, (int) instr.operand() + 1);
+        else if (instr.operand() instanceof ForLoop)
+          slotCount = Math.max(slotCount, Math.max(((ForLoop) instr.operand()).counter,
+                                                   ((ForLoop) instr.operand()).limit) + 1);
+    }
+    return slotCount;
+  }
+
   /**
    * Creates a new frame based on the current frame (for the purpose
    * of adding a new function call to the frame stack). The new frame
    * is created so that it has the same name, argument count, and
    * instructions as the current frame. However, the new frame has an
    * empty operand stack, and empty variable store, and the program
-   * counter set to the first instruction.
+   * counter set to the first instruction. The instructions are shared
+   * (they do not change once the frame is generated).
    * @return a new version of the current frame to add to the frame stack
    */
   public VMFrame instantiate() {
-    VMFrame newFrame = new VMFrame(functionName, argCount);
-    for (VMInstr instr : instructions)
-      newFrame.instructions.add(instr);
+    VMFrame newFrame = new VMFrame(functionName, argCount, slotCount());
+    newFrame.instructions = instructions;
     return newFrame;
   }
   
@@ -15,6 +15,12 @@ public class VMInstr {
   private OpCode opcode = null;
   private Object operand = null;
   private String comment = null;
+  // the source location the instruction was generated from (if known)
+  private int line = -1;
+  private int column = -1;
+  // true if the instruction's runtime checks were proven to pass at
+  // compile time (so the VM skips them)
+  private boolean unchecked = false;
   
   
   public VMInstr(OpCode opcode) {
@@ -31,6 +37,40 @@ public class VMInstr {
     this.comment = comment;
   }
   
+  /**
+   * Record the source location (of the given token) the instruction
+   * was generated from.
+   */
+  public void setSource(Token token) {
+    line = token.line();
+    column = token.column();
+  }
+
+  /**
+   * Returns the instruction's source location as "line:column", or
+   * null if the location is not known.
+   */
+  public String source() {
+    if (line < 0)
+      return null;
+    return line + ":" + column;
+  }
+
+  /**
+   * Let the VM skip the instruction's runtime checks (the compiler
+   * has proven they always pass).
+   */
+  public void setUnchecked() {
+    unchecked = true;
+  }
+
+  /**
+   * True if the VM can skip the instruction's runtime checks.
+   */
+  public boolean isUnchecked() {
+    return unchecked;
+  }
+
   public Object operand() {
     return operand;
   }
@@ -60,6 +100,8 @@ public class VMInstr {
     else if (operand == VM.NIL_OBJ) {
       str += " NIL_OBJ";
     }
+    if (unchecked)
+      str += " (unchecked)";
     // print the comment
     if (comment != null)
       str += "  // " + comment;
@@ -150,6 +192,14 @@ public class VMInstr {
     return new VMInstr(OpCode.JMPF, address);
   }
 
+  public static VMInstr FORPREP(ForLoop loop) {
+    return new VMInstr(OpCode.FORPREP, loop);
+  }
+
+  public static VMInstr FORLOOP(ForLoop loop) {
+    return new VMInstr(OpCode.FORLOOP, loop);
+  }
+
   public static VMInstr CALL(String funName) {
     return new VMInstr(OpCode.CALL, funName);    
   }
@@ -190,6 +240,10 @@ public class VMInstr {
     return new VMInstr(OpCode.ALLOC, fields);
   }
 
+  public static VMInstr ALLOC(Shape shape) {
+    return new VMInstr(OpCode.ALLOC, shape);
+  }
+
   public static VMInstr FREE() {
     return new VMInstr(OpCode.FREE);
   }
@@ -202,6 +256,14 @@ public class VMInstr {
     return new VMInstr(OpCode.GETFLD, field);
   }
 
+  public static VMInstr SETROOT() {
+    return new VMInstr(OpCode.SETROOT);
+  }
+
+  public static VMInstr GETROOT() {
+    return new VMInstr(OpCode.GETROOT);
+  }
+
   public static VMInstr DUP() {
     return new VMInstr(OpCode.DUP);
   }
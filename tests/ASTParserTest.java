@@ -31,6 +31,35 @@ public class ASTParserTest {
     return str;
   }
 
+  // the expression as a fully parenthesized string (not and neg
+  // included), showing how the parser grouped its operators
+  private static String show(Expr expr) {
+    String s = show(expr.first);
+    if (expr.logicallyNegated)
+      s = "(not " + s + ")";
+    if (expr.op != null)
+      s = "(" + s + " " + expr.op.lexeme() + " " + show(expr.rest) + ")";
+    return s;
+  }
+
+  private static String show(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return show(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof NegatedRValue)
+      return "(neg " + show(((NegatedRValue) rvalue).expr) + ")";
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue) rvalue).path.get(0).lexeme();
+    return ((SimpleRValue) rvalue).value.lexeme();
+  }
+
+  // the (shown) expression of "var x = <expr>" in a function
+  private static String parseExpr(String expr) throws Exception {
+    ASTParser parser = buildParser("fun void main() { var x = " + expr + " }");
+    Program p = parser.parse();
+    return show(((VarDeclStmt) p.fdecls.get(0).stmts.get(0)).expr);
+  }
+
   //------------------------------------------------------------
   // TEST CASES
   //------------------------------------------------------------
@@ -231,5 +260,74 @@ public class ASTParserTest {
     assertEquals(1, p.fdecls.get(0).stmts.size());
     assertEquals(CallExpr.class, p.fdecls.get(0).stmts.get(0).getClass());
   }
-  
-}
\ No newline at end of file
+
+  //------------------------------------------------------------
+  // OPERATOR PRECEDENCE AND ASSOCIATIVITY
+  //------------------------------------------------------------
+
+  @Test
+  public void sameOperatorGroupsLeft() throws Exception {
+    assertEquals("((a - b) - c)", parseExpr("a - b - c"));
+    assertEquals("((a / b) / c)", parseExpr("a / b / c"));
+    assertEquals("(((a - b) + c) - d)", parseExpr("a - b + c - d"));
+    assertEquals("((a % b) * c)", parseExpr("a % b * c"));
+  }
+
+  @Test
+  public void parenthesesOverridePrecedence() throws Exception {
+    assertEquals("(a - (b - c))", parseExpr("a - (b - c)"));
+    assertEquals("((a + b) * c)", parseExpr("(a + b) * c"));
+  }
+
+  @Test
+  public void eachLevelBindsTighterThanTheOneBefore() throws Exception {
+    assertEquals("(a or (b and c))", parseExpr("a or b and c"));
+    assertEquals("(a and (b == c))", parseExpr("a and b == c"));
+    assertEquals("(a != (b < c))", parseExpr("a != b < c"));
+    assertEquals("(a <= (b + c))", parseExpr("a <= b + c"));
+    assertEquals("(a - (b * c))", parseExpr("a - b * c"));
+    assertEquals("(a or (b and (c == (d < (e + (f * g))))))",
+                 parseExpr("a or b and c == d < e + f * g"));
+  }
+
+  @Test
+  public void eachLevelBindsLooserThanTheOneAfter() throws Exception {
+    assertEquals("((a * b) + c)", parseExpr("a * b + c"));
+    assertEquals("((a + b) > c)", parseExpr("a + b > c"));
+    assertEquals("((a >= b) == c)", parseExpr("a >= b == c"));
+    assertEquals("((a == b) and c)", parseExpr("a == b and c"));
+    assertEquals("((a and b) or c)", parseExpr("a and b or c"));
+    assertEquals("((((((a * b) + c) < d) == e) and f) or g)",
+                 parseExpr("a * b + c < d == e and f or g"));
+  }
+
+  @Test
+  public void mixedLogicalAndComparisonChains() throws Exception {
+    assertEquals("((a or (b and c)) or d)", parseExpr("a or b and c or d"));
+    assertEquals("(((a and b) or (c and d)) or e)",
+                 parseExpr("a and b or c and d or e"));
+    assertEquals("((a < b) and (c == d))", parseExpr("a < b and c == d"));
+    assertEquals("(((a < b) or ((c >= d) and (e != f))) or g)",
+                 parseExpr("a < b or c >= d and e != f or g"));
+    assertEquals("((a == b) == c)", parseExpr("a == b == c"));
+  }
+
+  @Test
+  public void notAppliesToAnEquality() throws Exception {
+    assertEquals("(not a)", parseExpr("not a"));
+    assertEquals("((not a) and b)", parseExpr("not a and b"));
+    assertEquals("((not (a == b)) and c)", parseExpr("not a == b and c"));
+    assertEquals("(not (a < (b + c)))", parseExpr("not a < b + c"));
+    assertEquals("(a or (not b))", parseExpr("a or not b"));
+    assertEquals("((not (a or b)) and c)", parseExpr("not (a or b) and c"));
+  }
+
+  @Test
+  public void negAppliesToAnOperand() throws Exception {
+    assertEquals("((neg a) * b)", parseExpr("neg a * b"));
+    assertEquals("((a - (neg b)) - c)", parseExpr("a - neg b - c"));
+    assertEquals("((neg (a + b)) * c)", parseExpr("neg (a + b) * c"));
+    assertEquals("((neg a) < b)", parseExpr("neg a < b"));
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * File: CodeGeneratorTest.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Tests of the code generated for (checked) programs
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+
+public class CodeGeneratorTest {
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+  // parse, check, and generate a program into a new VM
+  private static VM build(String s) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    program.accept(new CodeGenerator(typeInfo, vm));
+    return vm;
+  }
+
+  // the output of running a generated program
+  private static String run(VM vm) throws Exception {
+    PrintStream stdout = System.out;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out, true, "UTF-8"));
+    try {
+      vm.run();
+    } finally {
+      System.setOut(stdout);
+    }
+    return out.toString("UTF-8");
+  }
+
+  // the instructions of each frame (as printed by --ir), one per line
+  private static String[] instructions(VM vm) {
+    return vm.toString().split("\n");
+  }
+
+  // true if every call of f is followed by a POP of its result
+  private static boolean callResultsPopped(VM vm) {
+    String[] lines = instructions(vm);
+    int calls = 0;
+    for (int i = 0; i < lines.length; i++) {
+      if (!lines[i].endsWith(": CALL f"))
+        continue;
+      ++calls;
+      if (i + 1 == lines.length || !lines[i + 1].contains(": POP"))
+        return false;
+    }
+    return calls > 0;
+  }
+
+  //------------------------------------------------------------
+  // CALL STATEMENTS
+  //------------------------------------------------------------
+
+  @Test
+  public void callInIfBodyIsPopped() throws Exception {
+    String s = buildString
+      ("fun int f() { return 1 }",
+       "fun void main() {",
+       "  if true { f() }",
+       "}");
+    assertTrue(callResultsPopped(build(s)));
+  }
+
+  @Test
+  public void callInElifAndElseBodiesIsPopped() throws Exception {
+    String s = buildString
+      ("fun int f() { return 1 }",
+       "fun void main() {",
+       "  var x = 2",
+       "  if x == 1 { f() }",
+       "  elif x == 2 { f() }",
+       "  else { f() }",
+       "}");
+    VM vm = build(s);
+    int calls = 0;
+    for (String line : instructions(vm))
+      if (line.endsWith(": CALL f"))
+        ++calls;
+    assertEquals(3, calls);
+    assertTrue(callResultsPopped(vm));
+  }
+
+  //------------------------------------------------------------
+  // PARALLEL GENERATION (PARALLEL_MIN_FUNCTIONS or more functions)
+  //------------------------------------------------------------
+
+  // count functions f<i>(x) = x * i + 1, less 50 if over 50, each
+  // printed by main for x = i
+  private static String manyFunctions(int count) {
+    String str = "";
+    for (int i = 0; i < count; ++i) {
+      str += buildString
+        ("fun int f" + i + "(int x) {",
+         "  var y = x * " + i + " + 1",
+         "  if y > 50 { y = y - 50 }",
+         "  return y",
+         "}");
+    }
+    str += "fun void main() {\n";
+    for (int i = 0; i < count; ++i)
+      str += "  print(itos(f" + i + "(" + i + ")) + \" \")\n";
+    return str + "}\n";
+  }
+
+  @Test
+  public void parallelGenerationMatchesSerial() throws Exception {
+    int count = CodeGenerator.PARALLEL_MIN_FUNCTIONS + 8;
+    String s = manyFunctions(count);
+    // generated in parallel (by visiting the program)
+    VM parallel = build(s);
+    // generated in turn (by visiting each function)
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM serial = new VM();
+    CodeGenerator generator = new CodeGenerator(typeInfo, serial);
+    for (FunDecl fdecl : program.fdecls)
+      fdecl.accept(generator);
+    assertEquals(serial.toString(), parallel.toString());
+    String expected = "";
+    for (int i = 0; i < count; ++i) {
+      int y = i * i + 1;
+      expected += (y > 50 ? y - 50 : y) + " ";
+    }
+    assertEquals(expected, run(serial));
+    assertEquals(expected, run(parallel));
+  }
+
+}
@@ -0,0 +1,1257 @@
+/*
+ * File: OptimizerTest.java
+ * Date: Spring 2022
+ * Auth: Zach Burnaby
+ * Desc: Tests of the optimization passes. Each program is compiled
+ *       at every level and must print the same output (and stop with
+ *       the same runtime error, if any) as it does unoptimized.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class OptimizerTest {
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+  private static Optimizer buildOptimizer(int level) {
+    Optimizer optimizer = new Optimizer();
+    optimizer.setLevel(level);
+    return optimizer;
+  }
+
+  // parse, check, optimize, and generate a program into a new VM
+  private static VM compile(String s, Optimizer optimizer) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    MyPL.generate(program, typeInfo, vm, optimizer, false);
+    return vm;
+  }
+
+  // the output of running a program, followed by its runtime error
+  // (without the instruction it occurred at) if there is one (the VM
+  // fails with a Java exception on some errors, like a field of nil)
+  private static String run(VM vm) throws Exception {
+    PrintStream stdout = System.out;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out, true, "UTF-8"));
+    String error = "";
+    try {
+      vm.run();
+    } catch (MyPLException e) {
+      error = e.getMessage();
+      if (error.contains(" (in "))
+        error = error.substring(0, error.indexOf(" (in "));
+    } catch (RuntimeException e) {
+      error = e.getClass().getSimpleName();
+    } finally {
+      System.setOut(stdout);
+    }
+    return out.toString("UTF-8") + error;
+  }
+
+  private static String output(String s, int level) throws Exception {
+    return run(compile(s, buildOptimizer(level)));
+  }
+
+  // check that the program behaves the same at every level, returning
+  // its (unoptimized) output
+  private static String assertSameOutput(String s) throws Exception {
+    String expected = output(s, 0);
+    for (int level = 1; level <= Optimizer.MAX_LEVEL; ++level)
+      assertEquals("at level " + level, expected, output(s, level));
+    return expected;
+  }
+
+  // the optimization report of compiling a program
+  private static String report(String s, int level) throws Exception {
+    Optimizer optimizer = buildOptimizer(level);
+    compile(s, optimizer);
+    return optimizer.report();
+  }
+
+  // the generated instructions of a program (as printed by --ir)
+  private static String listing(String s, int level) throws Exception {
+    return compile(s, buildOptimizer(level)).toString();
+  }
+
+  // the number of instructions with the given opcode in a listing
+  private static int count(String listing, OpCode opcode) {
+    int n = 0;
+    for (String line : listing.split("\n")) {
+      String instr = line.contains(": ") ? line.substring(line.indexOf(": ") + 2) : "";
+      if (instr.equals(opcode.toString()) || instr.startsWith(opcode + " "))
+        ++n;
+    }
+    return n;
+  }
+
+  //------------------------------------------------------------
+  // CONSTANT FOLDING AND PROPAGATION
+  //------------------------------------------------------------
+
+  @Test
+  public void foldsConstantOperators() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 2 + 3 * 4",
+       "  var y = x - 1",
+       "  var d = 1.5 * 2.0",
+       "  var b = 3 < 4 and not (2 == 3)",
+       "  var t = \"ab\" + \"cd\"",
+       "  print(itos(y) + \" \" + dtos(d) + \" \" + t + \"\\n\")",
+       "  if b { print(\"yes\\n\") }",
+       "}");
+    assertEquals("13 3.0 abcd\nyes\n", assertSameOutput(s));
+    assertTrue(report(s, 1).contains("constant folding: "));
+    assertEquals(0, count(listing(s, 1), OpCode.MUL));
+    assertEquals(0, count(listing(s, 1), OpCode.SUB));
+  }
+
+  @Test
+  public void doesNotPropagateAssignedVariables() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 1",
+       "  var y = x + 1",
+       "  while x < 5 { x = x + 1 }",
+       "  print(itos(x) + \" \" + itos(y) + \"\\n\")",
+       "}");
+    assertEquals("5 2\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotFoldNilOperands() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var int x = nil",
+       "  print(\"before\\n\")",
+       "  var y = x + 1",
+       "  print(\"after\\n\")",
+       "}");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotFoldDivisionByZero() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var y = 1 / 0",
+       "}");
+    // (left for the VM to fail on at runtime)
+    for (int level = 1; level <= Optimizer.MAX_LEVEL; ++level)
+      assertEquals(1, count(listing(s, level), OpCode.DIV));
+  }
+
+  @Test
+  public void doesNotFoldNonFiniteDoubles() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var y = 1.0 / 0.0",
+       "  print(dtos(y) + \" \" + dtos(y - y) + \"\\n\")",
+       "}");
+    assertEquals("Infinity NaN\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotPropagateAssignmentsInZeroIterationLoops() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 1",
+       "  for i from 5 upto 4 { x = 2 }",
+       "  print(itos(x) + \"\\n\")",
+       "}");
+    assertEquals("1\n", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // DEAD CODE ELIMINATION
+  //------------------------------------------------------------
+
+  @Test
+  public void removesCodeThatCannotRun() throws Exception {
+    String s = buildString
+      ("fun int sign(int x) {",
+       "  if x < 0 { return neg 1 } else { return 1 }",
+       "  print(\"never 1\\n\")",
+       "}",
+       "fun void main() {",
+       "  if false { print(\"never 2\\n\") }",
+       "  elif true { print(\"a\\n\") }",
+       "  else { print(\"never 3\\n\") }",
+       "  while false { print(\"never 4\\n\") }",
+       "  for i from 5 upto 1 { print(\"never 5\\n\") }",
+       "  print(itos(sign(3)) + \"\\n\")",
+       "}");
+    assertEquals("a\n1\n", assertSameOutput(s));
+    assertTrue(report(s, 1).contains("dead code: 5 statements removed"));
+    assertTrue(!listing(s, 1).contains("never"));
+  }
+
+  @Test
+  public void removesFunctionsOnlyCalledFromDeadCode() throws Exception {
+    String s = buildString
+      ("fun void g() { print(\"g\\n\") }",
+       "fun void main() {",
+       "  if 1 > 2 { g() }",
+       "  print(\"main\\n\")",
+       "}");
+    assertEquals("main\n", assertSameOutput(s));
+    assertTrue(report(s, 1).contains("unreachable functions removed: g"));
+  }
+
+  @Test
+  public void keepsImpureCallsWithUnusedResults() throws Exception {
+    String s = buildString
+      ("fun int f() { print(\"f\\n\") return 1 }",
+       "fun void main() {",
+       "  var unused = f()",
+       "  f()",
+       "  print(\"main\\n\")",
+       "}");
+    assertEquals("f\nf\nmain\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void keepsLoopsWhoseConditionIsAssigned() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var go = true",
+       "  while go { print(\"once\\n\") go = false }",
+       "  var n = 0",
+       "  for i from 1 upto n { print(\"never\\n\") }",
+       "}");
+    assertEquals("once\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void keepsUnusedFieldReadsOfNil() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 }",
+       "fun void main() {",
+       "  var Node n = nil",
+       "  var v = n.val",
+       "  print(\"after\\n\")",
+       "}");
+    assertEquals("ClassCastException", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // INLINING
+  //------------------------------------------------------------
+
+  @Test
+  public void inlinesSmallNonRecursiveFunctions() throws Exception {
+    String s = buildString
+      ("fun int sq(int x) { return x * x }",
+       "fun int fact(int n) { if n < 2 { return 1 } return n * fact(n - 1) }",
+       "fun bool even(int n) { if n == 0 { return true } return odd(n - 1) }",
+       "fun bool odd(int n) { if n == 0 { return false } return even(n - 1) }",
+       "fun void main() {",
+       "  var a = 0",
+       "  var n = 3",
+       "  n = n + 1",
+       "  a = sq(n) + fact(n)",
+       "  print(itos(a) + \" \")",
+       "  if even(n) { print(\"even\\n\") }",
+       "}");
+    assertEquals("40 even\n", assertSameOutput(s));
+    String report = report(s, 2);
+    assertTrue(report.contains("inlined sq into main"));
+    assertTrue(!report.contains("inlined fact"));
+    assertTrue(!report.contains("inlined even"));
+    assertTrue(!report.contains("inlined odd"));
+  }
+
+  @Test
+  public void inlinedArgumentsAreEvaluatedOnce() throws Exception {
+    String s = buildString
+      ("type Counter { var int n = 0 }",
+       "fun int next(Counter c) { c.n = c.n + 1 print(\"next \") return c.n }",
+       "fun int twice(int x) { return x + x }",
+       "fun void main() {",
+       "  var c = new Counter",
+       "  var r = twice(next(c))",
+       "  print(itos(r) + \" \" + itos(c.n) + \"\\n\")",
+       "}");
+    assertEquals("next 2 1\n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("inlined twice into main"));
+  }
+
+  @Test
+  public void inlinedParametersAndLocalsAreRenamed() throws Exception {
+    String s = buildString
+      ("fun int bump(int x) { var t = x + 1 x = t return x }",
+       "fun void main() {",
+       "  var x = 5",
+       "  var t = 10",
+       "  var y = bump(x)",
+       "  print(itos(x) + \" \" + itos(t) + \" \" + itos(y) + \"\\n\")",
+       "}");
+    assertEquals("5 10 6\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void inlinedCallsKeepTheirEffectsInOrder() throws Exception {
+    String s = buildString
+      ("fun int log(int v) { print(itos(v) + \" \") return v }",
+       "fun int abs(int x) { if x < 0 { return neg x } return x }",
+       "fun void main() {",
+       "  var a = neg 2",
+       "  var b = 3",
+       "  print(itos(log(abs(a)) + log(abs(b))) + \"\\n\")",
+       "}");
+    assertEquals("2 3 5\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void inlinedCallsWithNilArgumentsStillFail() throws Exception {
+    String s = buildString
+      ("fun int inc(int x) { return x + 1 }",
+       "fun void main() {",
+       "  var int n = nil",
+       "  print(\"before\\n\")",
+       "  print(itos(inc(n)))",
+       "}");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // LOOP-INVARIANT CODE MOTION
+  //------------------------------------------------------------
+
+  @Test
+  public void hoistsLoopInvariantExpressions() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var a = 2",
+       "  a = a + 1",
+       "  var b = 4",
+       "  b = b + 1",
+       "  var s = 0",
+       "  var i = 0",
+       "  while i < 10 { s = s + a * b + i  i = i + 1 }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    assertEquals("195\n", assertSameOutput(s));
+    assertTrue(!report(s, 2).contains("code motion: 0 expressions hoisted"));
+  }
+
+  @Test
+  public void doesNotHoistVariablesAssignedInTheLoop() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var a = 1",
+       "  a = a + 0",
+       "  var s = 0",
+       "  var i = 0",
+       "  while i < 5 { s = s + a * 2  a = a + 1  i = i + 1 }",
+       "  for j from 1 upto 4 { s = s + j * 3  j = j + 1 }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    assertEquals("42\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotHoistFailingExpressionsOutOfLoopsThatNeverRun() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 }",
+       "fun void main() {",
+       "  var z = 0",
+       "  z = z + 0",
+       "  var Node p = nil",
+       "  var int m = nil",
+       "  var x = 0",
+       "  var n = 0",
+       "  n = n + 0",
+       "  while n > 0 { x = 10 / z  x = p.val  x = m + 1  n = n - 1 }",
+       "  for i from 1 upto n { x = 10 / z  x = p.val  x = m * 2 }",
+       "  print(itos(x) + \"\\n\")",
+       "}");
+    assertEquals("0\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotHoistImpureCallsOrFieldsWrittenInTheLoop() throws Exception {
+    String s = buildString
+      ("type Counter { var int n = 0 }",
+       "fun int tick(Counter c) { c.n = c.n + 1 print(\"tick \") return c.n }",
+       "fun void main() {",
+       "  var c = new Counter",
+       "  var s = 0",
+       "  var i = 0",
+       "  while i < 3 { s = s + tick(c)  s = s + c.n * 10  i = i + 1 }",
+       "  while i < 6 { s = s + c.n  c.n = c.n + 1  i = i + 1 }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    assertEquals("tick tick tick 78\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void failingLoopConditionsStillFail() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var int m = nil",
+       "  var i = 0",
+       "  print(\"before\\n\")",
+       "  while i < m + 1 { i = i + 1 }",
+       "}");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+  }
+
+  @Test
+  public void failingInvariantConditionsKeepTheirPlace() throws Exception {
+    String s = buildString
+      ("fun int f(int x) { print(\"f called\\n\") return x }",
+       "fun void main() {",
+       "  var s = \"ab\"",
+       "  s = s + \"\"",
+       "  var i = 0",
+       "  while (f(i) < 3) and (get(5, s) == 'a') { i = i + 1 }",
+       "}");
+    assertEquals("f called\nVM_ERROR: String index out of range", assertSameOutput(s));
+    s = buildString
+      ("fun void main() {",
+       "  var int m = nil",
+       "  var s = \"ab\"",
+       "  s = s + \"\"",
+       "  var i = 0",
+       "  while (i < m) and (get(5, s) == 'a') { i = i + 1 }",
+       "}");
+    assertEquals("ClassCastException", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // ALGEBRAIC SIMPLIFICATION AND STRENGTH REDUCTION
+  //------------------------------------------------------------
+
+  @Test
+  public void simplifiesIdentityOperands() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 6",
+       "  x = x + 1",
+       "  var d = 2.5",
+       "  d = d + 0.0",
+       "  var a = (x + 0) * 1 + 0 * 5",
+       "  var b = 1 + (x + 2) - 0",
+       "  var c = x / 1 + x * 0",
+       "  var e = d * 1.0 + 0.0",
+       "  print(itos(a) + \" \" + itos(b) + \" \" + itos(c) + \" \" + dtos(e) + \"\\n\")",
+       "}");
+    assertEquals("7 10 7 2.5\n", assertSameOutput(s));
+    assertTrue(!report(s, 2).contains("algebraic simplification: 0 operators"));
+  }
+
+  @Test
+  public void doesNotSimplifyNilOperands() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var int m = nil",
+       "  print(\"before\\n\")",
+       "  var y = m * 0",
+       "  print(\"after\\n\")",
+       "}");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+    s = s.replace("m * 0", "m + 0");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+    s = s.replace("m + 0", "1 * m");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+  }
+
+  @Test
+  public void keepsDiscardedOperandsWithEffects() throws Exception {
+    String s = buildString
+      ("fun int f() { print(\"f \") return 3 }",
+       "fun void main() {",
+       "  var y = f() * 0",
+       "  var d = 1.0 / 0.0",
+       "  print(itos(y) + \" \" + dtos(d * 0.0) + \"\\n\")",
+       "}");
+    assertEquals("f 0 NaN\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void reducesLoopProducts() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 9",
+       "  n = n + 0",
+       "  var c = 3",
+       "  c = c + 1",
+       "  var s = 0",
+       "  for i from 0 upto n {",
+       "    var j = 0",
+       "    while j < 2 { s = s + i * c + (2 + i * 5)  j = j + 1 }",
+       "  }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    assertEquals("850\n", assertSameOutput(s));
+    assertTrue(!report(s, 2).contains(" 0 loop products strength reduced"));
+  }
+
+  @Test
+  public void doesNotReduceProductsOfAssignedLoopVariables() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 9",
+       "  n = n + 0",
+       "  var s = 0",
+       "  for i from 0 upto n { s = s + i * 3  i = i + 1 }",
+       "  for i from 5 upto n - 5 { s = s + i * 7 }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    assertEquals("60\n", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // COMMON SUBEXPRESSIONS
+  //------------------------------------------------------------
+
+  // a list of three nodes (1, 2, 3) built by main, for the tests below
+  private static final String NODES = buildString
+    ("type Node { var int val = 0  var Node next = nil }",
+     "fun Node list() {",
+     "  var c = new Node  c.val = 3",
+     "  var b = new Node  b.val = 2  b.next = c",
+     "  var a = new Node  a.val = 1  a.next = b",
+     "  return a",
+     "}");
+
+  @Test
+  public void reusesRepeatedFieldPathsAndOperators() throws Exception {
+    String s = NODES + buildString
+      ("fun void main() {",
+       "  var p = list()",
+       "  var a = p.val",
+       "  var x = p.next.val + p.next.next.val + p.next.val * p.next.next.val",
+       "  var y = a * x + a * x",
+       "  print(itos(x) + \" \" + itos(y) + \"\\n\")",
+       "}");
+    assertEquals("11 22\n", assertSameOutput(s));
+    assertTrue(!report(s, 2).contains("common subexpressions: 0 repeated"));
+  }
+
+  @Test
+  public void doesNotReuseAcrossAssignments() throws Exception {
+    String s = NODES + buildString
+      ("fun void bump(Node n) { n.val = n.val + 10 }",
+       "fun void main() {",
+       "  var p = list()",
+       "  var a = 2",
+       "  a = a + 0",
+       "  var x = p.next.val + a * 3",
+       "  p.next.val = 7",
+       "  a = a + 1",
+       "  var y = p.next.val + a * 3",
+       "  bump(p.next)",
+       "  var z = p.next.val",
+       "  var q = p.next",
+       "  p.next = q.next",
+       "  var w = p.next.val",
+       "  print(itos(x) + \" \" + itos(y) + \" \" + itos(z) + \" \" + itos(w) + \"\\n\")",
+       "}");
+    assertEquals("8 16 17 3\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotReuseAcrossCallsInTheSameStatement() throws Exception {
+    String s = NODES + buildString
+      ("fun int skip(Node n) { n.next = n.next.next return 0 }",
+       "fun void main() {",
+       "  var p = list()",
+       "  var x = skip(p) + p.next.val + p.next.val",
+       "  print(itos(x) + \"\\n\")",
+       "}");
+    assertEquals("6\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotReuseAcrossDeletes() throws Exception {
+    String s = NODES + buildString
+      ("fun void main() {",
+       "  var p = list()",
+       "  var x = p.next.val",
+       "  var q = p.next",
+       "  delete q",
+       "  print(\"before\\n\")",
+       "  var y = p.next.val",
+       "  print(\"after\\n\")",
+       "}");
+    assertEquals("before\nVM_ERROR: Cannot reference null object ID", assertSameOutput(s));
+  }
+
+  @Test
+  public void repeatedPathsThroughNilStillFail() throws Exception {
+    String s = NODES + buildString
+      ("fun void main() {",
+       "  var p = list()",
+       "  p.next.next = nil",
+       "  print(\"before\\n\")",
+       "  var x = p.next.next.val + p.next.next.val",
+       "  print(\"after\\n\")",
+       "}");
+    assertEquals("before\nClassCastException", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // SSA FORM (CONSTANT PROPAGATION, VALUE NUMBERING, DEAD VALUES)
+  //------------------------------------------------------------
+
+  @Test
+  public void propagatesConstantsThroughBranchesAndLoops() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 5",
+       "  n = n + 0",
+       "  var a = 1",
+       "  var b = 0",
+       "  var i = 0",
+       "  while i < n {",
+       "    if a == 1 { b = b + 5 } else { a = 2 }",
+       "    i = i + 1",
+       "  }",
+       "  print(itos(a) + \" \" + itos(b) + \"\\n\")",
+       "}");
+    assertEquals("1 25\n", assertSameOutput(s));
+    assertTrue(!report(s, 3).contains(" 0 branches resolved"));
+  }
+
+  @Test
+  public void numbersRedundantValuesAndRemovesDeadOnes() throws Exception {
+    String s = NODES + buildString
+      ("fun void main() {",
+       "  var p = list()",
+       "  var a = p.val + 6",
+       "  var b = p.next.val + 3",
+       "  var x = a * b",
+       "  var unused = a - b",
+       "  if x > 10 { x = x + a * b }",
+       "  print(itos(x) + \"\\n\")",
+       "}");
+    assertEquals("70\n", assertSameOutput(s));
+    String report = report(s, 3);
+    assertTrue(!report.contains("SSA value numbering: 0 redundant"));
+    assertTrue(!report.contains("SSA dead values: 0 instructions"));
+  }
+
+  @Test
+  public void keepsEffectsOfDeadValues() throws Exception {
+    String s = NODES + buildString
+      ("fun int f() { print(\"f \") return 1 }",
+       "fun void main() {",
+       "  var unused = f()",
+       "  var a = new Node",
+       "  var b = new Node",
+       "  a.val = 1",
+       "  b.val = 2",
+       "  var p = list()",
+       "  var x = p.val",
+       "  p.val = 5",
+       "  var y = p.val",
+       "  print(itos(a.val) + \" \" + itos(b.val) + \" \" + itos(x + y) + \"\\n\")",
+       "}");
+    assertEquals("f 1 2 6\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void loopCarriedValuesAndLoopsThatNeverRun() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 0",
+       "  n = n + 0",
+       "  var a = 1",
+       "  var b = 1",
+       "  var i = 0",
+       "  while i < 6 { var t = a + b  a = b  b = t  i = i + 1 }",
+       "  while i < n { a = 0  i = i + 1 }",
+       "  for j from 1 upto n { b = 0 }",
+       "  print(itos(a) + \" \" + itos(b) + \"\\n\")",
+       "}");
+    assertEquals("13 21\n", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // VARIABLE SLOT SHARING
+  //------------------------------------------------------------
+
+  // the {before, after} slot counts of the slot allocation report line
+  private static int[] slots(String report) {
+    Matcher m = Pattern.compile("slot allocation: (\\d+) variable slots packed into (\\d+)")
+      .matcher(report);
+    assertTrue(report, m.find());
+    return new int[] {Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))};
+  }
+
+  @Test
+  public void sharesSlotsBetweenDisjointLifetimes() throws Exception {
+    String s = buildString
+      ("fun int f(int a, int b) { var c = a + b  var d = c * 2  return d }",
+       "fun void main() {",
+       "  var n = 2",
+       "  n = n + 0",
+       "  if n > 1 { var a = n * 3  print(itos(a) + \" \") }",
+       "  if n > 0 { var b = n * 4  print(itos(b) + \" \") }",
+       "  if n > 1 { var c = n * 5  print(itos(c) + \" \") }",
+       "  print(itos(f(n, 1)) + \"\\n\")",
+       "}");
+    assertEquals("6 8 10 6\n", assertSameOutput(s));
+    int[] slots = slots(report(s, 1));
+    assertTrue(slots[1] < slots[0]);
+  }
+
+  @Test
+  public void doesNotShareSlotsOfValuesLiveAcrossLoops() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 5",
+       "  n = n + 0",
+       "  var total = 0",
+       "  var prev = 0",
+       "  var i = 0",
+       "  while i < n {",
+       "    var cur = i * i",
+       "    total = total + cur - prev",
+       "    prev = cur",
+       "    i = i + 1",
+       "  }",
+       "  var x = 7",
+       "  for j from 1 upto n - 5 { var y = 0  x = y }",
+       "  for k from 1 upto 3 { var z = k * 10  total = total + z }",
+       "  print(itos(total) + \" \" + itos(prev) + \" \" + itos(x) + \"\\n\")",
+       "}");
+    assertEquals("76 16 7\n", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // COUNTED LOOPS (FORPREP AND FORLOOP)
+  //------------------------------------------------------------
+
+  @Test
+  public void forLoopsUseCountedLoopInstructions() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 3",
+       "  n = n + 0",
+       "  for i from 1 upto n { print(itos(i)) }",
+       "  for i from n downto 1 { print(itos(i)) }",
+       "  print(\"\\n\")",
+       "}");
+    assertEquals("123321\n", assertSameOutput(s));
+    String listing = listing(s, 0);
+    assertEquals(2, count(listing, OpCode.FORPREP));
+    assertEquals(2, count(listing, OpCode.FORLOOP));
+  }
+
+  @Test
+  public void forLoopEndIsEvaluatedBeforeEachIteration() throws Exception {
+    String s = buildString
+      ("fun int bound(int n) { print(\"bound \") return n }",
+       "fun void main() {",
+       "  var s = 0",
+       "  for i from bound(1) upto bound(4) { s = s + i }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    // (the start once, the end before each of the 5 tests)
+    assertEquals("bound bound bound bound bound bound 10\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void forLoopsThatNeverRunOrRunOnce() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 0",
+       "  n = n + 0",
+       "  for i from 1 upto n { print(\"never\\n\") }",
+       "  for i from n downto 1 { print(\"never\\n\") }",
+       "  for i from 5 upto 4 { print(\"never\\n\") }",
+       "  for i from n upto n { print(\"once \" + itos(i) + \"\\n\") }",
+       "}");
+    assertEquals("once 0\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void forLoopVariablesAssignedInTheBody() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 10",
+       "  n = n + 0",
+       "  for i from 1 upto n { print(itos(i) + \" \")  i = i + 2 }",
+       "  for i from n downto 1 { print(itos(i) + \" \")  i = i - 3 }",
+       "  print(\"\\n\")",
+       "}");
+    assertEquals("1 4 7 10 10 6 2 \n", assertSameOutput(s));
+  }
+
+  @Test
+  public void forLoopsWithNilBoundsFail() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var int m = nil",
+       "  print(\"before\\n\")",
+       "  for i from 1 upto m { print(\"never\\n\") }",
+       "}");
+    assertTrue(assertSameOutput(s).startsWith("before\n"));
+    assertTrue(!output(s, 0).contains("never"));
+  }
+
+  //------------------------------------------------------------
+  // MEMOIZATION (--memoize)
+  //------------------------------------------------------------
+
+  // the output of running a program compiled at the given level with
+  // calls to its pure functions memoized
+  private static String memoizedOutput(String s, int level, int capacity)
+    throws Exception
+  {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    MyPL.generate(program, typeInfo, vm, buildOptimizer(level), false);
+    vm.setMemoizer(new Memoizer(PurityAnalysis.of(program).pureFunctions(), capacity));
+    return run(vm);
+  }
+
+  @Test
+  public void memoizedCallsReturnTheSameResults() throws Exception {
+    String s = buildString
+      ("fun int fib(int n) { if n < 2 { return n } return fib(n - 1) + fib(n - 2) }",
+       "fun int noisy(int n) { print(\"noisy \") return n * 2 }",
+       "fun int half(int n) { return n / 2 }",
+       "fun void main() {",
+       "  var n = 20",
+       "  n = n + 0",
+       "  var int m = nil",
+       "  print(itos(fib(n)) + \" \" + itos(noisy(n) + noisy(n)) + \"\\n\")",
+       "  print(itos(half(m)))",
+       "}");
+    String expected = assertSameOutput(s);
+    assertEquals("noisy noisy 6765 80\nVM_ERROR: Nil reference", expected);
+    for (int level = 0; level <= Optimizer.MAX_LEVEL; ++level) {
+      assertEquals(expected, memoizedOutput(s, level, Memoizer.DEFAULT_CAPACITY));
+      assertEquals(expected, memoizedOutput(s, level, 2));
+    }
+  }
+
+  //------------------------------------------------------------
+  // COMPILE-TIME EVALUATION OF PURE CALLS
+  //------------------------------------------------------------
+
+  @Test
+  public void evaluatesPureCallsWithLiteralArguments() throws Exception {
+    String s = buildString
+      ("fun int fib(int n) { if n < 2 { return n } return fib(n - 1) + fib(n - 2) }",
+       "fun string twice(string t) { return t + t }",
+       "fun void main() {",
+       "  print(itos(fib(20)) + \" \" + twice(\"ab\") + \"\\n\")",
+       "}");
+    assertEquals("6765 abab\n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("compile-time evaluation: 2 calls"));
+    assertEquals(0, count(listing(s, 2), OpCode.CALL));
+  }
+
+  @Test
+  public void doesNotEvaluateImpureCallsOrNonLiteralArguments() throws Exception {
+    String s = buildString
+      ("fun int noisy(int n) { print(\"noisy \") return n }",
+       "fun int sq(int n) { return n * n }",
+       "fun void main() {",
+       "  var n = 3",
+       "  n = n + 0",
+       "  print(itos(noisy(1) + noisy(2) + sq(n)) + \"\\n\")",
+       "}");
+    assertEquals("noisy noisy 12\n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("compile-time evaluation: 0 calls"));
+  }
+
+  @Test
+  public void leavesFailingCallsForRuntime() throws Exception {
+    String s = buildString
+      ("fun int inc(int x) { return x + 1 }",
+       "fun int inv(int x) { return 10 / x }",
+       "fun void main() {",
+       "  print(\"before\\n\")",
+       "  print(itos(inc(nil)))",
+       "}");
+    assertEquals("before\nVM_ERROR: Nil reference", assertSameOutput(s));
+    s = s.replace("inc(nil)", "inv(0)");
+    assertEquals("before\nArithmeticException", assertSameOutput(s));
+  }
+
+  @Test
+  public void leavesLongRunningCallsForRuntime() throws Exception {
+    String s = buildString
+      ("fun int sum(int n) { var s = 0  for i from 1 upto n { s = s + i % 7 } return s }",
+       "fun void main() {",
+       "  print(itos(sum(150000)) + \"\\n\")",
+       "}");
+    assertEquals("449998\n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("compile-time evaluation: 0 calls"));
+  }
+
+  //------------------------------------------------------------
+  // TREE SHAKING
+  //------------------------------------------------------------
+
+  @Test
+  public void removesFunctionsAndTypesUnreachableFromMain() throws Exception {
+    String s = buildString
+      ("type Unused { var int x = 0 }",
+       "type OnlyInUnused { var int y = 0 }",
+       "type Inner { var int v = 4 }",
+       "type Outer { var Inner inner = new Inner }",
+       "type Param { var int p = 0 }",
+       "fun int unused() { var o = new OnlyInUnused  return helper() }",
+       "fun int helper() { return 1 }",
+       "fun int used(Param p) { return twice(3) }",
+       "fun int twice(int x) { return x * 2 }",
+       "fun void main() {",
+       "  var o = new Outer",
+       "  print(itos(used(nil) + o.inner.v) + \"\\n\")",
+       "}");
+    assertEquals("10\n", assertSameOutput(s));
+    // (a type is live if live code or a live type's field initializer
+    // creates it, so Param, only declared, goes too)
+    for (int level = 0; level <= Optimizer.MAX_LEVEL; ++level)
+      assertTrue(report(s, level).contains("tree shaking: 2 functions and 3 types removed"));
+  }
+
+  @Test
+  public void keepsFunctionsOnlyCalledFromCodeThatMayRun() throws Exception {
+    String s = buildString
+      ("fun int a() { return b() + 1 }",
+       "fun int b() { return c() + 1 }",
+       "fun int c() { return 1 }",
+       "fun void main() {",
+       "  var n = 0",
+       "  n = n + 0",
+       "  if n > 0 { print(itos(a())) }",
+       "  for i from 1 upto n { print(itos(b())) }",
+       "  print(\"done\\n\")",
+       "}");
+    assertEquals("done\n", assertSameOutput(s));
+    assertTrue(report(s, 0).contains("tree shaking: 0 functions and 0 types removed"));
+  }
+
+  //------------------------------------------------------------
+  // STRING INDEX RANGE ANALYSIS
+  //------------------------------------------------------------
+
+  @Test
+  public void removesIndexChecksOfLoopsOverAStringsIndexes() throws Exception {
+    String s = buildString
+      ("fun int count(string s, char c) {",
+       "  var n = 0",
+       "  for i from 0 upto length(s) - 1 { if get(i, s) == c { n = n + 1 } }",
+       "  for i from length(s) - 1 downto 0 { if get(i, s) == c { n = n + 1 } }",
+       "  return n",
+       "}",
+       "fun void main() {",
+       "  var t = \"banana\"",
+       "  t = t + \"\"",
+       "  print(itos(count(t, 'a')) + \" \" + itos(count(\"\", 'a')) + \"\\n\")",
+       "}");
+    assertEquals("6 0\n", assertSameOutput(s));
+    assertTrue(report(s, 1).contains("range analysis: 2 string index checks removed"));
+  }
+
+  @Test
+  public void keepsIndexChecksThatMayFail() throws Exception {
+    String error = "VM_ERROR: String index out of range";
+    String s = buildString
+      ("fun void main() {",
+       "  var s = \"abc\"",
+       "  s = s + \"\"",
+       "  for i from 0 upto length(s) { print(get(i, s)) }",
+       "}");
+    assertEquals("abc" + error, assertSameOutput(s));
+    assertTrue(report(s, 1).contains("range analysis: 0 string index checks removed"));
+    s = buildString
+      ("fun void main() {",
+       "  var s = \"abc\"",
+       "  for i from 0 upto length(s) - 1 { print(get(i + 1, s)) }",
+       "}");
+    assertEquals("bc" + error, assertSameOutput(s));
+    s = buildString
+      ("fun void main() {",
+       "  var s = \"abcd\"",
+       "  var t = \"ab\"",
+       "  for i from 0 upto length(s) - 1 { print(get(i, t)) }",
+       "}");
+    assertEquals("ab" + error, assertSameOutput(s));
+    // (the end is evaluated again before each iteration, so the loop
+    // stops once s is shorter)
+    s = buildString
+      ("fun void main() {",
+       "  var s = \"abcd\"",
+       "  for i from 0 upto length(s) - 1 { print(get(i, s))  s = \"x\" }",
+       "}");
+    assertEquals("a", assertSameOutput(s));
+    s = buildString
+      ("fun void main() {",
+       "  var s = \"abcd\"",
+       "  for i from 0 upto length(s) - 1 { i = i + 3  print(get(i, s)) }",
+       "  for i from 0 upto length(s) - 1 { i = i + 5  print(get(i, s)) }",
+       "}");
+    assertEquals("d" + error, assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // LOOP UNROLLING
+  //------------------------------------------------------------
+
+  @Test
+  public void fullyUnrollsSmallConstantLoops() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var s = 0",
+       "  for i from 1 upto 4 { var t = i * i  s = s + t }",
+       "  for i from 3 downto 1 { print(itos(i) + \" \") }",
+       "  print(itos(s) + \"\\n\")",
+       "}");
+    assertEquals("3 2 1 30\n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("2 loops fully unrolled"));
+    assertEquals(0, count(listing(s, 2), OpCode.FORPREP));
+  }
+
+  @Test
+  public void partiallyUnrollsLoopsThatDoNotReadTheirVariable() throws Exception {
+    String s = buildString
+      ("type Counter { var int n = 0 }",
+       "fun void main() {",
+       "  var c = new Counter",
+       "  var x = 1",
+       "  x = x + 0",
+       "  for i from 1 upto 103 { c.n = c.n + x }",
+       "  for i from 1 upto 103 { c.n = c.n + i }",
+       "  print(itos(c.n) + \"\\n\")",
+       "}");
+    assertEquals("5459\n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("1 partially unrolled"));
+  }
+
+  @Test
+  public void doesNotUnrollLoopsThatAssignTheirVariable() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  for i from 1 upto 6 { print(itos(i) + \" \")  i = i + 1 }",
+       "  print(\"\\n\")",
+       "}");
+    assertEquals("1 3 5 \n", assertSameOutput(s));
+    assertTrue(report(s, 2).contains("0 loops fully unrolled, 0 partially unrolled"));
+  }
+
+  @Test
+  public void unrolledCopiesKeepTheirOwnVariables() throws Exception {
+    String s = buildString
+      ("fun int firstOver(int limit) {",
+       "  for i from 1 upto 4 {",
+       "    var sq = i * i",
+       "    if sq > limit { return sq }",
+       "  }",
+       "  return 0",
+       "}",
+       "fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 3 { for j from 1 upto 2 { var p = i * j  total = total + p } }",
+       "  print(itos(total) + \" \" + itos(firstOver(5)) + \" \" + itos(firstOver(20)) + \"\\n\")",
+       "}");
+    assertEquals("18 9 0\n", assertSameOutput(s));
+  }
+
+  @Test
+  public void doesNotUnrollLoopsThatNeverRun() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 1",
+       "  for i from 5 upto 4 { x = x + i }",
+       "  for i from 1 downto 2 { x = x + i }",
+       "  print(itos(x) + \"\\n\")",
+       "}");
+    assertEquals("1\n", assertSameOutput(s));
+  }
+
+  //------------------------------------------------------------
+  // PROFILE-GUIDED OPTIMIZATION
+  //------------------------------------------------------------
+
+  // the profile of running a program compiled for profiling (written
+  // out and read back in, as with --profile-out and --profile-in)
+  private static ExecutionProfile profile(String s, int level) throws Exception {
+    Optimizer optimizer = buildOptimizer(level);
+    optimizer.setProfiling(true);
+    VM vm = compile(s, optimizer);
+    ExecutionProfile profile = new ExecutionProfile();
+    vm.setProfile(profile);
+    run(vm);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    profile.write(new PrintStream(out, true, "UTF-8"));
+    return ExecutionProfile.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static final String PROFILED = buildString
+    ("fun int rare(int x) { return x + 1 }",
+     "fun int big(int x) {",
+     "  var a = x + 1  var b = a * 2  var c = b - 3  var d = c * c",
+     "  var e = d + a  var f = e - b  var g = f * 2  var h = g + c",
+     "  var i = h - d  var j = i + e  var k = j * 1",
+     "  return k + f + g + h",
+     "}",
+     "fun void main() {",
+     "  var total = 0",
+     "  for i from 1 upto 300 { total = total + big(i) % 7 }",
+     "  if total < 0 {",
+     "    total = rare(total)",
+     "    for k from 1 upto 4 { total = total + 1 }",
+     "  }",
+     "  print(itos(total) + \"\\n\")",
+     "}");
+
+  @Test
+  public void profileGuidesInliningAndUnrolling() throws Exception {
+    String expected = assertSameOutput(PROFILED);
+    // (big is over the inlining budget unless the profile says it is hot)
+    assertTrue(!report(PROFILED, 2).contains("inlined big"));
+    for (int level = 0; level <= Optimizer.MAX_LEVEL; ++level) {
+      ExecutionProfile profile = profile(PROFILED, level);
+      assertEquals(1, profile.calls("main"));
+      assertEquals(300, profile.calls("big"));
+      assertEquals(0, profile.calls("rare"));
+      for (int guided = 2; guided <= Optimizer.MAX_LEVEL; ++guided) {
+        Optimizer optimizer = buildOptimizer(guided);
+        optimizer.setProfile(profile);
+        assertEquals(expected, run(compile(PROFILED, optimizer)));
+        String report = optimizer.report();
+        assertTrue(report, report.contains("inlined big into main"));
+        assertTrue(report, !report.contains("inlined rare"));
+        assertTrue(report, report.contains("1 cold loops left alone"));
+      }
+    }
+  }
+
+  @Test
+  public void profilingTurnsOffInliningAndUnrolling() throws Exception {
+    Optimizer optimizer = buildOptimizer(2);
+    optimizer.setProfiling(true);
+    assertEquals(assertSameOutput(PROFILED), run(compile(PROFILED, optimizer)));
+    String report = optimizer.report();
+    assertTrue(report, !report.contains("inlining:"));
+    assertTrue(report, !report.contains("loop unrolling"));
+  }
+
+  //------------------------------------------------------------
+  // NIL AND FIELD CHECK ELIMINATION
+  //------------------------------------------------------------
+
+  @Test
+  public void removesChecksThatAlwaysPass() throws Exception {
+    String s = NODES + buildString
+      ("fun int sum(Node p) {",
+       "  var total = 0",
+       "  while p != nil { total = total + p.val  p = p.next }",
+       "  return total",
+       "}",
+       "fun void main() {",
+       "  var p = list()",
+       "  var a = 4",
+       "  a = a + p.val",
+       "  var Node q = p.next",
+       "  if q != nil and q.val > 1 { a = a * q.val }",
+       "  print(itos(a) + \" \" + itos(sum(p)) + \"\\n\")",
+       "}");
+    assertEquals("10 6\n", assertSameOutput(s));
+    assertTrue(report(s, 1).contains("nil analysis: "));
+    assertTrue(!report(s, 1).contains("nil analysis: 0 of"));
+    assertTrue(listing(s, 1).contains("(unchecked)"));
+    assertTrue(report(s, 3).contains("SSA nil checks: "));
+    assertTrue(!report(s, 3).contains("SSA nil checks: 0 of"));
+  }
+
+  @Test
+  public void keepsChecksOfVariablesThatBecomeNilInALoop() throws Exception {
+    String s = NODES + buildString
+      ("fun void main() {",
+       "  var p = list()",
+       "  var total = 0",
+       "  var i = 0",
+       "  while i < 4 { total = total + p.val  p = p.next  i = i + 1 }",
+       "  print(itos(total) + \"\\n\")",
+       "}");
+    assertEquals("ClassCastException", assertSameOutput(s));
+    s = buildString
+      ("fun void main() {",
+       "  var x = 1",
+       "  var total = 0",
+       "  for i from 1 upto 3 { total = total + x  if i == 2 { x = nil } }",
+       "  print(itos(total) + \"\\n\")",
+       "}");
+    assertEquals("VM_ERROR: Nil reference", assertSameOutput(s));
+  }
+
+  @Test
+  public void keepsChecksAfterCallsAndDeletes() throws Exception {
+    String s = NODES + buildString
+      ("fun void cut(Node n) { n.next = nil }",
+       "fun void main() {",
+       "  var p = list()",
+       "  if p.next != nil {",
+       "    cut(p)",
+       "    print(\"before\\n\")",
+       "    print(itos(p.next.val))",
+       "  }",
+       "}");
+    assertEquals("before\nClassCastException", assertSameOutput(s));
+    s = NODES + buildString
+      ("fun void main() {",
+       "  var q = list()",
+       "  var x = q.val",
+       "  delete q",
+       "  print(\"before\\n\")",
+       "  x = x + q.val",
+       "}");
+    assertEquals("before\nVM_ERROR: Cannot reference null object ID", assertSameOutput(s));
+  }
+
+  @Test
+  public void keepsChecksWhereAGuardDoesNotHold() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var int m = nil",
+       "  if m == nil { print(\"nil\\n\") } else { print(itos(m + 1)) }",
+       "  if m != nil or true { print(itos(m + 1)) }",
+       "}");
+    assertEquals("nil\nVM_ERROR: Nil reference", assertSameOutput(s));
+    s = buildString
+      ("fun void main() {",
+       "  var int m = nil",
+       "  var i = 0",
+       "  while m == nil and i < 2 { i = i + 1 }",
+       "  print(itos(i) + \"\\n\")",
+       "  print(itos(m * 2))",
+       "}");
+    assertEquals("2\nVM_ERROR: Nil reference", assertSameOutput(s));
+  }
+
+}
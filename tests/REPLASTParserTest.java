@@ -30,6 +30,36 @@ public class REPLASTParserTest {
     return str;
   }
 
+  // the expression as a fully parenthesized string (not and neg
+  // included), showing how the parser grouped its operators
+  private static String show(Expr expr) {
+    String s = show(expr.first);
+    if (expr.logicallyNegated)
+      s = "(not " + s + ")";
+    if (expr.op != null)
+      s = "(" + s + " " + expr.op.lexeme() + " " + show(expr.rest) + ")";
+    return s;
+  }
+
+  private static String show(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return show(((ComplexTerm) term).expr);
+    RValue rvalue = ((SimpleTerm) term).rvalue;
+    if (rvalue instanceof NegatedRValue)
+      return "(neg " + show(((NegatedRValue) rvalue).expr) + ")";
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue) rvalue).path.get(0).lexeme();
+    return ((SimpleRValue) rvalue).value.lexeme();
+  }
+
+  // the (shown) expression of the "it" assignment for a top-level
+  // expression
+  private static String parseExpr(String expr) throws Exception {
+    REPLASTParser parser = buildParser(expr);
+    REPLProgram p = parser.parse();
+    return show(((AssignStmt) p.stmts.get(0)).expr);
+  }
+
   //------------------------------------------------------------
   // TEST CASES
   //------------------------------------------------------------
@@ -304,5 +334,41 @@ public class REPLASTParserTest {
         //TODO: handle exception
     }
   }
-  
-}
\ No newline at end of file
+
+  //------------------------------------------------------------
+  // OPERATOR PRECEDENCE AND ASSOCIATIVITY
+  //------------------------------------------------------------
+
+  @Test
+  public void outsideSameOperatorGroupsLeft() throws Exception {
+    assertEquals("((a - b) - c)", parseExpr("a - b - c"));
+    assertEquals("((1 - 2) - 3)", parseExpr("1 - 2 - 3"));
+    assertEquals("((a / b) * c)", parseExpr("a / b * c"));
+  }
+
+  @Test
+  public void outsidePrecedenceLevels() throws Exception {
+    assertEquals("(a + (b * c))", parseExpr("a + b * c"));
+    assertEquals("((1 * 2) + 3)", parseExpr("1 * 2 + 3"));
+    assertEquals("(a or (b and (c == (d < (e + (f * g))))))",
+                 parseExpr("a or b and c == d < e + f * g"));
+    assertEquals("((((((a * b) + c) < d) == e) and f) or g)",
+                 parseExpr("a * b + c < d == e and f or g"));
+  }
+
+  @Test
+  public void outsideMixedLogicalAndComparisonChains() throws Exception {
+    assertEquals("((a or (b and c)) or d)", parseExpr("a or b and c or d"));
+    assertEquals("(((a < b) or ((c >= d) and (e != f))) or g)",
+                 parseExpr("a < b or c >= d and e != f or g"));
+  }
+
+  @Test
+  public void outsideNotAndNeg() throws Exception {
+    assertEquals("((not (a == b)) and c)", parseExpr("not a == b and c"));
+    assertEquals("(a or (not b))", parseExpr("a or not b"));
+    assertEquals("((neg a) * b)", parseExpr("neg a * b"));
+    assertEquals("((a - (neg b)) - c)", parseExpr("a - neg b - c"));
+  }
+
+}
@@ -639,6 +639,18 @@ public class StaticCheckerTest {
     }
   }
   
+  @Test
+  public void validUDTDelete() throws Exception {
+    String s = buildString
+      ("type T {var int x = 0}",
+       "fun void main() {",
+       "  var t = new T",
+       "  delete t",
+       "}"
+       );
+    buildParser(s).parse().accept(buildChecker());
+  }
+  
   @Test
   public void invalidPrimitiveDeleteType() throws Exception {
     String s = buildString
@@ -1028,6 +1040,32 @@ public class StaticCheckerTest {
       assertTrue(ex.getMessage().startsWith("STATIC_ERROR:"));
     }
   }
+  @Test
+  public void validRootFunctionCalls() throws Exception {
+    String s = buildString
+      ("type T {var int x = 0}",
+       "fun void main() {",
+       "  setroot(\"t\", new T)",
+       "  var T t = getroot(\"t\")",
+       "  setroot(\"t\", nil)",
+       "}"
+       );
+    buildParser(s).parse().accept(buildChecker());
+  }
+  @Test
+  public void invalidPrimitiveSetRoot() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  setroot(\"x\", 3)",
+       "}"
+       );
+    try {
+      buildParser(s).parse().accept(buildChecker());
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().startsWith("STATIC_ERROR:"));
+    }
+  }
   
   //------------------------------------------------------------
   // FUNCTION RETURN TESTS
@@ -1343,4 +1381,60 @@ public class StaticCheckerTest {
     assertEquals("return", components.get(2));
     assertEquals("int", typeInfo.get("f", "return"));    
   }
-}
\ No newline at end of file
+
+  //------------------------------------------------------------
+  // PARALLEL CHECKING (PARALLEL_MIN_FUNCTIONS or more functions)
+  //------------------------------------------------------------
+
+  // a program of count functions (one per line, f<i> on line i + 1)
+  // followed by main, where the functions at the given positions
+  // assign a string to an int variable
+  private static String manyFunctions(int count, int... bad) {
+    String str = "";
+    for (int i = 0; i < count; ++i) {
+      boolean isBad = false;
+      for (int b : bad)
+        isBad = isBad || b == i;
+      String value = isBad ? "\"oops\"" : "x * " + i;
+      str += "fun int f" + i + "(int x) { var int y = " + value + " return y }\n";
+    }
+    return str + "fun void main() { var t = f0(1) }\n";
+  }
+
+  @Test
+  public void parallelCheckOfValidProgram() throws Exception {
+    int count = StaticChecker.PARALLEL_MIN_FUNCTIONS + 8;
+    TypeInfo typeInfo = new TypeInfo();
+    buildParser(manyFunctions(count)).parse().accept(new StaticChecker(typeInfo));
+    // (the types recorded by each function's checker are kept)
+    for (int i = 0; i < count; ++i)
+      assertEquals("int", typeInfo.get("f" + i, "return"));
+  }
+
+  @Test
+  public void parallelCheckReportsFirstErrorInDeclarationOrder() throws Exception {
+    String s = manyFunctions(StaticChecker.PARALLEL_MIN_FUNCTIONS + 8, 9, 29);
+    // (repeated, as the order the functions finish in varies)
+    for (int run = 0; run < 20; ++run) {
+      try {
+        buildParser(s).parse().accept(buildChecker());
+        fail("error not detected");
+      } catch(MyPLException ex) {
+        assertTrue(ex.getMessage().startsWith("STATIC_ERROR:"));
+        assertTrue(ex.getMessage(), ex.getMessage().contains("near line 10,"));
+      }
+    }
+  }
+
+  @Test
+  public void parallelCheckReportsLateError() throws Exception {
+    String s = manyFunctions(StaticChecker.PARALLEL_MIN_FUNCTIONS + 8, 39);
+    try {
+      buildParser(s).parse().accept(buildChecker());
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("near line 40,"));
+    }
+  }
+
+}